@@ -0,0 +1,110 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+
+/**
+ * <p>
+ * Denna klass hämtar nyhetssidor från inspelade HTML-filer i stället för från
+ * hsb.se, så att mätningarna inte beror på nätverket. Vilken fil som används
+ * bestäms av sidans typ (alla nyheter, region eller förening), så alla
+ * regioner och föreningar får samma innehåll. Sidorna skickas utan ETag och
+ * Last-Modified, så varje hämtning ger hela sidan.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class FixtureNewsFeedFetcher implements NewsFeedFetcher {
+
+	public static final String NEWS = "nyheter.html";
+	public static final String REGION = "region.html";
+	public static final String BRF = "brf.html";
+	public static final String BRF_PREVIOUS = "brf-previous.html";
+
+	private final String fixture;
+
+	public FixtureNewsFeedFetcher() {
+		this(null);
+	}
+
+	public FixtureNewsFeedFetcher(String fixture) {
+		super();
+		this.fixture = fixture;
+	}
+
+	@Override
+	public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException {
+		String name = (fixture != null) ? fixture : getFixtureName(url);
+
+		return new NewsFeedPage(url, 200, getFixture(name), "UTF-8", null, null);
+	}
+
+	private static String getFixtureName(URL url) {
+		String path = url.getPath();
+
+		if (path.contains("/brf/")) {
+			return BRF;
+		} else if (path.contains("/om-hsb/")) {
+			return REGION;
+		} else {
+			return NEWS;
+		}
+	}
+
+	public static byte[] getFixture(String name) {
+		return Fixtures.get(name);
+	}
+
+	// Read once, shared by all fetchers
+	private static class Fixtures {
+
+		private static final byte[] news = read(NEWS);
+		private static final byte[] region = read(REGION);
+		private static final byte[] brf = read(BRF);
+		private static final byte[] brfPrevious = read(BRF_PREVIOUS);
+
+		private static byte[] get(String name) {
+			switch (name) {
+			case NEWS:
+				return news;
+			case REGION:
+				return region;
+			case BRF:
+				return brf;
+			case BRF_PREVIOUS:
+				return brfPrevious;
+			default:
+				throw new IllegalArgumentException("Unknown fixture: " + name);
+			}
+		}
+
+		private static byte[] read(String name) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(65536);
+			byte[] b = new byte[8192];
+			int n;
+
+			try (InputStream in = FixtureNewsFeedFetcher.class.getResourceAsStream("/fixtures/" + name)) {
+				if (in == null) {
+					throw new IOException("Missing fixture: " + name);
+				}
+
+				while ((n = in.read(b)) >= 0) {
+					buffer.write(b, 0, n);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			return buffer.toByteArray();
+		}
+
+	}
+
+}
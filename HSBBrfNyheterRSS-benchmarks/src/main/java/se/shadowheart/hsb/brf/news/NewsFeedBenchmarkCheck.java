@@ -0,0 +1,90 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Properties;
+
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>
+ * Kör alla mätningar och jämför resultaten med gränserna i
+ * <code>thresholds.properties</code>. Avslutas med felkod 1 om någon mätning
+ * är långsammare än sin gräns, så att det kan användas i ett bygge. Det
+ * första argumentet anger en fil att spara resultaten i som JSON, och de
+ * följande argumenten begränsar vilka mätningar som körs.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedBenchmarkCheck {
+
+	public static void main(String[] args) throws IOException, RunnerException {
+		Properties thresholds = loadThresholds();
+		OptionsBuilder options = new OptionsBuilder();
+		Collection<RunResult> results;
+		int failures = 0;
+
+		if (args.length > 0) {
+			options.result(args[0]);
+			options.resultFormat(ResultFormatType.JSON);
+		}
+
+		if (args.length > 1) {
+			for (int i = 1; i < args.length; i++) {
+				options.include(args[i]);
+			}
+		} else {
+			options.include(NewsFeedBenchmarkCheck.class.getPackage().getName() + "\\..*Benchmark\\..*");
+		}
+
+		results = new Runner(options.build()).run();
+
+		System.out.println();
+		System.out.println("Regression thresholds:");
+
+		for (RunResult runResult : results) {
+			String benchmark = runResult.getParams().getBenchmark();
+			String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+			Result<?> result = runResult.getPrimaryResult();
+			String threshold = thresholds.getProperty(name);
+
+			if (threshold == null) {
+				System.out.printf("  %-55s %12.3f %-6s (no threshold)%n", name, result.getScore(), result.getScoreUnit());
+			} else if (result.getScore() > Double.parseDouble(threshold)) {
+				System.out.printf("  %-55s %12.3f %-6s FAILED, threshold %s%n", name, result.getScore(), result.getScoreUnit(), threshold);
+				failures++;
+			} else {
+				System.out.printf("  %-55s %12.3f %-6s ok, threshold %s%n", name, result.getScore(), result.getScoreUnit(), threshold);
+			}
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " benchmarks exceeded their thresholds");
+			System.exit(1);
+		}
+	}
+
+	private static Properties loadThresholds() throws IOException {
+		Properties thresholds = new Properties();
+
+		try (InputStream in = NewsFeedBenchmarkCheck.class.getResourceAsStream("/thresholds.properties")) {
+			if (in != null) {
+				thresholds.load(in);
+			}
+		}
+
+		return thresholds;
+	}
+
+}
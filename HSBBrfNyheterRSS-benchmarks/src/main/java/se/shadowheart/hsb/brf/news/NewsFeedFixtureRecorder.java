@@ -0,0 +1,51 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * <p>
+ * Spelar in nya HTML-filer för mätningarna från hsb.se. Filerna skrivs till
+ * katalogen som anges som första argument, normalt
+ * <code>src/main/resources/fixtures</code>, och region och förening väljs med
+ * de två följande argumenten.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedFixtureRecorder {
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File((args.length > 0) ? args[0] : "src/main/resources/fixtures");
+		String region = (args.length > 1) ? args[1] : "norr";
+		String brf = (args.length > 2) ? args[2] : "hagern";
+		NewsFeedFetcher fetcher = new HttpNewsFeedFetcher();
+
+		record(fetcher, new URL(NewsFeed.URL_PATTERN_0), new File(dir, FixtureNewsFeedFetcher.NEWS));
+		record(fetcher, new URL(String.format(NewsFeed.URL_PATTERN_1, NewsFeed.encodeForURL(region))),
+				new File(dir, FixtureNewsFeedFetcher.REGION));
+		record(fetcher, new URL(String.format(NewsFeed.URL_PATTERN_2, NewsFeed.encodeForURL(region), NewsFeed.encodeForURL(brf))),
+				new File(dir, FixtureNewsFeedFetcher.BRF));
+	}
+
+	private static void record(NewsFeedFetcher fetcher, URL url, File f) throws IOException {
+		NewsFeedPage page = fetcher.fetch(url, null, null);
+
+		// Keep the last recording of the brf page, the merge benchmark needs it
+		if (f.getName().equals(FixtureNewsFeedFetcher.BRF) && f.isFile()) {
+			Files.copy(f.toPath(), new File(f.getParentFile(), FixtureNewsFeedFetcher.BRF_PREVIOUS).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		Files.write(f.toPath(), page.getBody());
+		System.out.println("Recorded " + page.getUrl() + " to " + f + " (" + page.getBody().length + " bytes)");
+	}
+
+}
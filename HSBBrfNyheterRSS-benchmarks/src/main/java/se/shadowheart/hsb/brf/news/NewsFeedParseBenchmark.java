@@ -0,0 +1,95 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Mäter vägen från HTML till nyhetsflöde: att tolka hela sidan eller bara de
+ * delar som flödet byggs från, att bygga ett nytt
+ * flöde, att slå ihop det med ett tidigare flöde i <code>addItem</code>, att
+ * jämföra två versioner av ett flöde och att känna igen en sida vars nyheter
+ * inte har ändrats.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NewsFeedParseBenchmark {
+
+	private static final String REGION = "norr";
+	private static final String BRF = "hagern";
+
+	private NewsFeedFetcher fetcher;
+	private NewsFeedPage page;
+	private NewsFeed previous;
+	private NewsFeed current;
+
+	@Setup
+	public void setup() throws IOException {
+		URL url = new URL(String.format(NewsFeed.URL_PATTERN_2, REGION, BRF));
+
+		fetcher = new FixtureNewsFeedFetcher();
+		page = fetcher.fetch(url, null, null);
+		previous = NewsFeed.load(null, REGION, BRF, new FixtureNewsFeedFetcher(FixtureNewsFeedFetcher.BRF_PREVIOUS));
+		current = NewsFeed.load(null, REGION, BRF, fetcher);
+	}
+
+	@Benchmark
+	public Document parseDocument() throws IOException {
+		return page.parse();
+	}
+
+	@Benchmark
+	public Document parseFeedRegions() throws IOException {
+		return page.parseFeedRegions();
+	}
+
+	@Benchmark
+	public long fingerprint() {
+		return new NewsFeedHtmlScanner(page.getBody()).fingerprint();
+	}
+
+	@Benchmark
+	public NewsFeed loadNewsFeed() throws IOException {
+		return NewsFeed.load(null, REGION, BRF, fetcher);
+	}
+
+	@Benchmark
+	public NewsFeed loadNewsFeedMerge() throws IOException {
+		return NewsFeed.load(previous, REGION, BRF, fetcher);
+	}
+
+	@Benchmark
+	public NewsFeed loadNewsFeedUnchanged() throws IOException {
+		return NewsFeed.load(current, REGION, BRF, fetcher);
+	}
+
+	@Benchmark
+	public NewsFeedDiff diff() {
+		return NewsFeedDiff.compare(previous, current);
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * <p>
+ * Mäter hur ett nyhetsflöde blir RSS: som DOM-dokument via
+ * <code>getDocument()</code> och en <code>Transformer</code>, som ström via
+ * <code>NewsFeedWriter</code>, och som en komplett rendering med gzip och ETag.
+ * Nyheterna kodas bara första gången, så den vanliga uppdateringen med en ny
+ * nyhet och ett flöde där alla nyheter är nya mäts också.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NewsFeedRenderBenchmark {
+
+	private NewsFeed newsFeed;
+
+	@Setup
+	public void setup() throws IOException {
+		newsFeed = NewsFeed.load(null, new FixtureNewsFeedFetcher(FixtureNewsFeedFetcher.NEWS));
+	}
+
+	@Benchmark
+	public Document getDocument() {
+		return newsFeed.getDocument();
+	}
+
+	@Benchmark
+	public int getDocumentTransform() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+
+		NewsFeedRendering.outputDocument(newsFeed.getDocument(), out, NewsFeedRendering.ENCODING);
+
+		return out.size();
+	}
+
+	@Benchmark
+	public int writeTo() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+
+		newsFeed.writeTo(out);
+
+		return out.size();
+	}
+
+	// One new item at the top, the others are already encoded
+	@Benchmark
+	public int writeToOneNewItem() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+		List<NewsFeedItem> items = new ArrayList<>(newsFeed.getItems());
+
+		items.set(0, copy(items.get(0)));
+		copy(newsFeed, items).writeTo(out);
+
+		return out.size();
+	}
+
+	@Benchmark
+	public int writeToAllNewItems() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+		List<NewsFeedItem> items = new ArrayList<>();
+
+		for (NewsFeedItem item : newsFeed.getItems()) {
+			items.add(copy(item));
+		}
+
+		copy(newsFeed, items).writeTo(out);
+
+		return out.size();
+	}
+
+	@Benchmark
+	public NewsFeedRendering render() throws IOException {
+		return NewsFeedRendering.render(newsFeed);
+	}
+
+	@Benchmark
+	public NewsFeedRendering renderDocument() throws IOException {
+		return NewsFeedRendering.renderDocument(newsFeed);
+	}
+
+	private static NewsFeedItem copy(NewsFeedItem item) {
+		return new NewsFeedItem(item.getTitle(), item.getLink(), item.getDate(), item.getDesc());
+	}
+
+	private static NewsFeed copy(NewsFeed newsFeed, List<NewsFeedItem> items) {
+		return new NewsFeed(newsFeed.getUrl(), newsFeed.getTitle(), newsFeed.getDescription(), newsFeed.getLastBuildDate(), items);
+	}
+
+}
@@ -0,0 +1,112 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Mäter hur lång tid det tar att spara och läsa in de cachade flödena, dels
+ * med Java-serialisering av hela mappen (som tidigare versioner gjorde), dels
+ * med binärformatet i <code>NewsFeedStore</code>.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NewsFeedSerializationBenchmark {
+
+	private static final int feeds = 1000;
+
+	private HashMap<String, NewsFeed> newsFeeds;
+	private byte[] serialized;
+	private List<byte[]> encoded;
+
+	@Setup
+	public void setup() throws IOException {
+		NewsFeedFetcher fetcher = new FixtureNewsFeedFetcher();
+
+		newsFeeds = new HashMap<>();
+		encoded = new ArrayList<>(feeds);
+
+		for (int i = 0; i < feeds; i++) {
+			String key = "region" + (i % 30) + "/brf" + i;
+			NewsFeed newsFeed = NewsFeed.load(null, "region" + (i % 30), "brf" + i, fetcher);
+
+			newsFeeds.put(key, newsFeed);
+			encoded.add(NewsFeedStore.encode(newsFeed));
+		}
+
+		serialized = serialize();
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 20);
+
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(buffer))) {
+			out.writeObject(newsFeeds);
+		}
+
+		return buffer.toByteArray();
+	}
+
+	@Benchmark
+	public Object deserialize() throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new ByteArrayInputStream(serialized)))) {
+			return in.readObject();
+		}
+	}
+
+	@Benchmark
+	public int encode() throws IOException {
+		int size = 0;
+
+		for (NewsFeed newsFeed : newsFeeds.values()) {
+			size += NewsFeedStore.encode(newsFeed).length;
+		}
+
+		return size;
+	}
+
+	@Benchmark
+	public Map<String, NewsFeed> decode() throws IOException {
+		Map<String, NewsFeed> decoded = new HashMap<>();
+
+		for (int i = 0; i < encoded.size(); i++) {
+			decoded.put(Integer.toString(i), NewsFeedStore.decode(encoded.get(i)));
+		}
+
+		return decoded;
+	}
+
+}
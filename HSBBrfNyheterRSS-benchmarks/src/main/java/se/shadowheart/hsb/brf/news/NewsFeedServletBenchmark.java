@@ -0,0 +1,181 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Mäter <code>doGet</code> i <code>NewsFeedServlet</code> hela vägen, med
+ * attrapper av anrop och svar och med sidorna från
+ * <code>FixtureNewsFeedFetcher</code>: ett cachat flöde med och utan gzip, ett
+ * villkorligt anrop som ger 304, ett flöde som inte finns i cachen och måste
+ * hämtas, tolkas och renderas, ett sammanslaget flöde av tre cachade flöden
+ * och ett flöde med de senaste nyheterna ur historiken.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NewsFeedServletBenchmark {
+
+	private static final String PATH_INFO = "/norr/hagern";
+
+	private final AtomicInteger missCount = new AtomicInteger();
+
+	private File tempDir;
+	private NewsFeedServlet servlet;
+	private HttpServletRequest cachedRequest;
+	private HttpServletRequest cachedGzipRequest;
+	private HttpServletRequest notModifiedRequest;
+	private HttpServletRequest aggregatedRequest;
+	private HttpServletRequest historyRequest;
+
+	@Setup
+	public void setup() throws IOException, ServletException {
+		Map<String, String> initParams = new HashMap<>();
+		NewsFeedServletMocks.Response response = new NewsFeedServletMocks.Response();
+
+		tempDir = Files.createTempDirectory("newsfeed-benchmark").toFile();
+		initParams.put("backgroundRefresh", "true");
+		initParams.put("fetcher", FixtureNewsFeedFetcher.class.getName());
+		initParams.put("refreshThreads", "4");
+		initParams.put("cacheMaxEntries", "1000");
+
+		servlet = new NewsFeedServlet();
+		servlet.init(NewsFeedServletMocks.newServletConfig("NewsFeedServlet", initParams, tempDir));
+
+		cachedRequest = NewsFeedServletMocks.newRequest(PATH_INFO, Collections.<String, String> emptyMap());
+		cachedGzipRequest = NewsFeedServletMocks.newRequest(PATH_INFO, Collections.singletonMap("Accept-Encoding", "gzip, deflate"));
+
+		// The first request loads the feed, and gives the ETag to match
+		servlet.doGet(cachedRequest, NewsFeedServletMocks.newResponse(response));
+
+		if (response.getStatus() != HttpServletResponse.SC_OK) {
+			throw new IllegalStateException("Unexpected status " + response.getStatus() + " for " + PATH_INFO);
+		}
+
+		notModifiedRequest = NewsFeedServletMocks.newRequest(PATH_INFO, Collections.singletonMap("If-None-Match", response.getHeader("ETag")));
+		aggregatedRequest = NewsFeedServletMocks.newRequest("/samlade-nyheter", PATH_INFO, Collections.<String, String[]> emptyMap(),
+				Collections.<String, String> emptyMap());
+		historyRequest = NewsFeedServletMocks.newRequest("/nyheter", PATH_INFO, Collections.singletonMap("limit", new String[] { "100" }),
+				Collections.<String, String> emptyMap());
+
+		// Loads the news of all of HSB and the region, and merges them
+		response.reset();
+		servlet.doGet(aggregatedRequest, NewsFeedServletMocks.newResponse(response));
+
+		if (response.getStatus() != HttpServletResponse.SC_OK) {
+			throw new IllegalStateException("Unexpected status " + response.getStatus() + " for aggregated " + PATH_INFO);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		servlet.destroy();
+		delete(tempDir);
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+
+		f.delete();
+	}
+
+	@State(Scope.Thread)
+	public static class ResponseState {
+
+		private final NewsFeedServletMocks.Response response = new NewsFeedServletMocks.Response();
+		private final HttpServletResponse resp = NewsFeedServletMocks.newResponse(response);
+
+	}
+
+	@Benchmark
+	public long doGetCached(ResponseState state) throws ServletException, IOException {
+		state.response.reset();
+		servlet.doGet(cachedRequest, state.resp);
+
+		return state.response.getBodyLength();
+	}
+
+	@Benchmark
+	public long doGetCachedGzip(ResponseState state) throws ServletException, IOException {
+		state.response.reset();
+		servlet.doGet(cachedGzipRequest, state.resp);
+
+		return state.response.getBodyLength();
+	}
+
+	@Benchmark
+	public int doGetNotModified(ResponseState state) throws ServletException, IOException {
+		state.response.reset();
+		servlet.doGet(notModifiedRequest, state.resp);
+
+		return state.response.getStatus();
+	}
+
+	@Benchmark
+	public long doGetAggregated(ResponseState state) throws ServletException, IOException {
+		state.response.reset();
+		servlet.doGet(aggregatedRequest, state.resp);
+
+		return state.response.getBodyLength();
+	}
+
+	@Benchmark
+	public long doGetHistory(ResponseState state) throws ServletException, IOException {
+		state.response.reset();
+		servlet.doGet(historyRequest, state.resp);
+
+		return state.response.getBodyLength();
+	}
+
+	@Benchmark
+	public long doGetMiss(ResponseState state) throws ServletException, IOException {
+		// A new feed each time, so it is always fetched, parsed and rendered
+		HttpServletRequest req = NewsFeedServletMocks.newRequest("/norr/brf" + missCount.incrementAndGet(),
+				Collections.<String, String> emptyMap());
+
+		state.response.reset();
+		servlet.doGet(req, state.resp);
+
+		return state.response.getBodyLength();
+	}
+
+}
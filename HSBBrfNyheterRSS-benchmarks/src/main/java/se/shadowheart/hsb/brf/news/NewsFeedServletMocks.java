@@ -0,0 +1,240 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Enkla attrapper av servlet-API:t, så att <code>NewsFeedServlet</code> kan
+ * köras utan en servletcontainer. Bara de metoder som servleten använder gör
+ * något, alla andra returnerar <code>null</code>, <code>false</code> eller 0.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedServletMocks {
+
+	private NewsFeedServletMocks() {
+	}
+
+	public static ServletConfig newServletConfig(final String name, final Map<String, String> initParams, File tempDir) {
+		final ServletContext context = newServletContext(tempDir);
+
+		return newProxy(ServletConfig.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getServletName":
+					return name;
+				case "getServletContext":
+					return context;
+				case "getInitParameter":
+					return initParams.get(args[0]);
+				case "getInitParameterNames":
+					return Collections.enumeration(initParams.keySet());
+				default:
+					return defaultValue(method);
+				}
+			}
+		});
+	}
+
+	private static ServletContext newServletContext(File tempDir) {
+		final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+		attributes.put(ServletContext.TEMPDIR, tempDir);
+
+		return newProxy(ServletContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					attributes.put((String) args[0], args[1]);
+					return null;
+				case "removeAttribute":
+					attributes.remove(args[0]);
+					return null;
+				case "log":
+					// Keep logging out of the measurements
+					return null;
+				default:
+					return defaultValue(method);
+				}
+			}
+		});
+	}
+
+	public static HttpServletRequest newRequest(String pathInfo, Map<String, String> headers) {
+		return newRequest("/nyheter", pathInfo, Collections.<String, String[]> emptyMap(), headers);
+	}
+
+	public static HttpServletRequest newRequest(final String servletPath, final String pathInfo, final Map<String, String[]> parameters,
+			Map<String, String> headers) {
+		final Map<String, String> h = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		final Map<String, Object> attributes = new HashMap<>();
+
+		h.putAll(headers);
+
+		return newProxy(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getMethod":
+					return "GET";
+				case "getServletPath":
+					return servletPath;
+				case "getPathInfo":
+					return pathInfo;
+				case "getParameter":
+					return parameters.containsKey(args[0]) ? parameters.get(args[0])[0] : null;
+				case "getParameterValues":
+					return parameters.get(args[0]);
+				case "getHeader":
+					return h.get(args[0]);
+				case "getDateHeader":
+					return h.containsKey(args[0]) ? Long.parseLong(h.get(args[0])) : -1L;
+				case "isAsyncSupported":
+					// Waits for misses on the calling thread
+					return false;
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					attributes.put((String) args[0], args[1]);
+					return null;
+				default:
+					return defaultValue(method);
+				}
+			}
+		});
+	}
+
+	public static HttpServletResponse newResponse(Response response) {
+		return newProxy(HttpServletResponse.class, response);
+	}
+
+	private static <T> T newProxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(NewsFeedServletMocks.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else {
+			return null;
+		}
+	}
+
+	// Records what the servlet sends, and counts the body instead of keeping it
+	public static class Response implements InvocationHandler {
+
+		private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		private final CountingOutputStream out = new CountingOutputStream();
+		private int status = HttpServletResponse.SC_OK;
+
+		public void reset() {
+			headers.clear();
+			out.count = 0;
+			status = HttpServletResponse.SC_OK;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getHeader(String name) {
+			return headers.get(name);
+		}
+
+		public long getBodyLength() {
+			return out.count;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+			switch (method.getName()) {
+			case "setHeader":
+			case "addHeader":
+				headers.put((String) args[0], (String) args[1]);
+				return null;
+			case "setDateHeader":
+			case "addDateHeader":
+			case "setIntHeader":
+			case "addIntHeader":
+				headers.put((String) args[0], String.valueOf(args[1]));
+				return null;
+			case "setContentType":
+				headers.put("Content-Type", (String) args[0]);
+				return null;
+			case "setContentLength":
+				headers.put("Content-Length", String.valueOf(args[0]));
+				return null;
+			case "setStatus":
+			case "sendError":
+				status = (Integer) args[0];
+				return null;
+			case "getStatus":
+				return status;
+			case "getHeader":
+				return headers.get(args[0]);
+			case "getOutputStream":
+				return out;
+			default:
+				return defaultValue(method);
+			}
+		}
+
+	}
+
+	private static class CountingOutputStream extends ServletOutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+		}
+
+	}
+
+}
@@ -0,0 +1,142 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jsoup.HttpStatusException;
+
+/**
+ * <p>
+ * Denna klass skyddar HSB och oss själva när HSB inte svarar. Efter ett antal
+ * misslyckade hämtningar i rad från samma värd görs inga fler anrop dit under
+ * en stund, utan hämtningarna misslyckas direkt. Därefter släpps ett enda
+ * anrop igenom för att se om värden fungerar igen.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class CircuitBreakerNewsFeedFetcher implements NewsFeedFetcher {
+
+	private final NewsFeedFetcher fetcher;
+	private final int failureThreshold;
+	private final long openTime;
+	private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+	public CircuitBreakerNewsFeedFetcher(NewsFeedFetcher fetcher, int failureThreshold, long openTime) {
+		super();
+		this.fetcher = fetcher;
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	@Override
+	public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException {
+		Circuit circuit = getCircuit(url.getHost());
+		boolean success = false;
+
+		circuit.acquire(url.getHost(), System.currentTimeMillis());
+
+		try {
+			NewsFeedPage page = fetcher.fetch(url, etag, lastModified);
+
+			success = true;
+			return page;
+		} catch (HttpStatusException e) {
+			// The host answered, only overload and server errors count against it
+			success = e.getStatusCode() < 500 && e.getStatusCode() != 429;
+			throw e;
+		} finally {
+			circuit.release(success, System.currentTimeMillis());
+		}
+	}
+
+	public boolean isOpen(String host) {
+		Circuit circuit = circuits.get(host);
+
+		return circuit != null && circuit.isOpen(System.currentTimeMillis());
+	}
+
+	public int getOpenCount() {
+		long timeNow = System.currentTimeMillis();
+		int count = 0;
+
+		for (Circuit circuit : circuits.values()) {
+			if (circuit.isOpen(timeNow)) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private Circuit getCircuit(String host) {
+		Circuit circuit = circuits.get(host);
+
+		if (circuit == null) {
+			Circuit created = new Circuit();
+
+			circuit = circuits.putIfAbsent(host, created);
+			circuit = (circuit == null) ? created : circuit;
+		}
+
+		return circuit;
+	}
+
+	public static class CircuitOpenException extends IOException {
+
+		private static final long serialVersionUID = 2290405718426425836L;
+
+		private final long retryTime;
+
+		public CircuitOpenException(String host, long retryTime) {
+			super("Too many failed requests to " + host + ", not trying again before " + new Date(retryTime));
+			this.retryTime = retryTime;
+		}
+
+		public long getRetryTime() {
+			return retryTime;
+		}
+
+	}
+
+	private class Circuit {
+
+		private int failures;
+		private long openUntil;
+		private boolean trial;
+
+		private synchronized void acquire(String host, long timeNow) throws CircuitOpenException {
+			if (failures < failureThreshold) {
+				return;
+			} else if (timeNow < openUntil || trial) {
+				throw new CircuitOpenException(host, Math.max(openUntil, timeNow + 1000));
+			}
+
+			// Half open, let this request find out if the host is back
+			trial = true;
+		}
+
+		private synchronized void release(boolean success, long timeNow) {
+			trial = false;
+
+			if (success) {
+				failures = 0;
+			} else if (++failures >= failureThreshold) {
+				openUntil = timeNow + openTime;
+			}
+		}
+
+		private synchronized boolean isOpen(long timeNow) {
+			return failures >= failureThreshold && (timeNow < openUntil || trial);
+		}
+
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import org.jsoup.HttpStatusException;
+
+/**
+ * <p>
+ * Denna klass hämtar nyhetssidor med <code>HttpURLConnection</code>. Svaren
+ * läses alltid till slut så att anslutningen kan återanvändas av JDK:ns
+ * keep-alive-pool, och villkorliga anrop görs med <code>If-None-Match</code>
+ * och <code>If-Modified-Since</code>.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class HttpNewsFeedFetcher implements NewsFeedFetcher {
+
+	private static final int maxRedirects = 10;
+	private static final int maxBodySize = 16 * 1024 * 1024; // 16 MB
+
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	public HttpNewsFeedFetcher() {
+		this(3000, 10000);
+	}
+
+	public HttpNewsFeedFetcher(int connectTimeout, int readTimeout) {
+		super();
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException {
+		for (int redirects = 0; redirects <= maxRedirects; redirects++) {
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			int statusCode;
+
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			// Redirects between http and https are not followed by HttpURLConnection
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestProperty("User-Agent", NewsFeed.USER_AGENT);
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+
+			if (etag != null) {
+				connection.setRequestProperty("If-None-Match", etag);
+			}
+
+			if (lastModified != null) {
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+			}
+
+			statusCode = connection.getResponseCode();
+
+			if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				drain(connection);
+				return new NewsFeedPage(url, statusCode, new byte[0], null, etag, lastModified);
+			} else if (statusCode >= 300 && statusCode < 400 && connection.getHeaderField("Location") != null) {
+				URL location = new URL(url, connection.getHeaderField("Location"));
+
+				drain(connection);
+				url = location;
+			} else if (statusCode >= 200 && statusCode < 300) {
+				return new NewsFeedPage(url, statusCode, readBody(connection), getCharset(connection.getContentType()),
+						connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+			} else {
+				drain(connection);
+				throw new HttpStatusException("HTTP error fetching URL", statusCode, url.toString());
+			}
+		}
+
+		throw new IOException("Too many redirects fetching " + url);
+	}
+
+	private static byte[] readBody(HttpURLConnection connection) throws IOException {
+		// Content-Length comes from upstream, so it is never trusted beyond the limit
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.min(Math.max(connection.getContentLength(), 16384), maxBodySize));
+		byte[] b = new byte[8192];
+		int n;
+
+		try (InputStream in = openStream(connection)) {
+			while ((n = in.read(b)) >= 0) {
+				if (buffer.size() + n > maxBodySize) {
+					throw new IOException("Response too large: " + connection.getURL());
+				}
+
+				buffer.write(b, 0, n);
+			}
+		}
+
+		return buffer.toByteArray();
+	}
+
+	// Reading the rest of the response lets the connection go back to the pool
+	private static void drain(HttpURLConnection connection) {
+		InputStream in = connection.getErrorStream();
+
+		try {
+			if (in == null) {
+				in = connection.getInputStream();
+			}
+
+			try {
+				byte[] b = new byte[8192];
+
+				while (in.read(b) >= 0) {
+					// Discard
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		}
+	}
+
+	private static InputStream openStream(HttpURLConnection connection) throws IOException {
+		if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+			return new GZIPInputStream(connection.getInputStream());
+		} else {
+			return connection.getInputStream();
+		}
+	}
+
+	private static String getCharset(String contentType) {
+		if (contentType != null) {
+			for (String param : contentType.split(";")) {
+				param = param.trim();
+
+				if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+					return param.substring(8).replace("\"", "").trim();
+				}
+			}
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,62 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.net.URL;
+
+import org.jsoup.HttpStatusException;
+
+/**
+ * <p>
+ * Denna klass mäter tiden för varje hämtning som görs av en annan
+ * {@link NewsFeedFetcher}, och räknar svaren från HSB per region och
+ * HTTP-status.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class InstrumentedNewsFeedFetcher implements NewsFeedFetcher {
+
+	private final NewsFeedFetcher fetcher;
+	private final NewsFeedMetrics metrics;
+
+	public InstrumentedNewsFeedFetcher(NewsFeedFetcher fetcher, NewsFeedMetrics metrics) {
+		super();
+		this.fetcher = fetcher;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException {
+		long start = System.nanoTime();
+		int statusCode = -1;
+
+		try {
+			NewsFeedPage page = fetcher.fetch(url, etag, lastModified);
+
+			statusCode = page.getStatusCode();
+			return page;
+		} catch (HttpStatusException e) {
+			statusCode = e.getStatusCode();
+			throw e;
+		} finally {
+			metrics.recordFetch(getRegion(url), statusCode, System.nanoTime() - start);
+		}
+	}
+
+	// The first path segment, except for the news of all of HSB (URL_PATTERN_0)
+	private static String getRegion(URL url) {
+		String path = url.getPath();
+		int end = path.indexOf('/', 1);
+
+		if (end < 0) {
+			return "all";
+		}
+
+		return path.substring(1, end);
+	}
+
+}
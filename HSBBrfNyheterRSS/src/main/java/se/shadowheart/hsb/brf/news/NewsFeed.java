@@ -4,6 +4,7 @@
 package se.shadowheart.hsb.brf.news;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
@@ -13,18 +14,28 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
@@ -43,11 +54,36 @@ public class NewsFeed implements Serializable {
 
 	private static final long serialVersionUID = -869139278667191291L;
 	private static final FastDateFormat dateFormatIn = FastDateFormat.getInstance("dd MMMM yyyy", new Locale("sv"));
+	private static final NewsFeedFetcher defaultFetcher = new HttpNewsFeedFetcher();
+	private static final Comparator<NewsFeedItem> newestFirst = new Comparator<NewsFeedItem>() {
+		@Override
+		public int compare(NewsFeedItem item1, NewsFeedItem item2) {
+			if (!item1.hasDate() || !item2.hasDate()) {
+				// Items without a date last
+				return !item1.hasDate() ? (!item2.hasDate() ? 0 : 1) : -1;
+			}
+
+			return Long.compare(item2.getTime(), item1.getTime());
+		}
+	};
 
 	public static final String URL_PATTERN_0 = "https://www.hsb.se/nyheter";
 	public static final String URL_PATTERN_1 = "https://www.hsb.se/%1$s/om-hsb/nyheter";
 	public static final String URL_PATTERN_2 = "http://www.hsb.se/%1$s/brf/%2$s/nyheter";
 	public static final String USER_AGENT = "Mozilla";
+	public static final String TTL = "60";
+	public static final String IMAGE_URL = "http://www.hsb.se/globalassets/centralt-innehall/media/logo/hsblogo.png";
+
+	// Tag and class of the elements a feed is built from, the only parts of
+	// the page NewsFeedHtmlScanner hands over for parsing
+	static final String[] TITLE_ELEMENT = { "div", "brf-header-bottom-text" };
+	static final String[] REGION_NAME_ELEMENT = { "div", "regionname" };
+	static final String[] ITEM_LIST_ELEMENT = { "ul", "itemlist" };
+	static final String[][] FEED_ELEMENTS = { TITLE_ELEMENT, REGION_NAME_ELEMENT, ITEM_LIST_ELEMENT };
+
+	private static final String TITLE_SELECTOR = selector(TITLE_ELEMENT) + " > span";
+	private static final String REGION_NAME_SELECTOR = selector(REGION_NAME_ELEMENT);
+	private static final String ITEM_SELECTOR = selector(ITEM_LIST_ELEMENT) + " > li.item";
 
 	private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>() {
 
@@ -71,7 +107,16 @@ public class NewsFeed implements Serializable {
 	private final String title;
 	private final String description;
 	private final Date lastBuildDate;
-	private final List<NewsFeedItem> items = new ArrayList<>();
+	// Right-sized and never changed after construction
+	private final List<NewsFeedItem> items;
+
+	// Validators and fingerprint of the page this feed was built from, used
+	// to skip fetching and parsing pages that have not changed
+	private transient volatile String etag;
+	private transient volatile String lastModified;
+	private transient volatile long fingerprint;
+	// Nanoseconds spent building this feed from its page
+	private transient long parseTime;
 
 	public NewsFeed() throws IOException {
 		this(null, createURL());
@@ -102,7 +147,7 @@ public class NewsFeed implements Serializable {
 	}
 
 	private NewsFeed(String region, String brf, String title, String description) {
-		this(toString(createURL(region, brf)), title, description);
+		this(toString(getURL(region, brf)), title, description);
 	}
 
 	private NewsFeed(String url, String title, String description) {
@@ -111,41 +156,188 @@ public class NewsFeed implements Serializable {
 		this.title = title;
 		this.description = description;
 		this.lastBuildDate = new Date();
-		items.add(new NewsFeedItem(title, null, lastBuildDate, description));
+		this.items = Collections.singletonList(new NewsFeedItem(title, null, lastBuildDate, description));
+	}
+
+	NewsFeed(String url, String title, String description, Date lastBuildDate, List<NewsFeedItem> items) {
+		super();
+		this.url = url;
+		this.title = title;
+		this.description = description;
+		this.lastBuildDate = lastBuildDate;
+		this.items = toList(items);
 	}
 
 	private NewsFeed(NewsFeed prev, URL url) throws IOException {
+		this(prev, url, defaultFetcher.fetch(url, null, null));
+	}
+
+	private NewsFeed(NewsFeed prev, URL url, NewsFeedPage page) throws IOException {
 		super();
-		Document document = Jsoup.connect(toString(url)).userAgent(USER_AGENT).get();
-		String title = document.select("div.brf-header-bottom-text > span").text();
+		long start = System.nanoTime();
+		Document document = page.parseFeedRegions();
+		String title = document.select(TITLE_SELECTOR).text();
+		Map<String, NewsFeedItem> prevItems = NewsFeedDiff.indexByLink(prev);
+		List<NewsFeedItem> items = new ArrayList<>();
 		Date maxDate = null;
 
 		if (title == null || title.isEmpty()) {
-			title = document.select("div.regionname").text();
+			title = document.select(REGION_NAME_SELECTOR).text();
 		}
 
-		for (Element item : document.select("ul.itemlist > li.item")) {
-			maxDate = maxDate(maxDate, addItem(prev, url, item.select("a.linkclickarea").first()));
+		for (Element item : document.select(ITEM_SELECTOR)) {
+			maxDate = maxDate(maxDate, addItem(items, prevItems, url, item.select("a.linkclickarea").first()));
 		}
 
 		this.url = toString(url);
 		this.title = title;
 		this.description = "";
 		this.lastBuildDate = maxDate;
+		this.items = toList(items);
+		this.etag = page.getETag();
+		this.lastModified = page.getLastModified();
+		this.fingerprint = page.getFingerprint();
+		this.parseTime = System.nanoTime() - start;
+	}
+
+	private static String selector(String[] element) {
+		return element[0] + "." + element[1];
+	}
+
+	public static NewsFeed load(NewsFeed prev, NewsFeedFetcher fetcher) throws IOException {
+		return load(prev, createURL(), fetcher);
+	}
+
+	public static NewsFeed load(NewsFeed prev, String region, NewsFeedFetcher fetcher) throws IOException {
+		return load(prev, createURL(region), fetcher);
+	}
+
+	public static NewsFeed load(NewsFeed prev, String region, String brf, NewsFeedFetcher fetcher) throws IOException {
+		return load(prev, createURL(region, brf), fetcher);
+	}
+
+	public static CompletableFuture<NewsFeed> loadAsync(NewsFeed prev, NewsFeedFetcher fetcher, Executor executor) {
+		return loadAsync(prev, createURL(), fetcher, executor);
 	}
 
-	private Date addItem(NewsFeed prev, URL url, Element linkclickarea) throws MalformedURLException {
+	public static CompletableFuture<NewsFeed> loadAsync(NewsFeed prev, String region, NewsFeedFetcher fetcher, Executor executor) {
+		return loadAsync(prev, createURL(region), fetcher, executor);
+	}
+
+	public static CompletableFuture<NewsFeed> loadAsync(NewsFeed prev, String region, String brf, NewsFeedFetcher fetcher,
+			Executor executor) {
+		return loadAsync(prev, createURL(region, brf), fetcher, executor);
+	}
+
+	// Fetches and builds the feed on executor, the future completes on the same thread
+	private static CompletableFuture<NewsFeed> loadAsync(final NewsFeed prev, final URL url, final NewsFeedFetcher fetcher,
+			Executor executor) {
+		final CompletableFuture<NewsFeed> future = new CompletableFuture<>();
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(load(prev, url, fetcher));
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	// Returns prev itself when the page has not changed since prev was built
+	private static NewsFeed load(NewsFeed prev, URL url, NewsFeedFetcher fetcher) throws IOException {
+		NewsFeedPage page;
+
+		if (prev == null) {
+			return new NewsFeed(null, url, fetcher.fetch(url, null, null));
+		}
+
+		page = fetcher.fetch(url, prev.etag, prev.lastModified);
+
+		if (page.isNotModified()) {
+			return prev;
+		} else if (prev.fingerprint != 0 && prev.fingerprint == page.getFingerprint()) {
+			// Something else on the page changed, the news did not
+			prev.etag = page.getETag();
+			prev.lastModified = page.getLastModified();
+			return prev;
+		}
+
+		return new NewsFeed(prev, url, page);
+	}
+
+	// The items of all the feeds, newest first and each link only once
+	public static NewsFeed merge(List<NewsFeed> newsFeeds) {
+		List<NewsFeedItem> allItems = new ArrayList<>();
+		List<NewsFeedItem> mergedItems = new ArrayList<>();
+		Set<String> links = new HashSet<>();
+		List<String> titles = new ArrayList<>();
+		Date lastBuildDate = null;
+		String url = null;
+
+		for (NewsFeed newsFeed : newsFeeds) {
+			if (StringUtils.isNotEmpty(newsFeed.title)) {
+				titles.add(newsFeed.title);
+			}
+
+			// The last feed is the most specific one
+			url = newsFeed.url;
+			lastBuildDate = maxDate(lastBuildDate, newsFeed.lastBuildDate);
+			allItems.addAll(newsFeed.items);
+		}
+
+		// Stable, so equal dates keep the order of the feeds
+		Collections.sort(allItems, newestFirst);
+
+		for (NewsFeedItem item : allItems) {
+			if (item.getLink() == null || links.add(item.getLink())) {
+				mergedItems.add(item);
+			}
+		}
+
+		return new NewsFeed(url, StringUtils.join(titles, " / "), "", lastBuildDate, mergedItems);
+	}
+
+	// Items are shared between feeds, so they are never changed once created
+	private Date addItem(List<NewsFeedItem> items, Map<String, NewsFeedItem> prevItems, URL url, Element linkclickarea)
+			throws MalformedURLException {
 		Element iteminformation = select(linkclickarea, "div.iteminformation").first();
-		String title = selectFirstText(iteminformation, "h3");
+		Element h3 = null;
+		Element itemdescription = null;
+		Element itemdate = null;
+		String title;
 		String link = attr(linkclickarea, "href");
 		Date date;
-		String description = selectFirstText(iteminformation, "div.itemdescription");
+		String description;
 		NewsFeedItem newItem;
 		NewsFeedItem prevItem = null;
 		long now = System.currentTimeMillis();
 
+		// The first h3, div.itemdescription and div.itemdate in one pass,
+		// instead of one select for each
+		for (Element e : (iteminformation == null) ? new Elements() : iteminformation.getAllElements()) {
+			if (h3 == null && e.tagName().equals("h3")) {
+				h3 = e;
+			} else if (itemdescription == null && e.tagName().equals("div") && e.hasClass("itemdescription")) {
+				itemdescription = e;
+			} else if (itemdate == null && e.tagName().equals("div") && e.hasClass("itemdate")) {
+				itemdate = e;
+			}
+		}
+
+		title = text(h3);
+		description = text(itemdescription);
+
 		try {
-			date = dateFormatIn.parse(selectFirstText(iteminformation, "div.itemdate"));
+			date = dateFormatIn.parse(text(itemdate));
 		} catch (ParseException | RuntimeException e) {
 			date = null;
 		}
@@ -156,26 +348,34 @@ public class NewsFeed implements Serializable {
 			newItem = new NewsFeedItem(title, null, date, description);
 		}
 
-		if (prev != null && link != null) {
-			for (NewsFeedItem other : prev.items) {
-				if (newItem.getLink().equals(other.getLink())) {
-					prevItem = other;
-					break;
-				}
-			}
+		if (link != null) {
+			prevItem = prevItems.get(newItem.getLink());
 		}
 
+		// Today's items get the time they were first seen
 		if (date != null && DateUtils.isSameDay(new Date(now), date)) {
 			if (prevItem == null || !prevItem.equals(newItem)) {
-				newItem.getDate().setTime(now);
-			} else if (prevItem.getDate() != null) {
-				newItem.getDate().setTime(prevItem.getDate().getTime());
+				newItem = new NewsFeedItem(title, newItem.getLink(), new Date(now), description);
+			} else if (prevItem.hasDate()) {
+				newItem = prevItem;
 			}
 		}
 
+		newItem = NewsFeedItemInterner.intern(newItem);
 		items.add(newItem);
 
-		return date;
+		// The time it is published with, for lastBuildDate and Last-Modified
+		return newItem.getDate();
+	}
+
+	private static List<NewsFeedItem> toList(List<NewsFeedItem> items) {
+		return Arrays.asList(items.toArray(new NewsFeedItem[items.size()]));
+	}
+
+	// The page of the national feed if region is null, of the region's feed
+	// if brf is null, and otherwise of the brf's feed
+	public static URL getURL(String region, String brf) {
+		return (region == null) ? createURL() : (brf == null) ? createURL(region) : createURL(region, brf);
 	}
 
 	private static URL createURL() {
@@ -227,17 +427,43 @@ public class NewsFeed implements Serializable {
 		}
 	}
 
-	private String selectFirstText(Element element, String cssQuery) {
-		Element child = select(element, cssQuery).first();
-
-		if (child != null) {
-			return child.text();
+	private String text(Element element) {
+		if (element != null) {
+			return element.text();
 		} else {
 			return null;
 		}
 	}
 
+	public String getUrl() {
+		return url;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public List<NewsFeedItem> getItems() {
+		return Collections.unmodifiableList(items);
+	}
+
+	public Date getLastBuildDate() {
+		return lastBuildDate;
+	}
+
+	long getParseTime() {
+		return parseTime;
+	}
+
 	public org.w3c.dom.Document getDocument() {
+		return getDocument(Integer.parseInt(TTL));
+	}
+
+	public org.w3c.dom.Document getDocument(int ttl) {
 		org.w3c.dom.Document rss = createEmptyRss();
 		org.w3c.dom.Node channel = addChannel(rss.getDocumentElement(), title, url, description);
 		org.w3c.dom.Node refChild = channel.getLastChild();
@@ -254,7 +480,7 @@ public class NewsFeed implements Serializable {
 			channel.insertBefore(newChild, refChild);
 		}
 
-		channel.insertBefore(NewsFeedUtils.addTextChildElement(channel, "ttl", "60"), refChild);
+		channel.insertBefore(NewsFeedUtils.addTextChildElement(channel, "ttl", Integer.toString(ttl)), refChild);
 
 		return rss;
 	}
@@ -278,12 +504,12 @@ public class NewsFeed implements Serializable {
 		NewsFeedUtils.addTextChildElement(channel, "link", url);
 		NewsFeedUtils.addTextChildElement(channel, "description", description);
 		NewsFeedUtils.addTextChildElement(channel, "language", "sv");
-		NewsFeedUtils.addTextChildElement(channel, "copyright", "Copyright " + Calendar.getInstance().get(Calendar.YEAR) + ", HSB");
+		NewsFeedUtils.addTextChildElement(channel, "copyright", getCopyright());
 
 		image = d.createElement("image");
 		NewsFeedUtils.addTextChildElement(image, "title", "HSB");
 		NewsFeedUtils.addTextChildElement(image, "link", url);
-		NewsFeedUtils.addTextChildElement(image, "url", "http://www.hsb.se/globalassets/centralt-innehall/media/logo/hsblogo.png");
+		NewsFeedUtils.addTextChildElement(image, "url", IMAGE_URL);
 		NewsFeedUtils.addTextChildElement(image, "width", "181");
 		NewsFeedUtils.addTextChildElement(image, "height", "132");
 		channel.appendChild(image);
@@ -291,6 +517,62 @@ public class NewsFeed implements Serializable {
 		return channel;
 	}
 
+	public void writeTo(OutputStream out) throws IOException {
+		writeTo(out, Integer.parseInt(TTL));
+	}
+
+	// ttl is how many minutes readers may cache the feed
+	public void writeTo(OutputStream out, int ttl) throws IOException {
+		NewsFeedWriter writer = new NewsFeedWriter(out);
+
+		write(writer, ttl);
+		writer.flush();
+	}
+
+	public void write(NewsFeedWriter writer) throws IOException {
+		write(writer, Integer.parseInt(TTL));
+	}
+
+	public void write(NewsFeedWriter writer, int ttl) throws IOException {
+		write(writer, ttl, items.iterator());
+	}
+
+	// This feed with other items, e.g. read one at a time from a NewsFeedHistory
+	public void write(NewsFeedWriter writer, int ttl, Iterator<NewsFeedItem> items) throws IOException {
+		writer.writeStartDocument();
+		writer.writeStartElement("rss", "version", "2.0");
+		writer.writeStartElement("channel");
+		writer.writeTextElement("title", title);
+		writer.writeTextElement("link", url);
+		writer.writeTextElement("description", description);
+		writer.writeTextElement("language", "sv");
+		writer.writeTextElement("copyright", getCopyright());
+		writer.writeStartElement("image");
+		writer.writeTextElement("title", "HSB");
+		writer.writeTextElement("link", url);
+		writer.writeTextElement("url", IMAGE_URL);
+		writer.writeTextElement("width", "181");
+		writer.writeTextElement("height", "132");
+		writer.writeEndElement("image");
+
+		if (lastBuildDate != null) {
+			writer.writeDateTimeElement("lastBuildDate", lastBuildDate);
+		}
+
+		writer.writeTextElement("ttl", Integer.toString(ttl));
+
+		while (items.hasNext()) {
+			items.next().write(writer);
+		}
+
+		writer.writeEndElement("channel");
+		writer.writeEndElement("rss");
+	}
+
+	private static String getCopyright() {
+		return "Copyright " + Calendar.getInstance().get(Calendar.YEAR) + ", HSB";
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,272 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Denna klass begränsar hur många hämtningar från HSB som pågår samtidigt,
+ * totalt och per värd. Hämtningar som inte får starta direkt ställs i en
+ * begränsad kö där de med högst prioritet startas först. När kön är full
+ * avvisas den hämtning som har lägst prioritet direkt, med en uppskattning av
+ * när det är lönt att försöka igen, i stället för att alla hämtningar blir
+ * långsamma.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedAdmissionControl {
+
+	private static final long initialFetchTime = 1000; // ms
+	private static final double weight = 0.2;
+
+	private final Executor executor;
+	private final int maxRunning;
+	private final int maxRunningPerHost;
+	private final int maxQueued;
+	private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+	private final Map<String, Integer> runningPerHost = new HashMap<>();
+	private final LongAdder shed = new LongAdder();
+
+	private int running;
+	private long sequence;
+	private double averageFetchTime = initialFetchTime;
+	private boolean shutdown;
+
+	public NewsFeedAdmissionControl(Executor executor, int maxRunning, int maxRunningPerHost, int maxQueued) {
+		super();
+		this.executor = executor;
+		this.maxRunning = maxRunning;
+		this.maxRunningPerHost = maxRunningPerHost;
+		this.maxQueued = maxQueued;
+	}
+
+	// Runs callable on the executor once host has room for it. The future
+	// fails with OverloadedException if it is shed, the higher priority the
+	// less likely that is.
+	public <T> CompletableFuture<T> submit(String host, long priority, Callable<T> callable) {
+		Task<T> task = new Task<>(host, priority, callable);
+		Task<?> dropped = null;
+		List<Task<?>> started;
+
+		synchronized (this) {
+			if (shutdown) {
+				task.future.completeExceptionally(new CancellationException("Shut down"));
+				return task.future;
+			}
+
+			task.sequence = sequence++;
+
+			if (queue.size() >= maxQueued) {
+				dropped = getLowestPriority();
+
+				if (dropped == null || task.compareTo(dropped) > 0) {
+					// The new task is the one with the lowest priority
+					dropped = task;
+				} else {
+					queue.remove(dropped);
+				}
+			}
+
+			if (dropped != task) {
+				queue.add(task);
+			}
+
+			started = takeRunnable();
+		}
+
+		if (dropped != null) {
+			shed(dropped);
+		}
+
+		start(started);
+
+		return task.future;
+	}
+
+	public void shutdown() {
+		List<Task<?>> queued;
+
+		synchronized (this) {
+			shutdown = true;
+			queued = new ArrayList<>(queue);
+			queue.clear();
+		}
+
+		for (Task<?> task : queued) {
+			task.future.completeExceptionally(new CancellationException("Shut down"));
+		}
+	}
+
+	public synchronized int getQueueLength() {
+		return queue.size();
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public long getShedCount() {
+		return shed.sum();
+	}
+
+	private void shed(Task<?> task) {
+		long retryTime;
+
+		synchronized (this) {
+			// About when the tasks ahead of it would have finished
+			retryTime = System.currentTimeMillis() + Math.max(1000, (long) ((queue.size() + running) * averageFetchTime / maxRunning));
+		}
+
+		shed.increment();
+		task.future.completeExceptionally(new OverloadedException(task.host, retryTime));
+	}
+
+	// The queue is not sorted, so the lowest priority has to be searched for
+	private Task<?> getLowestPriority() {
+		Task<?> lowest = null;
+
+		for (Task<?> task : queue) {
+			if (lowest == null || task.compareTo(lowest) > 0) {
+				lowest = task;
+			}
+		}
+
+		return lowest;
+	}
+
+	// The queued tasks that may start now, in priority order, skipping those
+	// whose host already has as many fetches running as allowed
+	private List<Task<?>> takeRunnable() {
+		List<Task<?>> runnable = new ArrayList<>();
+		List<Task<?>> waiting = new ArrayList<>();
+
+		while (running < maxRunning && !queue.isEmpty()) {
+			Task<?> task = queue.poll();
+			Integer count = runningPerHost.get(task.host);
+
+			if (count == null || count < maxRunningPerHost) {
+				runningPerHost.put(task.host, (count == null) ? 1 : count + 1);
+				running++;
+				runnable.add(task);
+			} else {
+				waiting.add(task);
+			}
+		}
+
+		queue.addAll(waiting);
+
+		return runnable;
+	}
+
+	private void start(List<Task<?>> tasks) {
+		for (Task<?> task : tasks) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				task.future.completeExceptionally(e);
+				finished(task, -1);
+			}
+		}
+	}
+
+	private void finished(Task<?> task, long time) {
+		List<Task<?>> started;
+
+		synchronized (this) {
+			Integer count = runningPerHost.get(task.host);
+
+			if (count == null || count <= 1) {
+				runningPerHost.remove(task.host);
+			} else {
+				runningPerHost.put(task.host, count - 1);
+			}
+
+			running--;
+
+			if (time >= 0) {
+				averageFetchTime = (1 - weight) * averageFetchTime + weight * time;
+			}
+
+			started = takeRunnable();
+		}
+
+		start(started);
+	}
+
+	public static class OverloadedException extends IOException {
+
+		private static final long serialVersionUID = -2790310722434627014L;
+
+		private final long retryTime;
+
+		public OverloadedException(String host, long retryTime) {
+			super("Too many requests waiting for " + host + ", try again after " + new Date(retryTime));
+			this.retryTime = retryTime;
+		}
+
+		public long getRetryTime() {
+			return retryTime;
+		}
+
+	}
+
+	private class Task<T> implements Runnable, Comparable<Task<?>> {
+
+		private final String host;
+		private final long priority;
+		private final Callable<T> callable;
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		private long sequence;
+
+		private Task(String host, long priority, Callable<T> callable) {
+			super();
+			this.host = host;
+			this.priority = priority;
+			this.callable = callable;
+		}
+
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			T result;
+
+			// The next fetch may start before whoever waits for this one is done
+			try {
+				result = callable.call();
+			} catch (Throwable t) {
+				finished(this, System.currentTimeMillis() - start);
+				future.completeExceptionally(t);
+				return;
+			}
+
+			finished(this, System.currentTimeMillis() - start);
+			future.complete(result);
+		}
+
+		// The highest priority first, and the oldest first among equals
+		@Override
+		public int compareTo(Task<?> other) {
+			int c = Long.compare(other.priority, priority);
+
+			return (c != 0) ? c : Long.compare(sequence, other.sequence);
+		}
+
+	}
+
+}
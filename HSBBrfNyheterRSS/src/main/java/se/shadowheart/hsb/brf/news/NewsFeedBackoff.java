@@ -0,0 +1,66 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * Denna klass håller reda på misslyckade hämtningar av ett nyhetsflöde. Tiden
+ * till nästa försök fördubblas för varje misslyckande i rad, upp till en
+ * övre gräns, och slumpas så att flöden som slutade fungera samtidigt inte
+ * försöker igen samtidigt.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedBackoff {
+
+	private final int failures;
+	private final long failureTime;
+	private final long retryTime;
+	private final Throwable cause;
+
+	private NewsFeedBackoff(int failures, long failureTime, long retryTime, Throwable cause) {
+		super();
+		this.failures = failures;
+		this.failureTime = failureTime;
+		this.retryTime = retryTime;
+		this.cause = cause;
+	}
+
+	// The backoff after one more failure than prev, which may be null
+	public static NewsFeedBackoff next(NewsFeedBackoff prev, Throwable cause, long timeNow, long minDelay, long maxDelay) {
+		int failures = (prev == null) ? 1 : prev.failures + 1;
+		long delay = minDelay << Math.min(failures - 1, 20);
+
+		delay = Math.min(delay, maxDelay);
+		// Anywhere between half and all of the delay
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+		return new NewsFeedBackoff(failures, timeNow, timeNow + delay, cause);
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public long getFailureTime() {
+		return failureTime;
+	}
+
+	public long getRetryTime() {
+		return retryTime;
+	}
+
+	public Throwable getCause() {
+		return cause;
+	}
+
+	public boolean isActive(long timeNow) {
+		return timeNow < retryTime;
+	}
+
+}
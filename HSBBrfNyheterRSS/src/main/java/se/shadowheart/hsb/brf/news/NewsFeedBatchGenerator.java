@@ -0,0 +1,424 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
+
+/**
+ * <p>
+ * Denna klass genererar nyhetsflöden till statiska filer, så att de kan
+ * serveras direkt av en webbserver utan {@link NewsFeedServlet}. Flödena
+ * hämtas parallellt med ett begränsat antal trådar, och varje flöde skrivs
+ * till <code>&lt;katalog&gt;/&lt;region&gt;/&lt;brf&gt;/index.xml</code>
+ * (samt en gzip-komprimerad <code>index.xml.gz</code>) genom att en temporär
+ * fil döps om. Den tidigare genererade filen läses in och används som
+ * föregående flöde, så att nyheternas tider blir desamma som i servleten.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedBatchGenerator {
+
+	public static final String FILE_NAME = "index.xml";
+	public static final String GZIP_FILE_NAME = "index.xml.gz";
+
+	private static final FastDateFormat dateFormatRss = FastDateFormat.getInstance("E, dd MMM yyyy HH:mm:ss XXX", new Locale("en"));
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+	// The servlet's default refresh limits, for the ttl of the written feeds
+	private static final long minRefreshInterval = TimeUnit.MINUTES.toMillis(1);
+	private static final long maxRefreshInterval = TimeUnit.MINUTES.toMillis(360);
+
+	static {
+		// Our own files, but never resolve anything outside them
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private final File outputDir;
+	private final NewsFeedFetcher fetcher;
+	private final int threads;
+
+	public NewsFeedBatchGenerator(File outputDir, NewsFeedFetcher fetcher, int threads) {
+		super();
+		this.outputDir = outputDir;
+		this.fetcher = fetcher;
+		this.threads = threads;
+	}
+
+	// Generates the feeds for all keys ("", region or region/brf) and
+	// returns the keys that failed
+	public List<String> generate(Iterable<String> keys) throws InterruptedException {
+		final List<String> failed = new ArrayList<>();
+		final AtomicInteger threadNumber = new AtomicInteger();
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "NewsFeedBatchGenerator-" + threadNumber.incrementAndGet());
+
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+			for (final String key : keys) {
+				final String[] keyParts = StringUtils.split(key, "/");
+				final File file;
+				final CompletableFuture<Void> future = new CompletableFuture<>();
+				NewsFeed prev;
+
+				try {
+					file = getFile(keyParts);
+				} catch (IllegalArgumentException e) {
+					log(e.getMessage());
+
+					synchronized (failed) {
+						failed.add(key);
+					}
+
+					continue;
+				}
+
+				try {
+					prev = file.isFile() ? read(file) : null;
+				} catch (IOException e) {
+					// Start over, only today's items lose their time of day
+					log("Ignoring unreadable " + file + ": " + e.getMessage());
+					prev = null;
+				}
+
+				load(prev, keyParts, executor).whenComplete(new BiConsumer<NewsFeed, Throwable>() {
+					@Override
+					public void accept(NewsFeed newsFeed, Throwable t) {
+						try {
+							if (t != null) {
+								throw t;
+							} else if (write(newsFeed, file)) {
+								log("Wrote " + file);
+							}
+						} catch (Throwable e) {
+							log("Failed to generate news feed for \"" + key + "\": " + e.getMessage());
+
+							synchronized (failed) {
+								failed.add(key);
+							}
+						} finally {
+							future.complete(null);
+						}
+					}
+				});
+
+				futures.add(future);
+			}
+
+			try {
+				CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+			} catch (CompletionException e) {
+				// Every future completes normally, the failures are in failed
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return failed;
+	}
+
+	private CompletableFuture<NewsFeed> load(NewsFeed prev, String[] keyParts, ExecutorService executor) {
+		if (keyParts.length == 0) {
+			return NewsFeed.loadAsync(prev, fetcher, executor);
+		} else if (keyParts.length == 1) {
+			return NewsFeed.loadAsync(prev, keyParts[0], fetcher, executor);
+		} else {
+			return NewsFeed.loadAsync(prev, keyParts[0], keyParts[1], fetcher, executor);
+		}
+	}
+
+	public File getFile(String[] keyParts) {
+		Path dir = outputDir.toPath().normalize();
+		Path file = dir;
+
+		for (String part : keyParts) {
+			file = file.resolve(part);
+		}
+
+		file = file.resolve(FILE_NAME).normalize();
+
+		// Never write anywhere but below outputDir
+		if (!file.startsWith(dir) || file.getNameCount() != dir.getNameCount() + keyParts.length + 1) {
+			throw new IllegalArgumentException("Invalid news feed: " + StringUtils.join(keyParts, "/"));
+		}
+
+		return file.toFile();
+	}
+
+	// False if the file already had this content, which keeps its modification
+	// time for conditional requests to the static server
+	private static boolean write(NewsFeed newsFeed, File file) throws IOException {
+		// A static file has no refresh history, so the ttl comes from the item dates
+		NewsFeedRefreshSchedule schedule = NewsFeedRefreshSchedule.first(newsFeed, System.currentTimeMillis(), minRefreshInterval, maxRefreshInterval);
+		NewsFeedRendering rendering = NewsFeedRendering.render(newsFeed, schedule.getTtl());
+		byte[] body = rendering.getBody();
+
+		if (file.isFile() && file.length() == body.length && Arrays.equals(Files.readAllBytes(file.toPath()), body)) {
+			return false;
+		}
+
+		Files.createDirectories(file.getParentFile().toPath());
+		writeAtomically(new File(file.getParentFile(), GZIP_FILE_NAME), rendering, true);
+		writeAtomically(file, rendering, false);
+
+		return true;
+	}
+
+	private static void writeAtomically(File file, NewsFeedRendering rendering, boolean gzip) throws IOException {
+		File tmp = File.createTempFile("." + file.getName(), ".tmp", file.getParentFile());
+
+		try {
+			try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+				rendering.writeTo(out, gzip);
+			}
+
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	// Reads a feed written by NewsFeed.writeTo back, for use as prev
+	static NewsFeed read(File file) throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+			return read(in);
+		}
+	}
+
+	static NewsFeed read(InputStream in) throws IOException {
+		String url = null;
+		String title = null;
+		String description = null;
+		Date lastBuildDate = null;
+		List<NewsFeedItem> items = new ArrayList<>();
+		XMLStreamReader reader = null;
+
+		try {
+			reader = inputFactory.createXMLStreamReader(in, StandardCharsets.UTF_8.name());
+
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+
+				switch (reader.getLocalName()) {
+				case "title":
+					title = reader.getElementText();
+					break;
+				case "link":
+					url = reader.getElementText();
+					break;
+				case "description":
+					description = reader.getElementText();
+					break;
+				case "lastBuildDate":
+					lastBuildDate = parseDate(reader.getElementText());
+					break;
+				case "image":
+					skipElement(reader);
+					break;
+				case "item":
+					items.add(readItem(reader));
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			close(reader);
+		}
+
+		if (url == null) {
+			throw new IOException("Not a news feed");
+		}
+
+		return new NewsFeed(url, title, description, lastBuildDate, items);
+	}
+
+	private static NewsFeedItem readItem(XMLStreamReader reader) throws XMLStreamException, IOException {
+		String title = null;
+		String link = null;
+		Date date = null;
+		String desc = null;
+
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "title":
+				title = reader.getElementText();
+				break;
+			case "link":
+				link = reader.getElementText();
+				break;
+			case "description":
+				desc = StringEscapeUtils.unescapeHtml4(reader.getElementText());
+				break;
+			case "pubDate":
+				date = parseDate(reader.getElementText());
+				break;
+			default:
+				// The guid is derived from link and date
+				skipElement(reader);
+				break;
+			}
+		}
+
+		return new NewsFeedItem(title, link, date, desc);
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+
+		while (depth > 0) {
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private static Date parseDate(String s) throws IOException {
+		try {
+			return dateFormatRss.parse(s);
+		} catch (ParseException e) {
+			throw new IOException("Invalid date: " + s, e);
+		}
+	}
+
+	private static void close(XMLStreamReader reader) {
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// Nothing to release
+			}
+		}
+	}
+
+	private static void log(String message) {
+		System.err.println(message);
+	}
+
+	private static Set<String> readKeys(File file) throws IOException {
+		Set<String> keys = new LinkedHashSet<>();
+
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				keys.add(toKey(line));
+			}
+		}
+
+		return keys;
+	}
+
+	// "/" is the national feed, otherwise region or region/brf, and no part
+	// may lead outside the output directory
+	private static String toKey(String s) {
+		String[] parts = StringUtils.split(s, "/");
+
+		if (parts.length > 2) {
+			throw new IllegalArgumentException("Invalid news feed: " + s);
+		}
+
+		for (String part : parts) {
+			if (part.equals(".") || part.equals("..") || StringUtils.containsAny(part, '\\', ':', '\0')) {
+				throw new IllegalArgumentException("Invalid news feed: " + s);
+			}
+		}
+
+		return StringUtils.join(parts, "/");
+	}
+
+	private static void usage() {
+		System.err.println("Usage: NewsFeedBatchGenerator [-threads <n>] [-keys <file>] <output directory> [<region>[/<brf>] | /] ...");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Set<String> keys = new LinkedHashSet<>();
+		File outputDir = null;
+		int threads = 4;
+		List<String> failed;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-keys")) {
+					keys.addAll(readKeys(new File(args[++i])));
+				} else if (outputDir == null) {
+					outputDir = new File(args[i]);
+				} else {
+					keys.add(toKey(args[i]));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			usage();
+		}
+
+		if (outputDir == null || keys.isEmpty() || threads < 1) {
+			usage();
+		}
+
+		failed = new NewsFeedBatchGenerator(outputDir, new HttpNewsFeedFetcher(), threads).generate(keys);
+
+		if (!failed.isEmpty()) {
+			log("Failed to generate " + failed.size() + " of " + keys.size() + " news feeds: " + failed);
+			System.exit(1);
+		}
+	}
+
+}
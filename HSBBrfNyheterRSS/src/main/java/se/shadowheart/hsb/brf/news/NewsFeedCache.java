@@ -0,0 +1,243 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Denna klass är en begränsad cache för nyhetsflöden. Läsningar görs utan lås,
+ * och poster tas bort när cachen har för många poster, när den uppskattade
+ * storleken blir för stor, eller när en post inte har använts på länge. De
+ * poster som har använts minst nyligen tas bort först.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedCache {
+
+	private static final Comparator<Map.Entry<String, NewsFeedCacheEntry>> leastRecentlyUsed = new Comparator<Map.Entry<String, NewsFeedCacheEntry>>() {
+		@Override
+		public int compare(Map.Entry<String, NewsFeedCacheEntry> e1, Map.Entry<String, NewsFeedCacheEntry> e2) {
+			return Long.compare(e1.getValue().getLastAccess(), e2.getValue().getLastAccess());
+		}
+	};
+
+	private final ConcurrentHashMap<String, NewsFeedCacheEntry> entries = new ConcurrentHashMap<>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final AtomicLong weight = new AtomicLong();
+	private final int maxEntries;
+	private final long maxWeight;
+	private final long maxIdle;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder loadFailures = new LongAdder();
+	private final LongAdder sizeEvictions = new LongAdder();
+	private final LongAdder idleEvictions = new LongAdder();
+
+	public NewsFeedCache(int maxEntries, long maxWeight, long maxIdle) {
+		super();
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.maxIdle = maxIdle;
+	}
+
+	public NewsFeedCacheEntry get(String key) {
+		NewsFeedCacheEntry entry = entries.get(key);
+
+		if (entry != null) {
+			entry.touch(System.currentTimeMillis());
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+
+		return entry;
+	}
+
+	public NewsFeedCacheEntry peek(String key) {
+		return entries.get(key);
+	}
+
+	public NewsFeedCacheEntry put(String key, NewsFeedCacheEntry entry) {
+		NewsFeedCacheEntry prev = entries.put(key, entry);
+
+		weight.addAndGet(entry.getWeight() - ((prev == null) ? 0 : prev.getWeight()));
+
+		if (entries.size() > maxEntries || weight.get() > maxWeight) {
+			evict(false);
+		}
+
+		return prev;
+	}
+
+	// The entry already cached for key, or null if entry was added
+	public NewsFeedCacheEntry putIfAbsent(String key, NewsFeedCacheEntry entry) {
+		NewsFeedCacheEntry prev = entries.putIfAbsent(key, entry);
+
+		if (prev == null) {
+			weight.addAndGet(entry.getWeight());
+
+			if (entries.size() > maxEntries || weight.get() > maxWeight) {
+				evict(false);
+			}
+		}
+
+		return prev;
+	}
+
+	public void remove(String key) {
+		NewsFeedCacheEntry prev = entries.remove(key);
+
+		if (prev != null) {
+			weight.addAndGet(-prev.getWeight());
+		}
+	}
+
+	public void recordLoad(boolean success) {
+		if (success) {
+			loads.increment();
+		} else {
+			loadFailures.increment();
+		}
+	}
+
+	public void evictIdle() {
+		evict(true);
+	}
+
+	private void evict(boolean force) {
+		List<Map.Entry<String, NewsFeedCacheEntry>> candidates;
+		long idleLimit = System.currentTimeMillis() - maxIdle;
+		int targetEntries = maxEntries - maxEntries / 10;
+		long targetWeight = maxWeight - maxWeight / 10;
+
+		// Request threads never wait for an eviction that is already running
+		if (force) {
+			evictionLock.lock();
+		} else if (!evictionLock.tryLock()) {
+			return;
+		}
+
+		try {
+			candidates = new ArrayList<>(entries.size());
+
+			for (Map.Entry<String, NewsFeedCacheEntry> e : entries.entrySet()) {
+				Map.Entry<String, NewsFeedCacheEntry> candidate = new AbstractMap.SimpleImmutableEntry<>(e);
+
+				if (candidate.getValue().getLastAccess() >= idleLimit || !remove(candidate, idleEvictions)) {
+					candidates.add(candidate);
+				}
+			}
+
+			if (entries.size() <= maxEntries && weight.get() <= maxWeight) {
+				return;
+			}
+
+			// Evict down to 90% so that the next few puts do not evict again
+			Collections.sort(candidates, leastRecentlyUsed);
+
+			for (Map.Entry<String, NewsFeedCacheEntry> candidate : candidates) {
+				if (entries.size() <= targetEntries && weight.get() <= targetWeight) {
+					break;
+				}
+
+				remove(candidate, sizeEvictions);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private boolean remove(Map.Entry<String, NewsFeedCacheEntry> e, LongAdder counter) {
+		if (entries.remove(e.getKey(), e.getValue())) {
+			weight.addAndGet(-e.getValue().getWeight());
+			counter.increment();
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getWeight() {
+		return weight.get();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getLoads() {
+		return loads.sum();
+	}
+
+	public long getLoadFailures() {
+		return loadFailures.sum();
+	}
+
+	public long getSizeEvictions() {
+		return sizeEvictions.sum();
+	}
+
+	public long getIdleEvictions() {
+		return idleEvictions.sum();
+	}
+
+	// At most max keys, the most recently used first
+	public List<String> getMostRecentlyUsedKeys(int max) {
+		List<Map.Entry<String, NewsFeedCacheEntry>> candidates = new ArrayList<>(entries.size());
+		List<String> keys = new ArrayList<>();
+
+		for (Map.Entry<String, NewsFeedCacheEntry> e : entries.entrySet()) {
+			candidates.add(new AbstractMap.SimpleImmutableEntry<>(e));
+		}
+
+		Collections.sort(candidates, Collections.reverseOrder(leastRecentlyUsed));
+
+		for (Map.Entry<String, NewsFeedCacheEntry> candidate : candidates.subList(0, Math.min(max, candidates.size()))) {
+			keys.add(candidate.getKey());
+		}
+
+		return keys;
+	}
+
+	public Map<String, NewsFeed> getNewsFeeds() {
+		Map<String, NewsFeed> newsFeeds = new HashMap<>();
+
+		for (Map.Entry<String, NewsFeedCacheEntry> e : entries.entrySet()) {
+			newsFeeds.put(e.getKey(), e.getValue().getNewsFeed());
+		}
+
+		return newsFeeds;
+	}
+
+	@Override
+	public String toString() {
+		return "entries=" + entries.size() + "/" + maxEntries + ", weight=" + weight.get() + "/" + maxWeight + ", hits=" + hits.sum()
+				+ ", misses=" + misses.sum() + ", loads=" + loads.sum() + ", loadFailures=" + loadFailures.sum() + ", sizeEvictions="
+				+ sizeEvictions.sum() + ", idleEvictions=" + idleEvictions.sum();
+	}
+
+}
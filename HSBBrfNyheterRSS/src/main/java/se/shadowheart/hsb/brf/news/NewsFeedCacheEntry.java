@@ -0,0 +1,118 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Denna klass representerar ett nyhetsflöde i {@link NewsFeedCache},
+ * tillsammans med tidpunkten då det hämtades och dess färdiga RSS-rendering.
+ * Ett sammanslaget flöde minns också vilka flöden det byggdes av, och ett
+ * hämtat flöde när det ska hämtas nästa gång och hur många gånger det har
+ * efterfrågats sedan dess.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedCacheEntry {
+
+	private static final long baseWeight = 512; // entry, feed and map node overhead
+
+	private final NewsFeed newsFeed;
+	private final NewsFeedRendering rendering;
+	private final long refreshTime;
+	private final long weight;
+	private final List<NewsFeed> sources;
+	private final NewsFeedRefreshSchedule schedule;
+	private final LongAdder requests = new LongAdder();
+	private volatile long lastAccess;
+
+	public NewsFeedCacheEntry(NewsFeed newsFeed, NewsFeedRendering rendering, long refreshTime) {
+		this(newsFeed, rendering, refreshTime, null, Collections.<NewsFeed> emptyList());
+	}
+
+	public NewsFeedCacheEntry(NewsFeed newsFeed, NewsFeedRendering rendering, long refreshTime, NewsFeedRefreshSchedule schedule) {
+		this(newsFeed, rendering, refreshTime, schedule, Collections.<NewsFeed> emptyList());
+	}
+
+	public NewsFeedCacheEntry(NewsFeed newsFeed, NewsFeedRendering rendering, long refreshTime, List<NewsFeed> sources) {
+		this(newsFeed, rendering, refreshTime, null, sources);
+	}
+
+	private NewsFeedCacheEntry(NewsFeed newsFeed, NewsFeedRendering rendering, long refreshTime, NewsFeedRefreshSchedule schedule,
+			List<NewsFeed> sources) {
+		super();
+		this.newsFeed = newsFeed;
+		this.sources = sources;
+		this.schedule = schedule;
+		this.rendering = rendering;
+		this.refreshTime = refreshTime;
+		// The items keep their text in UTF-8, about half the body with the
+		// objects around it, and their encoded fragments, about the body again
+		this.weight = baseWeight + 5L * rendering.getContentLength() / 2 + rendering.getContentLength(true);
+		this.lastAccess = System.currentTimeMillis();
+	}
+
+	public NewsFeed getNewsFeed() {
+		return newsFeed;
+	}
+
+	public NewsFeedRendering getRendering() {
+		return rendering;
+	}
+
+	public long getRefreshTime() {
+		return refreshTime;
+	}
+
+	// Null for feeds that have not been refreshed since they were loaded
+	public NewsFeedRefreshSchedule getSchedule() {
+		return schedule;
+	}
+
+	public boolean isFresh(long timeNow) {
+		return schedule != null && isFresh(timeNow, schedule.getRefreshInterval());
+	}
+
+	public boolean isFresh(long timeNow, long refreshInterval) {
+		return timeNow < refreshTime + refreshInterval;
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	// True if this merged feed was built from exactly these feed instances
+	public boolean isBuiltFrom(List<NewsFeed> newsFeeds) {
+		if (sources.size() != newsFeeds.size()) {
+			return false;
+		}
+
+		for (int i = 0; i < sources.size(); i++) {
+			if (sources.get(i) != newsFeeds.get(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public long getWeight() {
+		return weight;
+	}
+
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+	void touch(long timeNow) {
+		lastAccess = timeNow;
+		requests.increment();
+	}
+
+}
@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * <p>
+ * Denna klass beskriver skillnaden mellan två versioner av ett nyhetsflöde:
+ * vilka nyheter som är nya, ändrade, oförändrade och borttagna. Nyheterna
+ * jämförs via sin länk, och nyheter utan länk via sitt innehåll. Det tidigare
+ * flödet indexeras en gång, så jämförelsen tar linjär tid oavsett hur många
+ * nyheter flödena har.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedDiff {
+
+	private final boolean headerChanged;
+	private final List<NewsFeedItem> added;
+	private final List<NewsFeedItem> changed;
+	private final List<NewsFeedItem> unchanged;
+	private final List<NewsFeedItem> removed;
+
+	private NewsFeedDiff(boolean headerChanged, List<NewsFeedItem> added, List<NewsFeedItem> changed, List<NewsFeedItem> unchanged,
+			List<NewsFeedItem> removed) {
+		super();
+		this.headerChanged = headerChanged;
+		this.added = Collections.unmodifiableList(added);
+		this.changed = Collections.unmodifiableList(changed);
+		this.unchanged = Collections.unmodifiableList(unchanged);
+		this.removed = Collections.unmodifiableList(removed);
+	}
+
+	// Everything in next is added if prev is null
+	public static NewsFeedDiff compare(NewsFeed prev, NewsFeed next) {
+		Map<String, NewsFeedItem> prevItems;
+		Map<Long, NewsFeedItem> prevUnlinked = new HashMap<>();
+		List<NewsFeedItem> added = new ArrayList<>();
+		List<NewsFeedItem> changed = new ArrayList<>();
+		List<NewsFeedItem> unchanged = new ArrayList<>();
+		List<NewsFeedItem> removed = new ArrayList<>();
+
+		if (prev == next) {
+			return new NewsFeedDiff(false, added, changed, new ArrayList<>(next.getItems()), removed);
+		} else if (prev == null) {
+			return new NewsFeedDiff(true, new ArrayList<>(next.getItems()), changed, unchanged, removed);
+		}
+
+		prevItems = indexByLink(prev);
+
+		for (NewsFeedItem item : prev.getItems()) {
+			if (item.getLink() == null) {
+				prevUnlinked.put(item.getContentHash(), item);
+			} else if (prevItems.get(item.getLink()) != item) {
+				// Only the first item with a link is compared
+				removed.add(item);
+			}
+		}
+
+		for (NewsFeedItem item : next.getItems()) {
+			NewsFeedItem prevItem;
+
+			// Each previous item is matched at most once
+			if (item.getLink() == null) {
+				prevItem = prevUnlinked.remove(item.getContentHash());
+			} else {
+				prevItem = prevItems.remove(item.getLink());
+			}
+
+			if (prevItem == null) {
+				added.add(item);
+			} else if (prevItem == item || prevItem.getContentHash() == item.getContentHash() && prevItem.equals(item)) {
+				unchanged.add(item);
+			} else {
+				changed.add(item);
+			}
+		}
+
+		removed.addAll(prevItems.values());
+		removed.addAll(prevUnlinked.values());
+
+		return new NewsFeedDiff(!Objects.equals(prev.getUrl(), next.getUrl()) || !Objects.equals(prev.getTitle(), next.getTitle())
+				|| !Objects.equals(prev.getDescription(), next.getDescription()), added, changed, unchanged, removed);
+	}
+
+	// The first item in newsFeed with each link
+	static Map<String, NewsFeedItem> indexByLink(NewsFeed newsFeed) {
+		Map<String, NewsFeedItem> items = new HashMap<>();
+
+		if (newsFeed != null) {
+			for (NewsFeedItem item : newsFeed.getItems()) {
+				if (item.getLink() != null && !items.containsKey(item.getLink())) {
+					items.put(item.getLink(), item);
+				}
+			}
+		}
+
+		return items;
+	}
+
+	// True if anything would have to be rendered or stored again
+	public boolean hasChanges() {
+		return headerChanged || !added.isEmpty() || !changed.isEmpty() || !removed.isEmpty();
+	}
+
+	public boolean isHeaderChanged() {
+		return headerChanged;
+	}
+
+	public List<NewsFeedItem> getAdded() {
+		return added;
+	}
+
+	public List<NewsFeedItem> getChanged() {
+		return changed;
+	}
+
+	public List<NewsFeedItem> getUnchanged() {
+		return unchanged;
+	}
+
+	public List<NewsFeedItem> getRemoved() {
+		return removed;
+	}
+
+	@Override
+	public String toString() {
+		return added.size() + " added, " + changed.size() + " changed, " + unchanged.size() + " unchanged, " + removed.size() + " removed";
+	}
+
+}
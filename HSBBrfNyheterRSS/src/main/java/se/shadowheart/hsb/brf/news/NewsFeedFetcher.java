@@ -0,0 +1,24 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * <p>
+ * Detta gränssnitt hämtar HTML-innehållet på en nyhetssida hos HSB. Om
+ * <code>etag</code> eller <code>lastModified</code> anges från en tidigare
+ * hämtning görs ett villkorligt anrop, och sidan returneras då utan innehåll
+ * om den inte har ändrats.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public interface NewsFeedFetcher {
+
+	public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException;
+
+}
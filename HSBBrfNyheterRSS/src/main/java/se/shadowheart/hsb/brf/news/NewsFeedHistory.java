@@ -0,0 +1,779 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>
+ * Denna klass arkiverar nyheterna i varje nyhetsflöde på disk, så att ett
+ * flöde kan visa fler nyheter än de få som finns kvar på HSB:s sida. Varje
+ * flöde har en egen fil där nya och ändrade nyheter bara läggs till sist, och
+ * ett litet index över nyheterna sparas bredvid den när den stängs eller
+ * skrivs om. När filen öppnas igen läses indexet och bara de nyheter som har
+ * lagts till efter det. Bara de senast använda flödena hålls öppna.
+ * </p>
+ * <p>
+ * Varje arkiv har ett eget lås, och det tas bara av de trådar som skriver,
+ * öppnar eller skriver om arkiven. Läsningar använder en ögonblicksbild av
+ * arkivets index och läser nyheterna från filen några i taget medan de
+ * skrivs ut, så minnet som behövs beror inte på hur många nyheter som
+ * efterfrågas. Ett arkiv som inte är öppet läses inte, det öppnas av
+ * {@link #open(String)} utanför anropets tråd. En fil som mest innehåller
+ * gamla versioner av nyheter skrivs om, och de äldsta nyheterna tas bort när
+ * ett flöde har fler än det högsta antalet. Anrop som lägger till nyheter
+ * blockerar aldrig, de skrivs till disk av {@link #flush()}.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedHistory {
+
+	private static final int MAGIC = 0x48534248; // "HSBH"
+	private static final int VERSION = 1;
+	private static final int ITEM_FIELDS_SIZE = 8 + 8 + 8;
+	private static final int maxOpenArchives = 64;
+	private static final int batchSize = 32;
+	private static final long minCompactionSize = 16 * 1024;
+	private static final long NO_DATE = Long.MIN_VALUE;
+	private static final Comparator<Entry> newestFirst = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			// Items without a date last
+			return Long.compare(e2.time, e1.time);
+		}
+	};
+
+	private final File dir;
+	private final int maxItems;
+	private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+	// The most recently used archives, only locked while looking them up
+	private final Map<String, Archive> archives = new LinkedHashMap<>(16, 0.75f, true);
+
+	public NewsFeedHistory(File dir, int maxItems) {
+		super();
+		this.dir = dir;
+		this.maxItems = maxItems;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public int getMaxItems() {
+		return maxItems;
+	}
+
+	// Appended to the archive of key by the next flush()
+	public void add(String key, Collection<NewsFeedItem> items) {
+		if (!items.isEmpty()) {
+			pending.add(new Pending(key, new ArrayList<>(items)));
+		}
+	}
+
+	public boolean isDirty() {
+		return !pending.isEmpty();
+	}
+
+	// Returns the number of items written, items already archived with the
+	// same content are skipped
+	public synchronized int flush() throws IOException {
+		List<Pending> failed = new ArrayList<>();
+		IOException failure = null;
+		Pending p;
+		int count = 0;
+
+		while ((p = pending.poll()) != null) {
+			try {
+				count += getArchive(p.key).append(p.items);
+			} catch (IOException e) {
+				// Write them again on the next flush, the other feeds first
+				failed.add(p);
+				failure = e;
+			}
+		}
+
+		pending.addAll(failed);
+
+		if (failure != null) {
+			throw failure;
+		}
+
+		return count;
+	}
+
+	// Opens the archive of key, and compacts it if it has grown a lot since
+	// it was last open, so that read() can use it
+	public void open(String key) throws IOException {
+		getArchive(key);
+	}
+
+	// The newest items of key, those in current merged with the archived ones
+	// and each link only once, or null if the archive is not open. The
+	// archived items are read a few at a time as the iterator is used, which
+	// throws UncheckedIOException if that fails.
+	public Iterator<NewsFeedItem> read(String key, List<NewsFeedItem> current, long since, int limit) {
+		Archive archive;
+		ArchiveSnapshot snapshot;
+		List<Entry> currentEntries = new ArrayList<>(current.size());
+		Set<Long> identities = new HashSet<>();
+		List<Entry> archived;
+		List<Entry> entries = new ArrayList<>();
+		int i = 0;
+		int j = 0;
+
+		synchronized (archives) {
+			archive = archives.get(key);
+		}
+
+		if (archive == null || (snapshot = archive.snapshot) == null) {
+			return null;
+		}
+
+		archived = snapshot.byDate;
+
+		for (NewsFeedItem item : current) {
+			if (identities.add(item.getIdentityHash())) {
+				currentEntries.add(new Entry(item));
+			}
+		}
+
+		// Stable, so equal dates keep the order of the page
+		Collections.sort(currentEntries, newestFirst);
+
+		while (entries.size() < limit) {
+			Entry next;
+
+			while (j < archived.size() && identities.contains(archived.get(j).identity)) {
+				j++;
+			}
+
+			if (i < currentEntries.size() && (j == archived.size() || currentEntries.get(i).time >= archived.get(j).time)) {
+				next = currentEntries.get(i++);
+			} else if (j < archived.size()) {
+				next = archived.get(j++);
+			} else {
+				break;
+			}
+
+			// The rest are older still
+			if (next.time < since) {
+				break;
+			}
+
+			entries.add(next);
+		}
+
+		return new HistoryIterator(archive, snapshot, entries);
+	}
+
+	// Rewrites the open archives that are mostly old versions of items.
+	// Returns the number of archives rewritten.
+	public synchronized int compact() throws IOException {
+		int count = 0;
+
+		for (Archive archive : getArchives()) {
+			if (archive.compactIfNeeded()) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	public synchronized void close() throws IOException {
+		List<Archive> closing = getArchives();
+		IOException failure = null;
+
+		synchronized (archives) {
+			archives.clear();
+		}
+
+		for (Archive archive : closing) {
+			try {
+				archive.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private List<Archive> getArchives() {
+		synchronized (archives) {
+			return new ArrayList<>(archives.values());
+		}
+	}
+
+	// Only locks archives to look it up, the archive is opened with its own lock
+	private Archive getArchive(String key) throws IOException {
+		List<Archive> evicted = new ArrayList<>();
+		Archive archive;
+
+		synchronized (archives) {
+			archive = archives.get(key);
+
+			if (archive == null) {
+				Iterator<Archive> it;
+
+				archive = new Archive(key, new File(dir, String.format("%016x.dat", NewsFeedItem.hash(key))));
+				archives.put(key, archive);
+				it = archives.values().iterator();
+
+				while (archives.size() > maxOpenArchives) {
+					evicted.add(it.next());
+					it.remove();
+				}
+			}
+		}
+
+		for (Archive a : evicted) {
+			try {
+				a.close();
+			} catch (IOException e) {
+				// Everything was forced to disk when it was written
+			}
+		}
+
+		archive.open();
+
+		return archive;
+	}
+
+	// identity hash (8), content hash (8), date (8), payload length (4),
+	// payload, CRC32 of payload (4)
+	private static ByteBuffer encodeRecord(NewsFeedItem item) throws IOException {
+		ByteBuffer fields = ByteBuffer.allocate(ITEM_FIELDS_SIZE);
+
+		fields.putLong(item.getIdentityHash()).putLong(item.getContentHash()).putLong(item.hasDate() ? item.getTime() : NO_DATE);
+
+		return NewsFeedRecordLog.encodeRecord(fields.array(), NewsFeedStore.encodeItem(item));
+	}
+
+	// Null at the end of the file or at a torn or corrupt record
+	private static Entry readEntry(DataInputStream in, long position) throws IOException {
+		long identity;
+		long contentHash;
+		long time;
+		byte[] payload;
+
+		try {
+			identity = in.readLong();
+			contentHash = in.readLong();
+			time = in.readLong();
+			payload = NewsFeedRecordLog.readPayload(in);
+		} catch (EOFException e) {
+			return null;
+		}
+
+		if (payload == null) {
+			return null;
+		}
+
+		return new Entry(identity, contentHash, time, position, NewsFeedRecordLog.getRecordSize(ITEM_FIELDS_SIZE, payload.length));
+	}
+
+	private class Archive {
+
+		private final String key;
+		private final NewsFeedRecordLog log;
+		// The latest version of each item
+		private final Map<Long, Entry> index = new HashMap<>();
+
+		private List<Entry> byDate;
+		private long liveSize;
+		private long garbageSize;
+		// Evicted or closed with the history, never opened again
+		private boolean closed;
+		// What read() sees, null unless open
+		private volatile ArchiveSnapshot snapshot;
+
+		private Archive(String key, File file) {
+			super();
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+
+			this.key = key;
+			this.log = new NewsFeedRecordLog(file, ByteBuffer.allocate(4 + 4 + 4 + k.length).putInt(MAGIC).putInt(VERSION).putInt(k.length).put(k).array());
+		}
+
+		private synchronized void open() throws IOException {
+			long position;
+
+			if (closed) {
+				throw new IOException("The archive of \"" + key + "\" is closed");
+			} else if (log.getChannel() != null) {
+				return;
+			}
+
+			clear();
+
+			try {
+				log.open();
+
+				// Some other feed's or version's archive
+				if (!log.hasHeader()) {
+					log.moveAside();
+				}
+
+				position = readIndex();
+
+				if (position < 0) {
+					// Anything the index left behind
+					clear();
+					position = log.getHeaderSize();
+				}
+
+				position = readEntries(position);
+				log.truncate(position);
+			} catch (IOException e) {
+				log.close();
+				throw e;
+			}
+
+			byDate = null;
+			trim();
+			publish();
+
+			// It may have grown a lot since it was last open
+			if (isCompactionNeeded()) {
+				compact();
+			}
+		}
+
+		// Returns the position after the last complete record
+		private long readEntries(long position) throws IOException {
+			// Not closed, that would close the file
+			DataInputStream in = log.newInputStream(position);
+
+			while (true) {
+				Entry entry = readEntry(in, position);
+
+				if (entry == null) {
+					return position;
+				}
+
+				setIndex(entry);
+				position += entry.size;
+			}
+		}
+
+		private synchronized int append(List<NewsFeedItem> items) throws IOException {
+			Map<Long, Entry> added = new LinkedHashMap<>();
+			List<ByteBuffer> buffers = new ArrayList<>();
+			long position;
+
+			if (closed) {
+				// Evicted by another thread, the next flush opens it again
+				throw new IOException("The archive of \"" + key + "\" is closed");
+			}
+
+			position = log.getChannel().position();
+
+			for (NewsFeedItem item : items) {
+				Entry prev = added.containsKey(item.getIdentityHash()) ? added.get(item.getIdentityHash()) : index.get(item.getIdentityHash());
+				ByteBuffer buffer;
+				Entry entry;
+
+				if (prev != null && prev.contentHash == item.getContentHash()) {
+					continue;
+				}
+
+				buffer = encodeRecord(item);
+				entry = new Entry(item.getIdentityHash(), item.getContentHash(), item.hasDate() ? item.getTime() : NO_DATE, position,
+						buffer.remaining());
+				buffers.add(buffer);
+				position += entry.size;
+				added.put(entry.identity, entry);
+			}
+
+			if (buffers.isEmpty()) {
+				return 0;
+			}
+
+			// Only indexed once all of them are on disk
+			log.append(buffers);
+
+			for (Entry entry : added.values()) {
+				setIndex(entry);
+			}
+
+			trim();
+			publish();
+
+			return buffers.size();
+		}
+
+		private void clear() {
+			index.clear();
+			byDate = null;
+			liveSize = 0;
+			garbageSize = 0;
+		}
+
+		private void setIndex(Entry entry) {
+			Entry prev = index.put(entry.identity, entry);
+
+			liveSize += entry.size;
+
+			if (prev != null) {
+				liveSize -= prev.size;
+				garbageSize += prev.size;
+			}
+
+			byDate = null;
+		}
+
+		// Only the newest maxItems are kept, the rest are left for compaction
+		// to remove from the file
+		private void trim() {
+			List<Entry> entries;
+
+			if (index.size() <= maxItems) {
+				return;
+			}
+
+			entries = getByDate();
+
+			for (Entry entry : entries.subList(maxItems, entries.size())) {
+				index.remove(entry.identity);
+				liveSize -= entry.size;
+				garbageSize += entry.size;
+			}
+
+			byDate = null;
+		}
+
+		private List<Entry> getByDate() {
+			if (byDate == null) {
+				byDate = new ArrayList<>(index.values());
+				Collections.sort(byDate, newestFirst);
+			}
+
+			return byDate;
+		}
+
+		private void publish() {
+			snapshot = new ArchiveSnapshot(log.getChannel(), new HashMap<>(index), getByDate());
+		}
+
+		private boolean isCompactionNeeded() {
+			return garbageSize > minCompactionSize && garbageSize > liveSize;
+		}
+
+		private synchronized boolean compactIfNeeded() throws IOException {
+			if (log.getChannel() == null || !isCompactionNeeded()) {
+				return false;
+			}
+
+			compact();
+
+			return true;
+		}
+
+		// The oldest first, so that the file stays in about the same order
+		// as if it had only been appended to
+		private void compact() throws IOException {
+			File tmp = log.createTemp();
+			List<Entry> entries = new ArrayList<>(getByDate());
+			Map<Long, Entry> compacted = new HashMap<>();
+			long position = log.getHeaderSize();
+
+			Collections.reverse(entries);
+
+			try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				for (Entry entry : entries) {
+					NewsFeedRecordLog.writeFully(out, NewsFeedRecordLog.read(log.getChannel(), entry.position, entry.size));
+					compacted.put(entry.identity, new Entry(entry.identity, entry.contentHash, entry.time, position, entry.size));
+					position += entry.size;
+				}
+
+				out.force(true);
+			} catch (IOException e) {
+				tmp.delete();
+				throw e;
+			}
+
+			try {
+				log.replace(tmp);
+				index.clear();
+				index.putAll(compacted);
+				byDate = null;
+				liveSize = position - log.getHeaderSize();
+				garbageSize = 0;
+			} finally {
+				// The compacted file, or the original one if it could not be replaced
+				publish();
+			}
+
+			writeIndex();
+		}
+
+		private NewsFeedItem readItem(FileChannel channel, Entry entry) throws IOException {
+			ByteBuffer buffer = NewsFeedRecordLog.read(channel, entry.position, entry.size);
+
+			// A file rewritten since the entry was read from it
+			if (buffer.getLong(0) != entry.identity) {
+				throw new IOException("No record of the item at " + entry.position + " in " + log.getFile());
+			}
+
+			buffer.position(ITEM_FIELDS_SIZE);
+
+			return NewsFeedStore.decodeItem(log.readPayload(buffer, entry.position));
+		}
+
+		// The garbage size and the entries, each with where it is in the file
+		private void writeIndex() throws IOException {
+			log.writeIndex(new NewsFeedRecordLog.IndexWriter() {
+				@Override
+				public void write(DataOutput out) throws IOException {
+					out.writeLong(garbageSize);
+					out.writeInt(index.size());
+
+					for (Entry entry : index.values()) {
+						out.writeLong(entry.identity);
+						out.writeLong(entry.contentHash);
+						out.writeLong(entry.time);
+						out.writeLong(entry.position);
+						out.writeInt(entry.size);
+					}
+				}
+			});
+		}
+
+		// Where the file has to be read from after the index, or -1 if there
+		// is no index of it
+		private long readIndex() throws IOException {
+			return log.readIndex(new NewsFeedRecordLog.IndexReader() {
+				@Override
+				public void read(DataInput in) throws IOException {
+					garbageSize = in.readLong();
+
+					for (int i = in.readInt(); i > 0; i--) {
+						setIndex(new Entry(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt()));
+					}
+				}
+			});
+		}
+
+		// Writes the index first, so that the next open() only has to read it
+		private synchronized void close() throws IOException {
+			closed = true;
+
+			if (log.getChannel() != null) {
+				try {
+					writeIndex();
+				} finally {
+					log.close();
+					snapshot = null;
+				}
+			}
+		}
+
+	}
+
+	private static class ArchiveSnapshot {
+
+		private final FileChannel channel;
+		private final Map<Long, Entry> index;
+		private final List<Entry> byDate;
+
+		private ArchiveSnapshot(FileChannel channel, Map<Long, Entry> index, List<Entry> byDate) {
+			super();
+			this.channel = channel;
+			this.index = index;
+			this.byDate = byDate;
+		}
+
+	}
+
+	private class HistoryIterator implements Iterator<NewsFeedItem> {
+
+		private final Archive archive;
+		// The snapshot the entries are from
+		private final ArchiveSnapshot selected;
+		private final List<Entry> entries;
+		private final Queue<NewsFeedItem> batch = new ArrayDeque<>(batchSize);
+		private ArchiveSnapshot snapshot;
+		// Opened by the iterator itself when the archive was closed
+		private FileChannel channel;
+		private int next;
+
+		private HistoryIterator(Archive archive, ArchiveSnapshot snapshot, List<Entry> entries) {
+			super();
+			this.archive = archive;
+			this.selected = snapshot;
+			this.snapshot = snapshot;
+			this.entries = entries;
+		}
+
+		@Override
+		public boolean hasNext() {
+			// Entries removed by a compaction in the meantime are skipped
+			try {
+				while (batch.isEmpty() && next < entries.size()) {
+					readBatch();
+				}
+
+				if (next == entries.size()) {
+					closeChannel();
+				}
+			} catch (IOException e) {
+				closeChannel();
+				throw new UncheckedIOException(e);
+			}
+
+			return !batch.isEmpty();
+		}
+
+		@Override
+		public NewsFeedItem next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return batch.remove();
+		}
+
+		// Takes no lock unless the archive was compacted or closed meanwhile
+		private void readBatch() throws IOException {
+			for (; next < entries.size() && batch.size() < batchSize; next++) {
+				Entry entry = entries.get(next);
+
+				if (entry.item != null) {
+					batch.add(entry.item);
+					continue;
+				}
+
+				// Compacted since the entries were selected
+				if (snapshot.channel != selected.channel) {
+					entry = snapshot.index.get(entry.identity);
+
+					if (entry == null) {
+						continue;
+					}
+				}
+
+				try {
+					batch.add(archive.readItem(snapshot.channel, entry));
+				} catch (ClosedChannelException e) {
+					snapshot = reopen(e);
+					// The same entry again, in the new file
+					next--;
+				}
+			}
+		}
+
+		// The archive was compacted, evicted or closed while reading it
+		private ArchiveSnapshot reopen(ClosedChannelException e) throws IOException {
+			Archive current;
+
+			// The new file is published before the lock is released
+			synchronized (archive) {
+				if (archive.snapshot != null && archive.snapshot.channel != snapshot.channel) {
+					return archive.snapshot;
+				}
+			}
+
+			synchronized (archives) {
+				current = archives.get(archive.key);
+			}
+
+			if (current != null && current != archive && current.snapshot != null) {
+				// Opened again since
+				return current.snapshot;
+			} else if (channel != null) {
+				throw e;
+			}
+
+			// Read-only, it is not indexed or appended to by anyone. readItem()
+			// notices if the file has been rewritten since.
+			channel = FileChannel.open(archive.log.getFile().toPath(), StandardOpenOption.READ);
+
+			return new ArchiveSnapshot(channel, snapshot.index, snapshot.byDate);
+		}
+
+		private void closeChannel() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Only read
+				}
+
+				channel = null;
+			}
+		}
+
+	}
+
+	// An item in an archive, or one of the current items when item is set
+	private static class Entry {
+
+		private final long identity;
+		private final long contentHash;
+		private final long time;
+		private final long position;
+		private final int size;
+		private NewsFeedItem item;
+
+		private Entry(long identity, long contentHash, long time, long position, int size) {
+			super();
+			this.identity = identity;
+			this.contentHash = contentHash;
+			this.time = time;
+			this.position = position;
+			this.size = size;
+		}
+
+		private Entry(NewsFeedItem item) {
+			this(item.getIdentityHash(), item.getContentHash(), item.hasDate() ? item.getTime() : NO_DATE, -1, 0);
+			this.item = item;
+		}
+
+	}
+
+	private static class Pending {
+
+		private final String key;
+		private final List<NewsFeedItem> items;
+
+		private Pending(String key, List<NewsFeedItem> items) {
+			super();
+			this.key = key;
+			this.items = items;
+		}
+
+	}
+
+}
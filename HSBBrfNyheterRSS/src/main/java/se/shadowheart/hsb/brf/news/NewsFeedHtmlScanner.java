@@ -0,0 +1,335 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Denna klass letar upp de delar av en nyhetssidas HTML som nyhetsflödet
+ * byggs från, direkt i de hämtade byten och utan att tolka sidan. Det räcker
+ * för att avgöra om sidan har ändrats sedan förra hämtningen, och för att bara
+ * de delarna av sidan ska behöva tolkas. Kommentarer, CDATA och innehållet i
+ * <code>script</code> och <code>style</code> hoppas över, så att markup i
+ * dem inte tas för sidans egen.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedHtmlScanner {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	// Elements whose content is never markup
+	private static final String[] rawTextElements = { "script", "style" };
+	private static final Comparator<int[]> byStart = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] region1, int[] region2) {
+			return Integer.compare(region1[0], region2[0]);
+		}
+	};
+
+	private final byte[] html;
+
+	public NewsFeedHtmlScanner(byte[] html) {
+		super();
+		this.html = html;
+	}
+
+	// The regions NewsFeed reads, the title and the item list, in the order
+	// they appear on the page. A region inside another is left out, it is
+	// already part of the outer one.
+	public List<int[]> findFeedRegions() {
+		List<int[]> elements = new ArrayList<>();
+		List<int[]> regions = new ArrayList<>();
+		int end = 0;
+
+		for (String[] element : NewsFeed.FEED_ELEMENTS) {
+			elements.addAll(findElements(element[0], element[1]));
+		}
+
+		Collections.sort(elements, byStart);
+
+		for (int[] element : elements) {
+			if (element[0] >= end) {
+				regions.add(element);
+				end = element[1];
+			}
+		}
+
+		return regions;
+	}
+
+	public long fingerprint() {
+		return fingerprint(findFeedRegions());
+	}
+
+	// Regions from findFeedRegions, so the page only has to be scanned once
+	public long fingerprint(List<int[]> regions) {
+		long hash = FNV_OFFSET_BASIS;
+
+		if (regions.isEmpty()) {
+			return fnv1a(hash, 0, html.length);
+		}
+
+		for (int[] region : regions) {
+			hash = fnv1a(hash, region[0], region[1]);
+		}
+
+		return hash;
+	}
+
+	private long fnv1a(long hash, int start, int end) {
+		for (int i = start; i < end; i++) {
+			hash ^= html[i] & 0xff;
+			hash *= FNV_PRIME;
+		}
+
+		return hash;
+	}
+
+	// Start (inclusive) and end (exclusive) of each <tag class="className">
+	// element, including its start and end tags
+	public List<int[]> findElements(String tag, String className) {
+		List<int[]> elements = new ArrayList<>();
+		int i = 0;
+
+		while ((i = indexOfStartTag(tag, i)) >= 0) {
+			int tagEnd = indexOfTagEnd(i);
+
+			if (tagEnd < 0) {
+				break;
+			} else if (hasClass(i, tagEnd, className)) {
+				int end = indexOfElementEnd(tag, tagEnd + 1);
+
+				elements.add(new int[] { i, end });
+				i = end;
+			} else {
+				i = tagEnd + 1;
+			}
+		}
+
+		return elements;
+	}
+
+	private int indexOfStartTag(String tag, int from) {
+		for (int i = from; i < html.length - tag.length() - 1; i++) {
+			int next;
+
+			if (html[i] != '<') {
+				continue;
+			} else if ((next = skipIgnored(i)) > i) {
+				i = next - 1;
+			} else if (regionMatches(i + 1, tag) && isTagNameEnd(html[i + 1 + tag.length()])) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	// Counts nested elements with the same name, unclosed ones end the page
+	private int indexOfElementEnd(String tag, int from) {
+		int depth = 1;
+
+		for (int i = from; i < html.length - tag.length() - 2; i++) {
+			int next;
+
+			if (html[i] != '<') {
+				continue;
+			} else if ((next = skipIgnored(i)) > i) {
+				i = next - 1;
+			} else if (html[i + 1] == '/' && regionMatches(i + 2, tag) && isTagNameEnd(html[i + 2 + tag.length()])) {
+				if (--depth == 0) {
+					int end = indexOf('>', i);
+
+					return (end < 0) ? html.length : end + 1;
+				}
+			} else if (regionMatches(i + 1, tag) && isTagNameEnd(html[i + 1 + tag.length()])) {
+				depth++;
+			}
+		}
+
+		return html.length;
+	}
+
+	// The end after a comment, CDATA section or script or style element that
+	// starts at i, or i if none does
+	private int skipIgnored(int i) {
+		if (regionMatches(i, "<!--")) {
+			return indexOfEnd("-->", i + 4);
+		} else if (regionMatches(i, "<![cdata[")) {
+			return indexOfEnd("]]>", i + 9);
+		}
+
+		for (String tag : rawTextElements) {
+			if (i + 1 + tag.length() < html.length && regionMatches(i + 1, tag) && isTagNameEnd(html[i + 1 + tag.length()])) {
+				int end = indexOf("</" + tag, i + 1 + tag.length(), html.length);
+
+				end = (end < 0) ? -1 : indexOf('>', end);
+
+				return (end < 0) ? html.length : end + 1;
+			}
+		}
+
+		return i;
+	}
+
+	private int indexOfEnd(String s, int from) {
+		int i = indexOf(s, from, html.length);
+
+		return (i < 0) ? html.length : i + s.length();
+	}
+
+	// The '>' that ends the tag starting at tagStart, skipping quoted values
+	private int indexOfTagEnd(int tagStart) {
+		for (int i = tagStart; i < html.length; i++) {
+			if (html[i] == '"' || html[i] == '\'') {
+				int end = indexOf(html[i], i + 1);
+
+				if (end < 0) {
+					// Unbalanced quote, as a browser would not but good enough
+					return indexOf('>', i);
+				}
+
+				i = end;
+			} else if (html[i] == '>') {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	// Goes through the attributes, so that neither "data-class=" nor
+	// "class=" inside another attribute's value is taken for the class
+	private boolean hasClass(int tagStart, int tagEnd, String className) {
+		int i = tagStart + 1;
+
+		while (i < tagEnd && !isTagNameEnd(html[i])) {
+			i++;
+		}
+
+		while (i < tagEnd) {
+			int nameStart;
+			int nameEnd;
+			int valueStart;
+			int valueEnd;
+
+			while (i < tagEnd && (isWhitespace(html[i]) || html[i] == '/')) {
+				i++;
+			}
+
+			for (nameStart = i; i < tagEnd && html[i] != '=' && html[i] != '/' && !isWhitespace(html[i]); i++) {
+				// Attribute name
+			}
+
+			nameEnd = i;
+
+			while (i < tagEnd && isWhitespace(html[i])) {
+				i++;
+			}
+
+			if (i >= tagEnd || html[i] != '=') {
+				// No value
+				continue;
+			}
+
+			i++;
+
+			while (i < tagEnd && isWhitespace(html[i])) {
+				i++;
+			}
+
+			if (i < tagEnd && (html[i] == '"' || html[i] == '\'')) {
+				valueStart = i + 1;
+				valueEnd = indexOf(html[i], valueStart);
+				valueEnd = (valueEnd < 0 || valueEnd > tagEnd) ? tagEnd : valueEnd;
+				i = valueEnd + 1;
+			} else {
+				for (valueStart = i; i < tagEnd && !isWhitespace(html[i]); i++) {
+					// Unquoted value
+				}
+
+				valueEnd = i;
+			}
+
+			if (nameEnd - nameStart == 5 && regionMatches(nameStart, "class")) {
+				return hasToken(valueStart, valueEnd, className);
+			}
+		}
+
+		return false;
+	}
+
+	// Looks for token as a whole word in the attribute value
+	private boolean hasToken(int start, int end, String token) {
+		for (int j = start; j <= end - token.length(); j++) {
+			if (regionMatches(j, token) && (j == start || isWhitespace(html[j - 1]))
+					&& (j + token.length() == end || isWhitespace(html[j + token.length()]))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private int indexOf(char c, int from) {
+		return indexOf((byte) c, from);
+	}
+
+	private int indexOf(byte b, int from) {
+		for (int i = from; i < html.length; i++) {
+			if (html[i] == b) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private int indexOf(String s, int from, int to) {
+		for (int i = from; i <= to - s.length(); i++) {
+			if (regionMatches(i, s)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	// ASCII case-insensitive, which is all HTML markup needs
+	private boolean regionMatches(int offset, String s) {
+		if (offset + s.length() > html.length) {
+			return false;
+		}
+
+		for (int i = 0; i < s.length(); i++) {
+			int b = html[offset + i];
+
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+
+			if (b != s.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isTagNameEnd(byte b) {
+		return b == '>' || b == '/' || isWhitespace(b);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+	}
+
+}
@@ -3,17 +3,29 @@
  */
 package se.shadowheart.hsb.brf.news;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
 
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
 
 /**
  * <p>
  * Denna klass representerar en nyhet i ett nyhetsflöde i RSS 2.0-format för en
- * bostadsrättsförening hos HSB.
+ * bostadsrättsförening hos HSB. En nyhet ändras aldrig och delas mellan
+ * flödena, så den hålls så liten som möjligt: texterna sparas i UTF-8 och
+ * datumet som millisekunder. Nyhetens XML kodas bara en gång, första gången
+ * den skrivs ut, och återanvänds sedan i alla flöden den ingår i.
  * </p>
  * 
  * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
@@ -23,63 +35,133 @@ public class NewsFeedItem implements Serializable {
 
 	private static final long serialVersionUID = -5366133004525746453L;
 	private static final FastDateFormat dateFormatGUID = FastDateFormat.getInstance("yyyyMMddHHmmss", new Locale("en"));
+	private static final long NO_DATE = Long.MIN_VALUE;
+	// The fields of earlier versions, so that their .ser files can still be read
+	private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("title", String.class),
+			new ObjectStreamField("link", String.class), new ObjectStreamField("guid", String.class), new ObjectStreamField("date", Date.class),
+			new ObjectStreamField("desc", String.class) };
 
-	private final String title;
-	private final String link;
-	private final String guid;
-	private final Date date;
-	private final String desc;
+	// Only assigned by the constructor and readObject
+	private byte[] title;
+	private byte[] link;
+	private long date;
+	private byte[] desc;
+	private transient int hashCode;
+	private transient long contentHash;
+	// The encoded <item> element, rendered the first time it is needed
+	private transient volatile byte[] fragment;
 
 	public NewsFeedItem(String title, String link, Date date, String desc) {
 		super();
-		this.title = title;
-		this.link = link;
-		this.date = date;
-		this.desc = desc;
-
-		if (link == null) {
-			this.guid = null;
-		} else if (date != null) {
-			this.guid = link + "#" + dateFormatGUID.format(date);
-		} else {
-			this.guid = link;
-		}
+		this.title = toBytes(title);
+		this.link = toBytes(link);
+		this.date = (date == null) ? NO_DATE : date.getTime();
+		this.desc = toBytes(desc);
 	}
 
 	public String getTitle() {
-		return title;
+		return toString(title);
 	}
 
 	public String getLink() {
-		return link;
+		return toString(link);
 	}
 
 	public String getGuid() {
-		return guid;
+		if (link == null) {
+			return null;
+		} else if (date != NO_DATE) {
+			// The day the item was published, not the time it was first seen
+			return getLink() + "#" + dateFormatGUID.format(DateUtils.truncate(new Date(date), Calendar.DATE));
+		} else {
+			return getLink();
+		}
 	}
 
+	// A copy, items never change
 	public Date getDate() {
+		return (date == NO_DATE) ? null : new Date(date);
+	}
+
+	public boolean hasDate() {
+		return date != NO_DATE;
+	}
+
+	// Milliseconds since the epoch, only valid if hasDate()
+	public long getTime() {
 		return date;
 	}
 
 	public String getDesc() {
-		return desc;
+		return toString(desc);
+	}
+
+	// 64-bit hash of all fields, including the date, that identifies the item
+	// in NewsFeedItemInterner and NewsFeedStore
+	public long getContentHash() {
+		long h = contentHash;
+
+		if (h == 0) {
+			h = hash(0xcbf29ce484222325L, getLink());
+			h = hash(h, getTitle());
+			h = hash(h, getDesc());
+			h = mix((h ^ ((date == NO_DATE) ? -1 : date)) * 0x100000001b3L);
+			contentHash = h = (h == 0) ? 1 : h;
+		}
+
+		return h;
+	}
+
+	// Hash of the link, or of all fields if there is none, that stays the
+	// same when the text or date of the item changes
+	long getIdentityHash() {
+		return (link == null) ? getContentHash() : hash(getLink());
+	}
+
+	// 64-bit hash of s, with the same function as the item hashes
+	static long hash(String s) {
+		return mix(hash(0xcbf29ce484222325L, s));
+	}
+
+	// The MurmurHash3 finalizer spreads the FNV-1a bits
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	private static long hash(long h, String s) {
+		if (s == null) {
+			return (h ^ 0xffff) * 0x100000001b3L;
+		}
+
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+
+		// Separator, so that ("ab", "c") and ("a", "bc") differ
+		return (h ^ 0x10000) * 0x100000001b3L;
 	}
 
 	public org.w3c.dom.Element addToChannel(org.w3c.dom.Node channel) {
 		org.w3c.dom.Document d = channel.getOwnerDocument();
 		org.w3c.dom.Element item = d.createElement("item");
+		String guid = getGuid();
 
-		NewsFeedUtils.addTextChildElement(item, "title", title);
-		NewsFeedUtils.addTextChildElement(item, "link", link);
-		NewsFeedUtils.addTextChildElement(item, "description", StringEscapeUtils.escapeHtml4(desc));
+		NewsFeedUtils.addTextChildElement(item, "title", getTitle());
+		NewsFeedUtils.addTextChildElement(item, "link", getLink());
+		NewsFeedUtils.addTextChildElement(item, "description", StringEscapeUtils.escapeHtml4(getDesc()));
 
 		if (guid != null) {
 			NewsFeedUtils.addTextChildElement(item, "guid", guid);
 		}
 
-		if (date != null) {
-			NewsFeedUtils.addDateTimeChildElement(item, "pubDate", date);
+		if (date != NO_DATE) {
+			NewsFeedUtils.addDateTimeChildElement(item, "pubDate", new Date(date));
 		}
 
 		channel.appendChild(item);
@@ -87,15 +169,96 @@ public class NewsFeedItem implements Serializable {
 		return item;
 	}
 
+	// Items never change, so they are only encoded once no matter how many
+	// feeds and renderings they are part of
+	public void write(NewsFeedWriter writer) throws IOException {
+		writer.writeRaw(getFragment());
+	}
+
+	byte[] getFragment() throws IOException {
+		byte[] f = fragment;
+
+		if (f == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			NewsFeedWriter writer = new NewsFeedWriter(out);
+
+			writeElement(writer);
+			writer.flush();
+			f = out.toByteArray();
+			fragment = f;
+		}
+
+		return f;
+	}
+
+	private void writeElement(NewsFeedWriter writer) throws IOException {
+		writer.writeStartElement("item");
+		writer.writeTextElement("title", title);
+		writer.writeTextElement("link", link);
+		writer.writeTextElement("description", StringEscapeUtils.escapeHtml4(getDesc()));
+
+		if (link != null) {
+			writer.writeStartElement("guid");
+			writer.writeText(link);
+
+			if (date != NO_DATE) {
+				writer.writeText("#" + dateFormatGUID.format(DateUtils.truncate(new Date(date), Calendar.DATE)));
+			}
+
+			writer.writeEndElement("guid");
+		}
+
+		if (date != NO_DATE) {
+			writer.writeDateTimeElement("pubDate", date);
+		}
+
+		writer.writeEndElement("item");
+	}
+
+	private static byte[] toBytes(String s) {
+		return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String toString(byte[] b) {
+		return (b == null) ? null : new String(b, StandardCharsets.UTF_8);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+
+		fields.put("title", getTitle());
+		fields.put("link", getLink());
+		fields.put("guid", getGuid());
+		fields.put("date", getDate());
+		fields.put("desc", getDesc());
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		Date date = (Date) fields.get("date", null);
+
+		this.title = toBytes((String) fields.get("title", null));
+		this.link = toBytes((String) fields.get("link", null));
+		this.date = (date == null) ? NO_DATE : date.getTime();
+		this.desc = toBytes((String) fields.get("desc", null));
+	}
+
+	// The date is not compared, an item keeps its identity when it is re-dated
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((date == null) ? 0 : date.hashCode());
-		result = prime * result + ((desc == null) ? 0 : desc.hashCode());
-		result = prime * result + ((link == null) ? 0 : link.hashCode());
-		result = prime * result + ((title == null) ? 0 : title.hashCode());
-		return result;
+		int h = hashCode;
+
+		if (h == 0) {
+			final int prime = 31;
+			h = 1;
+			h = prime * h + Arrays.hashCode(desc);
+			h = prime * h + Arrays.hashCode(link);
+			h = prime * h + Arrays.hashCode(title);
+			hashCode = h;
+		}
+
+		return h;
 	}
 
 	@Override
@@ -107,22 +270,9 @@ public class NewsFeedItem implements Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		NewsFeedItem other = (NewsFeedItem) obj;
-		if (desc == null) {
-			if (other.desc != null)
-				return false;
-		} else if (!desc.equals(other.desc))
-			return false;
-		if (link == null) {
-			if (other.link != null)
-				return false;
-		} else if (!link.equals(other.link))
-			return false;
-		if (title == null) {
-			if (other.title != null)
-				return false;
-		} else if (!title.equals(other.title))
+		if (hashCode() != other.hashCode())
 			return false;
-		return true;
+		return Arrays.equals(desc, other.desc) && Arrays.equals(link, other.link) && Arrays.equals(title, other.title);
 	}
 
 }
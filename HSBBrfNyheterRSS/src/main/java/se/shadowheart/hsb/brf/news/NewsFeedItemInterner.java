@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Denna klass ser till att nyheter med samma länk och innehåll delas mellan
+ * alla nyhetsflöden, i stället för att varje flöde har en egen kopia. Samma
+ * nationella och regionala nyheter finns i flödena för många föreningar.
+ * Nyheter som inte längre finns i något flöde kan tas bort av skräpsamlaren.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedItemInterner {
+
+	private static final ConcurrentHashMap<Long, ItemReference> items = new ConcurrentHashMap<>();
+	private static final ReferenceQueue<NewsFeedItem> queue = new ReferenceQueue<>();
+
+	private NewsFeedItemInterner() {
+		super();
+	}
+
+	// The shared instance equal to item, which becomes the shared one if
+	// there is none
+	public static NewsFeedItem intern(NewsFeedItem item) {
+		Long key = item.getContentHash();
+
+		expungeStaleReferences();
+
+		while (true) {
+			ItemReference ref = items.get(key);
+			NewsFeedItem existing = (ref == null) ? null : ref.get();
+			ItemReference newRef;
+
+			if (existing != null) {
+				// Different items with the same hash are simply not shared
+				return isSame(existing, item) ? existing : item;
+			}
+
+			newRef = new ItemReference(item, key, queue);
+
+			if ((ref == null) ? items.putIfAbsent(key, newRef) == null : items.replace(key, ref, newRef)) {
+				return item;
+			}
+		}
+	}
+
+	public static int size() {
+		expungeStaleReferences();
+
+		return items.size();
+	}
+
+	// NewsFeedItem.equals does not compare the dates
+	static boolean isSame(NewsFeedItem item1, NewsFeedItem item2) {
+		return item1.equals(item2) && item1.hasDate() == item2.hasDate() && item1.getTime() == item2.getTime();
+	}
+
+	private static void expungeStaleReferences() {
+		Reference<? extends NewsFeedItem> ref;
+
+		while ((ref = queue.poll()) != null) {
+			items.remove(((ItemReference) ref).key, ref);
+		}
+	}
+
+	private static class ItemReference extends WeakReference<NewsFeedItem> {
+
+		private final Long key;
+
+		private ItemReference(NewsFeedItem item, Long key, ReferenceQueue<NewsFeedItem> queue) {
+			super(item, queue);
+			this.key = key;
+		}
+
+	}
+
+}
@@ -0,0 +1,244 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.servlet.ServletContext;
+
+/**
+ * <p>
+ * Denna klass samlar mätvärden för nyhetsflödena: räknare och histogram över
+ * hämtningar från HSB, tolkning, rendering, cachen och sparandet till disk.
+ * Att räkna upp ett värde allokerar inget och tar inga lås. Värdena skrivs ut i
+ * Prometheus textformat av <code>NewsFeedMetricsServlet</code>, och delas
+ * mellan servletarna som ett attribut i <code>ServletContext</code>.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedMetrics {
+
+	public static final String ATTRIBUTE = NewsFeedMetrics.class.getName();
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+
+	private static final String PREFIX = "hsb_newsfeed_";
+	private static final int maxUpstreamLabels = 200;
+	private static final double[] defaultBuckets = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+			5, 10 };
+
+	private final Histogram fetchTime = new Histogram("upstream_fetch_seconds", "Time to fetch a news page from HSB");
+	private final Histogram parseTime = new Histogram("parse_seconds", "Time to build a feed from a fetched news page");
+	private final Histogram renderTime = new Histogram("render_seconds", "Time to render a feed as RSS");
+	private final Histogram saveTime = new Histogram("store_save_seconds", "Time to save changed feeds to disk");
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheStale = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> upstreamResponses = new ConcurrentHashMap<>();
+	private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+	// Both servlets may be the first to ask for it
+	public static NewsFeedMetrics get(ServletContext context) {
+		synchronized (context) {
+			NewsFeedMetrics metrics = (NewsFeedMetrics) context.getAttribute(ATTRIBUTE);
+
+			if (metrics == null) {
+				metrics = new NewsFeedMetrics();
+				context.setAttribute(ATTRIBUTE, metrics);
+			}
+
+			return metrics;
+		}
+	}
+
+	public void recordFetch(String region, int statusCode, long nanos) {
+		String status = (statusCode < 0) ? "error" : Integer.toString(statusCode);
+		String key = "region=\"" + escape(region) + "\",status=\"" + status + "\"";
+		LongAdder counter = upstreamResponses.get(key);
+
+		fetchTime.observe(nanos);
+
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+
+			// Region names come from request URIs, so keep the number of series bounded
+			if (upstreamResponses.size() >= maxUpstreamLabels) {
+				key = "region=\"other\",status=\"" + status + "\"";
+			}
+
+			counter = upstreamResponses.putIfAbsent(key, created);
+			counter = (counter == null) ? created : counter;
+		}
+
+		counter.increment();
+	}
+
+	public void recordParse(long nanos) {
+		parseTime.observe(nanos);
+	}
+
+	public void recordRender(long nanos) {
+		renderTime.observe(nanos);
+	}
+
+	public void recordSave(long nanos) {
+		saveTime.observe(nanos);
+	}
+
+	public void countHit() {
+		cacheHits.increment();
+	}
+
+	public void countStale() {
+		cacheStale.increment();
+	}
+
+	public void countMiss() {
+		cacheMisses.increment();
+	}
+
+	public void countNegative() {
+		negativeHits.increment();
+	}
+
+	public void registerGauge(String name, String help, LongSupplier value) {
+		gauges.put(name, new Gauge(name, help, "gauge", value));
+	}
+
+	public void registerCounter(String name, String help, LongSupplier value) {
+		gauges.put(name, new Gauge(name, help, "counter", value));
+	}
+
+	public void unregister(String name) {
+		gauges.remove(name);
+	}
+
+	public void writeTo(Writer out) throws IOException {
+		writeHeader(out, "requests_total", "Feed requests by how the cache answered them", "counter");
+		writeSample(out, "requests_total", "cache=\"hit\"", cacheHits.sum());
+		writeSample(out, "requests_total", "cache=\"stale\"", cacheStale.sum());
+		writeSample(out, "requests_total", "cache=\"miss\"", cacheMisses.sum());
+		writeSample(out, "requests_total", "cache=\"negative\"", negativeHits.sum());
+
+		writeHeader(out, "upstream_responses_total", "Responses from HSB by region and HTTP status", "counter");
+
+		for (Map.Entry<String, LongAdder> e : upstreamResponses.entrySet()) {
+			writeSample(out, "upstream_responses_total", e.getKey(), e.getValue().sum());
+		}
+
+		fetchTime.writeTo(out);
+		parseTime.writeTo(out);
+		renderTime.writeTo(out);
+		saveTime.writeTo(out);
+
+		for (Gauge gauge : gauges.values()) {
+			writeHeader(out, gauge.name, gauge.help, gauge.type);
+			writeSample(out, gauge.name, null, gauge.value.getAsLong());
+		}
+	}
+
+	private static void writeHeader(Writer out, String name, String help, String type) throws IOException {
+		out.write("# HELP " + PREFIX + name + " " + help + "\n");
+		out.write("# TYPE " + PREFIX + name + " " + type + "\n");
+	}
+
+	private static void writeSample(Writer out, String name, String labels, Object value) throws IOException {
+		out.write(PREFIX + name);
+
+		if (labels != null) {
+			out.write("{" + labels + "}");
+		}
+
+		out.write(" " + value + "\n");
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static double toSeconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	// Fixed buckets, observing a value is a scan and two adds
+	private static class Histogram {
+
+		private final String name;
+		private final String help;
+		private final long[] bounds;
+		private final LongAdder[] counts;
+		private final LongAdder sum = new LongAdder();
+
+		private Histogram(String name, String help) {
+			super();
+			this.name = name;
+			this.help = help;
+			this.bounds = new long[defaultBuckets.length];
+			this.counts = new LongAdder[defaultBuckets.length + 1];
+
+			for (int i = 0; i < defaultBuckets.length; i++) {
+				bounds[i] = (long) (defaultBuckets[i] * TimeUnit.SECONDS.toNanos(1));
+			}
+
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+
+		private void observe(long nanos) {
+			int i = 0;
+
+			while (i < bounds.length && nanos > bounds[i]) {
+				i++;
+			}
+
+			counts[i].increment();
+			sum.add(nanos);
+		}
+
+		private void writeTo(Writer out) throws IOException {
+			long count = 0;
+
+			writeHeader(out, name, help, "histogram");
+
+			// Prometheus buckets are cumulative
+			for (int i = 0; i < counts.length; i++) {
+				count += counts[i].sum();
+				writeSample(out, name + "_bucket", "le=\"" + ((i < bounds.length) ? Double.toString(defaultBuckets[i]) : "+Inf") + "\"",
+						count);
+			}
+
+			writeSample(out, name + "_sum", null, toSeconds(sum.sum()));
+			writeSample(out, name + "_count", null, count);
+		}
+
+	}
+
+	private static class Gauge {
+
+		private final String name;
+		private final String help;
+		private final String type;
+		private final LongSupplier value;
+
+		private Gauge(String name, String help, String type, LongSupplier value) {
+			super();
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+		}
+
+	}
+
+}
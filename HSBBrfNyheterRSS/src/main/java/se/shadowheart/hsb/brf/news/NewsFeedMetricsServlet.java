@@ -0,0 +1,47 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Servlet som visar mätvärdena från {@link NewsFeedMetrics} i Prometheus
+ * textformat.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+@WebServlet(name = "NewsFeedMetricsServlet", urlPatterns = { "/metrics" })
+public class NewsFeedMetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = -3377046380152413513L;
+
+	private NewsFeedMetrics metrics;
+
+	@Override
+	public void init() throws ServletException {
+		metrics = NewsFeedMetrics.get(getServletContext());
+	}
+
+	@Override
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		Writer out;
+
+		resp.setContentType(NewsFeedMetrics.CONTENT_TYPE);
+		resp.setHeader("Cache-Control", "no-cache");
+		out = resp.getWriter();
+		metrics.writeTo(out);
+		out.flush();
+	}
+
+}
@@ -0,0 +1,92 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Denna klass minns nycklar som HSB har svarat 404 på, så att samma felaktiga
+ * region eller förening inte hämtas igen vid varje anrop. Bara en 64-bitars
+ * hash av nyckeln och en tidpunkt sparas, och aldrig fler än ett fast antal,
+ * så minnet är begränsat hur många nycklar som än provas. Två nycklar med
+ * samma hash förväxlas, men det är osannolikt nog att inte spela någon roll.
+ * Uppslag görs utan lås eftersom de sker vid varje anrop. När tabellen är full
+ * ersätts den post som går ut först.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedNegativeCache {
+
+	private final ConcurrentHashMap<Long, Long> expiryTimes = new ConcurrentHashMap<>();
+	private final int capacity;
+	private final long ttl;
+
+	public NewsFeedNegativeCache(int capacity, long ttl) {
+		super();
+		this.capacity = Math.max(capacity, 1);
+		this.ttl = ttl;
+	}
+
+	public boolean contains(String key, long timeNow) {
+		Long expiryTime = expiryTimes.get(NewsFeedItem.hash(key));
+
+		return expiryTime != null && timeNow < expiryTime;
+	}
+
+	// Only called after an upstream 404, so the lock never meets a request
+	public synchronized void add(String key, long timeNow) {
+		Long fingerprint = NewsFeedItem.hash(key);
+
+		if (!expiryTimes.containsKey(fingerprint) && expiryTimes.size() >= capacity) {
+			evict(timeNow);
+		}
+
+		expiryTimes.put(fingerprint, timeNow + ttl);
+	}
+
+	public void remove(String key) {
+		expiryTimes.remove(NewsFeedItem.hash(key));
+	}
+
+	public int size(long timeNow) {
+		int size = 0;
+
+		for (Long expiryTime : expiryTimes.values()) {
+			if (timeNow < expiryTime) {
+				size++;
+			}
+		}
+
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	// Drops everything expired, or else the entry that expires first
+	private void evict(long timeNow) {
+		Map.Entry<Long, Long> first = null;
+
+		for (Iterator<Map.Entry<Long, Long>> i = expiryTimes.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Long, Long> e = i.next();
+
+			if (e.getValue() <= timeNow) {
+				i.remove();
+			} else if (first == null || e.getValue() < first.getValue()) {
+				first = e;
+			}
+		}
+
+		if (expiryTimes.size() >= capacity && first != null) {
+			expiryTimes.remove(first.getKey());
+		}
+	}
+
+}
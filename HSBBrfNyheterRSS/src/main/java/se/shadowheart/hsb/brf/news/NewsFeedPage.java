@@ -0,0 +1,123 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.List;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+/**
+ * <p>
+ * Denna klass representerar en nyhetssida som har hämtats med en
+ * {@link NewsFeedFetcher}, med dess HTML-innehåll och de värden som behövs för
+ * att nästa hämtning ska kunna göras villkorligt.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedPage {
+
+	private final URL url;
+	private final int statusCode;
+	private final byte[] body;
+	private final String charset;
+	private final String etag;
+	private final String lastModified;
+	private List<int[]> feedRegions;
+	private long fingerprint;
+
+	public NewsFeedPage(URL url, int statusCode, byte[] body, String charset, String etag, String lastModified) {
+		super();
+		this.url = url;
+		this.statusCode = statusCode;
+		this.body = body;
+		this.charset = charset;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	public URL getUrl() {
+		return url;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public boolean isNotModified() {
+		return statusCode == 304;
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	// Hash of the parts of the page a feed is built from, 0 when not modified
+	public long getFingerprint() {
+		if (fingerprint == 0 && body.length > 0) {
+			fingerprint = new NewsFeedHtmlScanner(body).fingerprint(getFeedRegions());
+		}
+
+		return fingerprint;
+	}
+
+	private List<int[]> getFeedRegions() {
+		if (feedRegions == null) {
+			feedRegions = new NewsFeedHtmlScanner(body).findFeedRegions();
+		}
+
+		return feedRegions;
+	}
+
+	public Document parse() throws IOException {
+		// A null charset lets Jsoup look for a <meta> charset in the page
+		return Jsoup.parse(new ByteArrayInputStream(body), charset, url.toString());
+	}
+
+	// Only the title and item list, the rest of the page (navigation, scripts
+	// and so on) is never parsed. The whole page is parsed if they cannot be
+	// found, or if the charset has to be read from the page itself.
+	public Document parseFeedRegions() throws IOException {
+		List<int[]> regions = getFeedRegions();
+		StringBuilder html = new StringBuilder();
+		Charset cs;
+
+		if (regions.isEmpty() || charset == null) {
+			return parse();
+		}
+
+		try {
+			cs = Charset.forName(charset);
+		} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			return parse();
+		}
+
+		for (int[] region : regions) {
+			html.append(new String(body, region[0], region[1] - region[0], cs));
+		}
+
+		return Jsoup.parseBodyFragment(html.toString(), url.toString());
+	}
+
+}
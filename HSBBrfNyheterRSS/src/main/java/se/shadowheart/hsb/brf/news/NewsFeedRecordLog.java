@@ -0,0 +1,368 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Denna klass hanterar en fil med poster som bara läggs till sist, för
+ * {@link NewsFeedStore} och {@link NewsFeedHistory}. Varje post består av
+ * ägarens egna fält följda av längden på postens data, datan och en CRC32 av
+ * den. Poster som läggs till tillsammans skrivs till disk innan de räknas som
+ * skrivna, och om skrivningen misslyckas kortas filen till där den var före.
+ * Det som följer efter den sista hela posten när filen läses sparas undan i
+ * en <code>.corrupt</code>-fil. Filen skrivs om genom att en temporär fil döps
+ * om.
+ * </p>
+ * <p>
+ * Ägarens index över posterna kan sparas i en egen fil tillsammans med hur
+ * lång filen var och en CRC32 av dess sista byte, så att bara de poster som
+ * har lagts till efter det behöver läsas när filen öppnas igen.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+class NewsFeedRecordLog {
+
+	private static final int maxPayloadSize = 64 * 1024 * 1024;
+	// Bytes at the end of the indexed part of the file that an index must match
+	private static final int indexTailSize = 4096;
+
+	private final File file;
+	private final byte[] header;
+
+	private FileChannel channel;
+
+	NewsFeedRecordLog(File file, byte[] header) {
+		super();
+		this.file = file;
+		this.header = header;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	int getHeaderSize() {
+		return header.length;
+	}
+
+	// Null when closed. Positional reads of it never move the append position.
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	// Creates the file if there is none, positioned at its end
+	void open() throws IOException {
+		close();
+
+		if (!file.isFile() || file.length() < header.length) {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+			createEmpty(file);
+		}
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+	}
+
+	// False if the file starts with some other header
+	boolean hasHeader() throws IOException {
+		return Arrays.equals(read(channel, 0, header.length).array(), header);
+	}
+
+	// Never throw away data we do not understand, just move it aside
+	void moveAside() throws IOException {
+		close();
+		deleteIndex();
+		Files.move(file.toPath(), new File(file.getPath() + ".corrupt").toPath(), StandardCopyOption.REPLACE_EXISTING);
+		open();
+	}
+
+	// Reads the records from position, the stream must not be closed
+	DataInputStream newInputStream(long position) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(position)), 65536));
+	}
+
+	// Anything after the last complete record is a torn or corrupt write,
+	// keep a copy of it before it is cut off
+	void truncate(long position) throws IOException {
+		if (position < channel.size()) {
+			File corrupt = new File(file.getPath() + ".corrupt");
+
+			try (FileChannel out = FileChannel.open(corrupt.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE)) {
+				channel.transferTo(position, channel.size() - position, out);
+			}
+
+			channel.truncate(position);
+		}
+
+		channel.position(position);
+	}
+
+	// Writes records from encodeRecord at the end of the file and forces them
+	// to disk. Returns where the first one was written.
+	long append(List<ByteBuffer> records) throws IOException {
+		long start = channel.position();
+
+		try {
+			for (ByteBuffer record : records) {
+				writeFully(channel, record);
+			}
+
+			channel.force(false);
+		} catch (IOException e) {
+			// A torn record would hide everything appended after it the next
+			// time the file is opened
+			try {
+				channel.truncate(start);
+				channel.position(start);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+
+			throw e;
+		}
+
+		return start;
+	}
+
+	// An empty file with the same header, for rewriting the file into
+	File createTemp() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+
+		createEmpty(tmp);
+
+		return tmp;
+	}
+
+	// Replaces the file with tmp. The file is open afterwards either way, the
+	// original one if it could not be replaced.
+	void replace(File tmp) throws IOException {
+		// The old index must never be taken for one of the new file
+		deleteIndex();
+		// Closed first, an open file cannot be replaced on Windows
+		channel.close();
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+		}
+	}
+
+	void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	// The header, the length of the file it covers, a CRC32 of the last bytes
+	// of that, what writer writes and a CRC32 of all of it
+	void writeIndex(IndexWriter writer) throws IOException {
+		File f = getIndexFile();
+		File tmp = new File(f.getPath() + ".tmp");
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+		long length = channel.size();
+		CRC32 crc = new CRC32();
+
+		try (DataOutputStream out = new DataOutputStream(buffer)) {
+			out.write(header);
+			out.writeLong(length);
+			out.writeLong(getTailChecksum(length));
+			writer.write(out);
+			out.flush();
+			crc.update(buffer.toByteArray());
+			out.writeInt((int) crc.getValue());
+		}
+
+		Files.write(tmp.toPath(), buffer.toByteArray());
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Lets reader read the index and returns where the file has to be read
+	// from after it, or -1 if there is no index of this file. Appending to the
+	// file after the index was written is fine, rewriting it is not.
+	long readIndex(IndexReader reader) throws IOException {
+		File f = getIndexFile();
+		CRC32 crc = new CRC32();
+		DataInputStream in;
+		long length;
+		byte[] b;
+
+		if (!f.isFile()) {
+			return -1;
+		}
+
+		b = Files.readAllBytes(f.toPath());
+
+		try {
+			if (b.length < header.length + 8 + 8 + 4) {
+				throw new EOFException("Truncated index");
+			}
+
+			crc.update(b, 0, b.length - 4);
+			in = new DataInputStream(new ByteArrayInputStream(b, header.length, b.length - header.length - 4));
+
+			if (ByteBuffer.wrap(b, b.length - 4, 4).getInt() != (int) crc.getValue()
+					|| !Arrays.equals(Arrays.copyOf(b, header.length), header)) {
+				throw new IOException("Not an index of " + file);
+			}
+
+			length = in.readLong();
+
+			if (length < header.length || length > channel.size() || in.readLong() != getTailChecksum(length)) {
+				throw new IOException("Not an index of " + file);
+			}
+
+			reader.read(in);
+		} catch (IOException e) {
+			// Just slower, every record is read instead
+			f.delete();
+
+			return -1;
+		}
+
+		return length;
+	}
+
+	void deleteIndex() {
+		getIndexFile().delete();
+	}
+
+	private File getIndexFile() {
+		return new File(file.getPath() + ".index");
+	}
+
+	private long getTailChecksum(long length) throws IOException {
+		int size = (int) Math.min(length, indexTailSize);
+		CRC32 crc = new CRC32();
+
+		crc.update(read(channel, length - size, size));
+
+		return crc.getValue();
+	}
+
+	// The payload of a record whose fields before it have been read from
+	// record, or an IOException if it does not match its CRC32
+	byte[] readPayload(ByteBuffer record, long position) throws IOException {
+		CRC32 crc = new CRC32();
+		int length = record.getInt();
+		byte[] payload;
+
+		if (length < 0 || length > record.remaining() - 4) {
+			throw new IOException("Corrupt record at " + position + " in " + file);
+		}
+
+		payload = new byte[length];
+		record.get(payload);
+		crc.update(payload);
+
+		if (record.getInt() != (int) crc.getValue()) {
+			throw new IOException("Corrupt record at " + position + " in " + file);
+		}
+
+		return payload;
+	}
+
+	// The payload of a record whose fields before it have been read from in,
+	// or null if it is torn or corrupt. Throws EOFException at the end.
+	static byte[] readPayload(DataInputStream in) throws IOException {
+		CRC32 crc = new CRC32();
+		int length = in.readInt();
+		byte[] payload;
+
+		if (length < 0 || length > maxPayloadSize) {
+			return null;
+		}
+
+		payload = new byte[length];
+		in.readFully(payload);
+		crc.update(payload);
+
+		return (in.readInt() == (int) crc.getValue()) ? payload : null;
+	}
+
+	// fields, payload length (4), payload, CRC32 of payload (4)
+	static ByteBuffer encodeRecord(byte[] fields, byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.allocate(getRecordSize(fields.length, payload.length));
+		CRC32 crc = new CRC32();
+
+		crc.update(payload);
+		buffer.put(fields).putInt(payload.length).put(payload).putInt((int) crc.getValue());
+		buffer.flip();
+
+		return buffer;
+	}
+
+	static int getRecordSize(int fieldsLength, int payloadLength) {
+		return fieldsLength + 4 + payloadLength + 4;
+	}
+
+	// Positional, so any number of threads can read at the same time
+	static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+			}
+		}
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private void createEmpty(File f) throws IOException {
+		try (FileChannel out = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)) {
+			writeFully(out, ByteBuffer.wrap(header));
+		}
+	}
+
+	interface IndexWriter {
+
+		void write(DataOutput out) throws IOException;
+
+	}
+
+	interface IndexReader {
+
+		void read(DataInput in) throws IOException;
+
+	}
+
+}
@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Denna klass avgör hur ofta ett nyhetsflöde ska hämtas på nytt. Hur ofta
+ * flödet ändras uppskattas först från datumen på dess nyheter och sedan från
+ * de hämtningar som gav ett ändrat flöde. Flöden som efterfrågas ofta hämtas
+ * oftare, och intervallet hålls mellan en undre och en övre gräns. Ett flöde
+ * som hämtas sällan får också ett längre <code>ttl</code> i RSS-flödet.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedRefreshSchedule {
+
+	private static final long defaultChangeInterval = TimeUnit.DAYS.toMillis(1);
+	private static final long hour = TimeUnit.HOURS.toMillis(1);
+	private static final int maxDatedItems = 10;
+	private static final int maxPopularity = 8;
+	// Refresh a few times per expected change so changes show up reasonably soon
+	private static final int refreshesPerChange = 4;
+	private static final double weight = 0.3;
+
+	private final long lastChangeTime;
+	private final long changeInterval;
+	private final long refreshInterval;
+	private final int ttl;
+
+	private NewsFeedRefreshSchedule(long lastChangeTime, long changeInterval, long refreshInterval) {
+		super();
+		this.lastChangeTime = lastChangeTime;
+		this.changeInterval = changeInterval;
+		this.refreshInterval = refreshInterval;
+		// Whole hours, never shorter than before, so the rendering seldom changes
+		this.ttl = (int) Math.max(Integer.parseInt(NewsFeed.TTL), TimeUnit.MILLISECONDS.toMinutes((refreshInterval + hour - 1) / hour * hour));
+	}
+
+	// A schedule for a feed without refresh history, from its item dates
+	public static NewsFeedRefreshSchedule first(NewsFeed newsFeed, long timeNow, long minInterval, long maxInterval) {
+		long changeInterval = limit(estimateChangeInterval(newsFeed, timeNow), minInterval, maxInterval);
+
+		return new NewsFeedRefreshSchedule(timeNow, changeInterval, getRefreshInterval(changeInterval, 0, minInterval, maxInterval));
+	}
+
+	// The schedule after a refresh of a feed, requests is the number of
+	// requests for it since the previous refresh
+	public static NewsFeedRefreshSchedule next(NewsFeedRefreshSchedule prev, NewsFeed newsFeed, boolean changed, long requests, long prevRefreshTime,
+			long timeNow, long minInterval, long maxInterval) {
+		long elapsed;
+		long changeInterval;
+		long lastChangeTime;
+		double requestsPerHour;
+
+		if (prev == null) {
+			return first(newsFeed, timeNow, minInterval, maxInterval);
+		}
+
+		elapsed = Math.max(timeNow - prev.lastChangeTime, 0);
+		changeInterval = prev.changeInterval;
+		lastChangeTime = prev.lastChangeTime;
+
+		if (changed) {
+			changeInterval = average(changeInterval, elapsed);
+			lastChangeTime = timeNow;
+		} else if (elapsed > changeInterval) {
+			// Unchanged for longer than expected, the feed changes less often
+			changeInterval = average(changeInterval, elapsed);
+		}
+
+		changeInterval = limit(changeInterval, minInterval, maxInterval);
+		requestsPerHour = (double) requests * hour / Math.max(timeNow - prevRefreshTime, minInterval);
+
+		return new NewsFeedRefreshSchedule(lastChangeTime, changeInterval, getRefreshInterval(changeInterval, requestsPerHour, minInterval, maxInterval));
+	}
+
+	// Long quiet periods should not make a feed slow to react once it changes
+	// again, so the estimate never goes beyond what the longest interval needs
+	private static long limit(long changeInterval, long minInterval, long maxInterval) {
+		return Math.max(minInterval, Math.min(changeInterval, maxInterval * refreshesPerChange * maxPopularity));
+	}
+
+	private static long average(long estimate, long observed) {
+		return (long) ((1 - weight) * estimate + weight * observed);
+	}
+
+	// Popular feeds are refreshed up to maxPopularity times as often
+	private static long getRefreshInterval(long changeInterval, double requestsPerHour, long minInterval, long maxInterval) {
+		int popularity = Math.min(1 + (int) (Math.log(1 + requestsPerHour) / Math.log(2)), maxPopularity);
+		long interval = changeInterval / refreshesPerChange / popularity;
+
+		return Math.max(minInterval, Math.min(interval, maxInterval));
+	}
+
+	// The average time between the most recent items, counting up to now so
+	// that a feed that has been quiet for a while is not refreshed as often
+	private static long estimateChangeInterval(NewsFeed newsFeed, long timeNow) {
+		long oldest = Long.MAX_VALUE;
+		int count = 0;
+
+		for (NewsFeedItem item : newsFeed.getItems()) {
+			if (item.hasDate() && count < maxDatedItems) {
+				oldest = Math.min(oldest, item.getTime());
+				count++;
+			}
+		}
+
+		if (count == 0 || oldest >= timeNow) {
+			return defaultChangeInterval;
+		}
+
+		return (timeNow - oldest) / count;
+	}
+
+	public long getLastChangeTime() {
+		return lastChangeTime;
+	}
+
+	public long getChangeInterval() {
+		return changeInterval;
+	}
+
+	public long getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	// Minutes, as in the RSS <ttl> element
+	public int getTtl() {
+		return ttl;
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * 
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * <p>
+ * Denna klass representerar ett nyhetsflöde som redan har serialiserats till
+ * RSS 2.0 i UTF-8, tillsammans med en ETag och tidpunkt för senaste ändring så
+ * att villkorliga anrop kan besvaras utan att flödet byggs om. En
+ * gzip-komprimerad variant skapas samtidigt så att komprimeringen bara görs
+ * en gång per version av flödet.
+ * </p>
+ * 
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedRendering {
+
+	public static final String CONTENT_TYPE = "application/rss+xml; charset=UTF-8";
+	public static final String ENCODING = "UTF-8";
+
+	private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+	private final byte[] body;
+	private final byte[] gzipBody;
+	private final String etag;
+	private final String gzipETag;
+	private final long lastModified; // -1 if the feed has no lastBuildDate
+	private final int ttl;
+
+	private NewsFeedRendering(byte[] body, Date lastModified, int ttl) throws IOException {
+		super();
+		this.body = body;
+		this.ttl = ttl;
+		this.gzipBody = gzip(body);
+		this.etag = createETag(body);
+		this.gzipETag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+		this.lastModified = (lastModified == null) ? -1 : lastModified.getTime();
+	}
+
+	public static NewsFeedRendering render(NewsFeed newsFeed) throws IOException {
+		return render(newsFeed, Integer.parseInt(NewsFeed.TTL));
+	}
+
+	public static NewsFeedRendering render(NewsFeed newsFeed, int ttl) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+
+		newsFeed.writeTo(buffer, ttl);
+
+		return new NewsFeedRendering(buffer.toByteArray(), newsFeed.getLastBuildDate(), ttl);
+	}
+
+	// The DOM path, kept for callers that need the org.w3c.dom.Document
+	public static NewsFeedRendering renderDocument(NewsFeed newsFeed) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+
+		outputDocument(newsFeed.getDocument(), buffer, ENCODING);
+
+		return new NewsFeedRendering(buffer.toByteArray(), newsFeed.getLastBuildDate(), Integer.parseInt(NewsFeed.TTL));
+	}
+
+	public static void outputDocument(org.w3c.dom.Document d, OutputStream out, String encoding) throws IOException {
+		Transformer transformer;
+
+		try {
+			transformer = transformerFactory.newTransformer();
+			transformer.setOutputProperty(OutputKeys.ENCODING, encoding);
+			transformer.transform(new DOMSource(d), new StreamResult(out));
+		} catch (TransformerException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public String getETag(boolean gzip) {
+		return gzip ? gzipETag : etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public int getTtl() {
+		return ttl;
+	}
+
+	public int getContentLength() {
+		return body.length;
+	}
+
+	public int getContentLength(boolean gzip) {
+		return gzip ? gzipBody.length : body.length;
+	}
+
+	public byte[] getBody() {
+		return Arrays.copyOf(body, body.length);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(body);
+	}
+
+	public void writeTo(OutputStream out, boolean gzip) throws IOException {
+		out.write(gzip ? gzipBody : body);
+	}
+
+	public boolean matches(String ifNoneMatch) {
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+
+			if (tag.equals("*") || tag.equals(etag) || tag.equals(gzipETag)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4);
+
+		try (GZIPOutputStream out = new GZIPOutputStream(buffer) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		}) {
+			out.write(body);
+		}
+
+		return buffer.toByteArray();
+	}
+
+	private static String createETag(byte[] body) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+
+			return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 18)) + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Internt fel", e);
+		}
+	}
+
+}
@@ -4,39 +4,62 @@
 package se.shadowheart.hsb.brf.news;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.ObjectStreamException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.annotation.WebInitParam;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
 import org.jsoup.HttpStatusException;
 
+import se.shadowheart.hsb.brf.news.NewsFeedAdmissionControl.OverloadedException;
+
 /**
  * <p>
  * Servlet som läser HTML-innehållet på en nyhetssida för en HSB
@@ -46,100 +69,512 @@ import org.jsoup.HttpStatusException;
  * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
  * @version 1.1
  */
-@WebServlet(name = "NewsFeedServlet", urlPatterns = { "/nyheter/*" })
+@WebServlet(name = "NewsFeedServlet", urlPatterns = { "/nyheter/*", "/samlade-nyheter/*" }, asyncSupported = true, initParams = {
+		@WebInitParam(name = "backgroundRefresh", value = "true"),
+		@WebInitParam(name = "requestLogging", value = "false"),
+		@WebInitParam(name = "fetcher", value = "se.shadowheart.hsb.brf.news.HttpNewsFeedFetcher"),
+		@WebInitParam(name = "refreshThreads", value = "4"),
+		@WebInitParam(name = "refreshThreadsPerHost", value = "4"),
+		@WebInitParam(name = "refreshQueueSize", value = "1000"),
+		@WebInitParam(name = "asyncTimeoutSeconds", value = "30"),
+		@WebInitParam(name = "circuitBreakerFailures", value = "5"),
+		@WebInitParam(name = "circuitBreakerOpenSeconds", value = "30"),
+		@WebInitParam(name = "backoffMaxMinutes", value = "60"),
+		@WebInitParam(name = "negativeCacheSize", value = "65536"),
+		@WebInitParam(name = "negativeCacheMinutes", value = "60"),
+		@WebInitParam(name = "refreshMinMinutes", value = "1"),
+		@WebInitParam(name = "refreshMaxMinutes", value = "360"),
+		@WebInitParam(name = "cacheMaxEntries", value = "10000"),
+		@WebInitParam(name = "cacheMaxWeightMB", value = "256"),
+		@WebInitParam(name = "cacheMaxIdleHours", value = "168"),
+		@WebInitParam(name = "aggregatedCacheMaxEntries", value = "100"),
+		@WebInitParam(name = "warmUpFeeds", value = "100"),
+		@WebInitParam(name = "historyMaxItems", value = "1000") })
 public class NewsFeedServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 5086217682394439582L;
-	private static final long minRefreshInterval = 60 * 1000; // 1 minute
-	private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+	private static final String aggregatedPath = "/samlade-nyheter";
+	private static final String historyOpenedAttribute = NewsFeedServlet.class.getName() + ".historyOpened";
+	private static final int maxAggregatedFeeds = 10;
+	private static final int maxUriLength = 200;
 
-	private Map<String, Long> lastRefreshes = new HashMap<>();
-	private Map<String, NewsFeed> lastNewsFeeds = new HashMap<>();
+	private final ConcurrentMap<String, CompletableFuture<NewsFeedCacheEntry>> pendingRefreshes = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, NewsFeedBackoff> backoffs = new ConcurrentHashMap<>();
 
+	private NewsFeedCache cache;
+	// Merged feeds, apart so that they can never evict the feeds themselves
+	private NewsFeedCache aggregatedCache;
+	private NewsFeedNegativeCache negativeCache;
+	private NewsFeedStore store;
+	private NewsFeedHistory history;
+	private NewsFeedFetcher fetcher;
+	private CircuitBreakerNewsFeedFetcher circuitBreaker;
+	private ExecutorService fetchExecutor;
+	private NewsFeedAdmissionControl admissionControl;
 	private ScheduledExecutorService service;
-	private boolean dirty;
+	private Thread warmUpThread;
+	// Stops the warm-up thread, which is never interrupted
+	private volatile boolean warmUpStopped;
+	private NewsFeedMetrics metrics;
+	private boolean backgroundRefresh;
+	private boolean requestLogging;
+	private long asyncTimeout;
+	private long maxBackoff;
+	private long minRefreshInterval;
+	private long maxRefreshInterval;
+	private int warmUpFeeds;
+	private int refreshThreads;
 
 	@Override
 	public void init() throws ServletException {
+		long maxIdle = TimeUnit.HOURS.toMillis(getIntInitParameter("cacheMaxIdleHours", 168));
+
+		backgroundRefresh = Boolean.parseBoolean(getInitParameter("backgroundRefresh"));
+		requestLogging = Boolean.parseBoolean(getInitParameter("requestLogging"));
+		asyncTimeout = TimeUnit.SECONDS.toMillis(getIntInitParameter("asyncTimeoutSeconds", 30));
+		maxBackoff = TimeUnit.MINUTES.toMillis(getIntInitParameter("backoffMaxMinutes", 60));
+		minRefreshInterval = TimeUnit.MINUTES.toMillis(getIntInitParameter("refreshMinMinutes", 1));
+		maxRefreshInterval = Math.max(TimeUnit.MINUTES.toMillis(getIntInitParameter("refreshMaxMinutes", 360)), minRefreshInterval);
+		warmUpFeeds = getIntInitParameter("warmUpFeeds", 100);
+		refreshThreads = getIntInitParameter("refreshThreads", 4);
+		cache = new NewsFeedCache(getIntInitParameter("cacheMaxEntries", 10000), getIntInitParameter("cacheMaxWeightMB", 256) * 1024L * 1024L, maxIdle);
+		aggregatedCache = new NewsFeedCache(getIntInitParameter("aggregatedCacheMaxEntries", 100), Long.MAX_VALUE, maxIdle);
+		negativeCache = new NewsFeedNegativeCache(getIntInitParameter("negativeCacheSize", 65536),
+				TimeUnit.MINUTES.toMillis(getIntInitParameter("negativeCacheMinutes", 60)));
+		store = new NewsFeedStore(getNewsFeedStoreFile());
+		history = new NewsFeedHistory(getNewsFeedHistoryDir(), getIntInitParameter("historyMaxItems", 1000));
+		metrics = NewsFeedMetrics.get(getServletContext());
+		// Only requests that reach upstream are measured
+		circuitBreaker = new CircuitBreakerNewsFeedFetcher(new InstrumentedNewsFeedFetcher(createFetcher(getInitParameter("fetcher")), metrics),
+				getIntInitParameter("circuitBreakerFailures", 5), TimeUnit.SECONDS.toMillis(getIntInitParameter("circuitBreakerOpenSeconds", 30)));
+		fetcher = circuitBreaker;
+
 		try {
-			log("Loading cached feeds...");
-			loadCachedNewsFeeds();
+			openCachedNewsFeeds();
 		} catch (IOException e) {
 			throw new ServletException("Failed to load cached feeds", e);
 		}
 
+		// Upstream fetches never run on the container's request threads
+		fetchExecutor = Executors.newFixedThreadPool(refreshThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, getServletName() + "-fetch-" + count.incrementAndGet());
+
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		admissionControl = new NewsFeedAdmissionControl(fetchExecutor, refreshThreads, getIntInitParameter("refreshThreadsPerHost", 4),
+				getIntInitParameter("refreshQueueSize", 1000));
+		registerMetrics();
 		service = Executors.newSingleThreadScheduledExecutor();
 		service.scheduleAtFixedRate(new Runnable() {
 			@Override
 			public void run() {
-				if (dirty) {
+				if (store.isDirty()) {
 					try {
-						log("Saving cached feeds...");
 						saveCachedNewsFeeds();
 					} catch (IOException e) {
 						log("Failed to save cached feeds", e);
 					}
 				}
+
+				if (history.isDirty()) {
+					try {
+						saveHistory();
+					} catch (IOException e) {
+						log("Failed to save feed history", e);
+					}
+				}
 			}
 		}, 1, 1, TimeUnit.MINUTES);
+		service.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				cache.evictIdle();
+				aggregatedCache.evictIdle();
+				removeExpiredBackoffs();
+				log("Feed cache: " + cache);
+
+				try {
+					history.compact();
+				} catch (IOException e) {
+					log("Failed to compact feed history", e);
+				}
+			}
+		}, 10, 10, TimeUnit.MINUTES);
+		startWarmUp();
 	}
 
 	@Override
 	public void destroy() {
-		service.shutdownNow();
+		// Nothing is interrupted, an interrupted read or write of the store or
+		// history closes their files for all threads
+		warmUpStopped = true;
+		admissionControl.shutdown();
+		fetchExecutor.shutdown();
+		service.shutdown();
+		unregisterMetrics();
 
-		if (dirty) {
-			try {
-				log("Saving cached feeds...");
-				saveCachedNewsFeeds();
-			} catch (IOException e) {
-				log("Failed to save cached feeds", e);
+		try {
+			if (warmUpThread != null) {
+				warmUpThread.join(asyncTimeout);
+			}
+
+			if (!fetchExecutor.awaitTermination(asyncTimeout, TimeUnit.MILLISECONDS)) {
+				log("Fetches still running after " + asyncTimeout + " ms, saving anyway");
+			}
+
+			service.awaitTermination(asyncTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			saveCachedNewsFeeds();
+			store.close();
+		} catch (IOException e) {
+			log("Failed to save cached feeds", e);
+		}
+
+		try {
+			saveHistory();
+			history.close();
+		} catch (IOException e) {
+			log("Failed to save feed history", e);
+		}
+
+		try {
+			saveWarmUpUris();
+		} catch (IOException e) {
+			log("Failed to save the most requested feeds", e);
+		}
+	}
+
+	private void registerMetrics() {
+		metrics.registerGauge("cached_feeds", "Number of cached feeds", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return cache.size();
+			}
+		});
+		metrics.registerGauge("cached_aggregated_feeds", "Number of cached merged feeds", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return aggregatedCache.size();
+			}
+		});
+		metrics.registerGauge("cache_weight_bytes", "Estimated size of the cached feeds", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return cache.getWeight();
+			}
+		});
+		metrics.registerCounter("cache_loads_total", "Feeds loaded from HSB", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return cache.getLoads();
+			}
+		});
+		metrics.registerCounter("cache_load_failures_total", "Feeds that failed to load from HSB", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return cache.getLoadFailures();
+			}
+		});
+		metrics.registerCounter("cache_size_evictions_total", "Feeds evicted to keep the cache within its limits", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return cache.getSizeEvictions();
+			}
+		});
+		metrics.registerGauge("upstream_open_circuits", "Upstream hosts not requested because of recent failures", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return circuitBreaker.getOpenCount();
+			}
+		});
+		metrics.registerGauge("feeds_in_backoff", "Feeds that failed to load and are retried later", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return backoffs.size();
+			}
+		});
+		metrics.registerGauge("negative_cache_entries", "Unknown feeds answered with 404 without asking upstream", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return negativeCache.size(System.currentTimeMillis());
+			}
+		});
+		metrics.registerGauge("shared_items", "News items shared between feeds", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return NewsFeedItemInterner.size();
+			}
+		});
+		metrics.registerGauge("upstream_fetches_running", "Fetches from HSB in progress", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return admissionControl.getRunning();
+			}
+		});
+		metrics.registerGauge("upstream_fetches_queued", "Fetches from HSB waiting for a free thread", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return admissionControl.getQueueLength();
+			}
+		});
+		metrics.registerCounter("upstream_fetches_shed_total", "Fetches from HSB not made because too many were waiting", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return admissionControl.getShedCount();
 			}
+		});
+		metrics.registerCounter("cache_idle_evictions_total", "Feeds evicted after not being requested for a long time", new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return cache.getIdleEvictions();
+			}
+		});
+	}
+
+	private void unregisterMetrics() {
+		// The gauges refer to this servlet's cache
+		for (String name : new String[] { "cached_feeds", "cached_aggregated_feeds", "cache_weight_bytes", "cache_loads_total", "cache_load_failures_total",
+				"cache_size_evictions_total", "cache_idle_evictions_total", "upstream_open_circuits", "feeds_in_backoff", "negative_cache_entries",
+				"shared_items", "upstream_fetches_running", "upstream_fetches_queued", "upstream_fetches_shed_total" }) {
+			metrics.unregister(name);
+		}
+	}
+
+	private void removeExpiredBackoffs() {
+		long timeNow = System.currentTimeMillis();
+
+		// Keep the failure count until a retry would have reset it anyway
+		for (Map.Entry<String, NewsFeedBackoff> e : backoffs.entrySet()) {
+			if (timeNow > e.getValue().getRetryTime() + maxBackoff) {
+				backoffs.remove(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private NewsFeedFetcher createFetcher(String className) throws ServletException {
+		if (className == null) {
+			return new HttpNewsFeedFetcher();
+		}
+
+		try {
+			return Class.forName(className).asSubclass(NewsFeedFetcher.class).newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new ServletException("Invalid fetcher class: " + className, e);
+		}
+	}
+
+	private int getIntInitParameter(String name, int defaultValue) throws ServletException {
+		String value = getInitParameter(name);
+
+		try {
+			return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid value for init parameter \"" + name + "\": " + value, e);
 		}
 	}
 
 	private void saveCachedNewsFeeds() throws IOException {
-		synchronized (lastNewsFeeds) {
-			if (dirty) {
-				File f = getLastNewsFeedSerFile();
-
-				try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
-					out.writeObject(lastNewsFeeds);
-					log("Successfully saved cached feeds");
-				} catch (ObjectStreamException e) {
-					f.delete();
-					log("Failed to save cached feeds", e);
-				} catch (IOException e) {
-					f.delete();
-					throw e;
-				}
+		long start = System.nanoTime();
+		int count = store.flush(cache);
+
+		metrics.recordSave(System.nanoTime() - start);
+
+		if (count > 0) {
+			log("Successfully saved " + count + " changed feeds");
+		}
+	}
+
+	private void saveHistory() throws IOException {
+		int count = history.flush();
+
+		if (count > 0 && requestLogging) {
+			log("Added " + count + " items to the feed history");
+		}
+	}
+
+	// Only the index is read here, each feed is read when it is first requested
+	private void openCachedNewsFeeds() throws IOException {
+		long start = System.nanoTime();
+		File legacy = getLastNewsFeedSerFile();
+		int count = store.open();
+
+		if (count == 0 && legacy.isFile()) {
+			Map<String, NewsFeed> newsFeeds = loadLegacyNewsFeeds(legacy);
+
+			store.writeAll(newsFeeds);
+			legacy.delete();
+			count = newsFeeds.size();
+		}
+
+		log("Found " + count + " cached feeds in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
 
-				dirty = false;
+	// The stored feed for uri, cached unless another request already did.
+	// Loaded feeds are served, but refreshed on first request.
+	private NewsFeedCacheEntry readStoredNewsFeed(String uri) {
+		NewsFeedRefreshSchedule schedule;
+		NewsFeedCacheEntry entry;
+		NewsFeedCacheEntry prev;
+		NewsFeed newsFeed;
+
+		if (!store.contains(uri)) {
+			return null;
+		}
+
+		try {
+			newsFeed = store.read(uri);
+
+			if (newsFeed == null) {
+				return null;
 			}
+
+			schedule = NewsFeedRefreshSchedule.first(newsFeed, System.currentTimeMillis(), minRefreshInterval, maxRefreshInterval);
+			entry = new NewsFeedCacheEntry(newsFeed, render(newsFeed, schedule.getTtl()), 0, schedule);
+		} catch (IOException e) {
+			log("Failed to read cached feed for \"" + uri + "\"", e);
+			return null;
 		}
+
+		prev = cache.putIfAbsent(uri, entry);
+
+		return (prev != null) ? prev : entry;
 	}
 
-	@SuppressWarnings("unchecked")
-	private void loadCachedNewsFeeds() throws IOException {
-		synchronized (lastNewsFeeds) {
-			File f = getLastNewsFeedSerFile();
-
-			if (f.isFile()) {
-				try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)))) {
-					lastNewsFeeds = (Map<String, NewsFeed>) in.readObject();
-					log("Successfully loaded cached feeds");
-				} catch (ClassNotFoundException | ObjectStreamException | ClassCastException e) {
-					f.delete();
-					log("Failed to load cached feeds", e);
-				} catch (IOException e) {
-					throw e;
+	// Refreshes the feeds that were requested the most before the restart,
+	// leaving at least half of the fetch threads to requests
+	private void startWarmUp() {
+		final List<String> uris;
+		final int parallelism = Math.max(1, refreshThreads / 2);
+		final Semaphore permits = new Semaphore(parallelism);
+
+		try {
+			uris = getWarmUpUris();
+		} catch (IOException e) {
+			log("Failed to read the most requested feeds", e);
+			return;
+		}
+
+		if (uris.isEmpty()) {
+			return;
+		}
+
+		warmUpThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+
+				try {
+					for (String uri : uris) {
+						if (cache.peek(uri) == null && readStoredNewsFeed(uri) == null) {
+							continue;
+						}
+
+						if (!acquire(permits, 1)) {
+							return;
+						}
+
+						refreshNewsFeed(uri, StringUtils.split(uri, "/"), false).whenComplete(new BiConsumer<NewsFeedCacheEntry, Throwable>() {
+							@Override
+							public void accept(NewsFeedCacheEntry entry, Throwable t) {
+								permits.release();
+							}
+						});
+					}
+
+					if (!acquire(permits, parallelism)) {
+						return;
+					}
+				} catch (InterruptedException | RuntimeException e) {
+					// Stopped, or the executor was shut down
+					return;
 				}
-			} else {
-				log("No cached feeds found");
+
+				log("Warmed up " + uris.size() + " feeds in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s");
+			}
+		}, getServletName() + "-warm-up");
+		warmUpThread.setDaemon(true);
+		warmUpThread.start();
+	}
+
+	// False if the warm-up was stopped while waiting
+	private boolean acquire(Semaphore permits, int count) throws InterruptedException {
+		while (!warmUpStopped) {
+			if (permits.tryAcquire(count, 100, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	// The most recently requested feeds of the previous run, or the most
+	// recently changed ones if it did not stop cleanly
+	private List<String> getWarmUpUris() throws IOException {
+		File f = getWarmUpFile();
+		List<String> uris = new ArrayList<>();
+
+		if (!f.isFile()) {
+			uris = store.getKeys();
+			return uris.subList(0, Math.min(warmUpFeeds, uris.size()));
+		}
+
+		for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+			// "/" is the national feed
+			if (line.startsWith("/") && uris.size() < warmUpFeeds) {
+				uris.add(StringUtils.strip(line, "/"));
 			}
+		}
 
-			dirty = false;
+		f.delete();
+
+		return uris;
+	}
+
+	private void saveWarmUpUris() throws IOException {
+		File f = getWarmUpFile();
+		File tmp = new File(f.getPath() + ".tmp");
+		List<String> lines = new ArrayList<>();
+
+		// Merged feeds live in aggregatedCache and are rebuilt from their parts
+		for (String uri : cache.getMostRecentlyUsedKeys(warmUpFeeds)) {
+			lines.add("/" + uri);
 		}
+
+		Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Feeds saved with Java serialization by earlier versions
+	@SuppressWarnings("unchecked")
+	private Map<String, NewsFeed> loadLegacyNewsFeeds(File f) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			return (Map<String, NewsFeed>) in.readObject();
+		} catch (ClassNotFoundException | ObjectStreamException | ClassCastException e) {
+			log("Failed to load cached feeds from " + f, e);
+			return Collections.emptyMap();
+		}
+	}
+
+	private File getNewsFeedStoreFile() {
+		return new File(getSerDir(), getClass().getName() + ".newsFeeds.dat");
+	}
+
+	private File getNewsFeedHistoryDir() {
+		return new File(getSerDir(), getClass().getName() + ".history");
+	}
+
+	private File getWarmUpFile() {
+		return new File(getSerDir(), getClass().getName() + ".warmUpFeeds.txt");
 	}
 
 	private File getLastNewsFeedSerFile() {
@@ -160,107 +595,831 @@ public class NewsFeedServlet extends HttpServlet {
 
 	@Override
 	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-		String[] uriParts = StringUtils.split(StringUtils.strip(req.getPathInfo(), "/"), "/");
+		String[] uriParts;
 		String uri;
-		long timeNow = System.currentTimeMillis();
-		Long lastRefresh;
-		NewsFeed newsFeed;
+		NewsFeedCacheEntry entry;
+
+		if (aggregatedPath.equals(req.getServletPath())) {
+			doGetAggregated(req, resp);
+			return;
+		} else if (!isValidPath(req.getPathInfo())) {
+			// Rejected before any parsing or lookups
+			if (requestLogging) {
+				log("Invalid request URI: " + req.getPathInfo());
+			}
+
+			metrics.countNegative();
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Not found");
+			return;
+		}
+
+		uriParts = StringUtils.split(StringUtils.strip(req.getPathInfo(), "/"), "/");
+		uri = toUri(uriParts);
+
+		if (isHistoryRequest(req)) {
+			try {
+				getHistoryLimit(req);
+				getHistorySince(req);
+			} catch (IllegalArgumentException e) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+				return;
+			}
+		}
+
+		if (negativeCache.contains(uri, System.currentTimeMillis())) {
+			metrics.countNegative();
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Not found");
+			return;
+		}
+
+		entry = lookupNewsFeed(uri, uriParts);
+
+		if (entry != null) {
+			if (isStaleAfterFailure(uri, entry)) {
+				setStaleWarning(resp);
+			}
+
+			outputNewsFeed(req, resp, uri, entry);
+		} else {
+			// Release the request thread while the feed is fetched
+			outputRenderingAsync(req, resp, uri, withHistory(req, uri, refreshNewsFeed(uri, uriParts, true)));
+		}
+	}
+
+	// One merged feed from several feeds, e.g. /samlade-nyheter/norr/hagern for
+	// the news of all of HSB, the region and the brf, or ?feed=...&feed=...
+	private void doGetAggregated(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		List<String> uris = getAggregatedUris(req);
+		List<CompletableFuture<NewsFeedCacheEntry>> futures = new ArrayList<>();
+		CompletableFuture<NewsFeedCacheEntry> future;
+		String uri;
+		boolean stale = false;
+
+		if (uris == null) {
+			if (requestLogging) {
+				log("Invalid request URI: " + req.getPathInfo() + "?" + req.getQueryString());
+			}
+
+			metrics.countNegative();
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Not found");
+			return;
+		} else if (uris.size() > maxAggregatedFeeds) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many feeds");
+			return;
+		}
+
+		uri = "*" + StringUtils.join(uris, "|");
+
+		// Cached feeds are used as they are, the others are fetched in parallel
+		for (String feedUri : uris) {
+			String[] feedUriParts = StringUtils.split(feedUri, "/");
+			NewsFeedCacheEntry entry;
+
+			if (negativeCache.contains(feedUri, System.currentTimeMillis())) {
+				// Known not to exist, leave it out
+				metrics.countNegative();
+				continue;
+			}
+
+			entry = lookupNewsFeed(feedUri, feedUriParts);
+
+			stale |= entry != null && isStaleAfterFailure(feedUri, entry);
+			futures.add((entry != null) ? CompletableFuture.completedFuture(entry) : refreshNewsFeed(feedUri, feedUriParts, true));
+		}
+
+		if (futures.isEmpty()) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Not found");
+			return;
+		}
+
+		future = aggregateNewsFeeds(uri, futures);
+
+		if (future.isDone() && !future.isCompletedExceptionally()) {
+			if (stale) {
+				setStaleWarning(resp);
+			}
+
+			outputRendering(req, resp, future.join().getRendering());
+		} else {
+			outputRenderingAsync(req, resp, uri, future);
+		}
+	}
+
+	private static List<String> getAggregatedUris(HttpServletRequest req) {
+		String[] feeds = req.getParameterValues("feed");
+		String[] uriParts = StringUtils.split(StringUtils.strip(req.getPathInfo(), "/"), "/");
+		List<String> uris = new ArrayList<>();
+
+		if (feeds == null) {
+			if (!isValidPath(req.getPathInfo())) {
+				return null;
+			}
+
+			uris.add("");
+
+			if (uriParts != null && uriParts.length > 0) {
+				uris.add(uriParts[0]);
+			}
+
+			if (uriParts != null && uriParts.length > 1) {
+				uris.add(uriParts[0] + "/" + uriParts[1]);
+			}
+
+			return uris;
+		}
+
+		for (String feed : feeds) {
+			String uri = isValidPath(feed) ? toUri(StringUtils.split(StringUtils.strip(feed, "/"), "/")) : null;
+
+			if (uri == null) {
+				return null;
+			} else if (!uris.contains(uri)) {
+				uris.add(uri);
+			}
+		}
+
+		// The same feeds in any order or repeated give the same merged feed,
+		// and "" < "norr" < "norr/hagern" keeps the most specific last
+		Collections.sort(uris);
+
+		return uris;
+	}
+
+	// At most two segments of characters that can be in a region or brf name
+	private static boolean isValidPath(String path) {
+		int segments = 0;
 
+		if (path == null) {
+			return true;
+		} else if (path.length() > maxUriLength) {
+			return false;
+		}
+
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+
+			if (c == '/') {
+				continue;
+			} else if (!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '.') {
+				return false;
+			} else if (i == 0 || path.charAt(i - 1) == '/') {
+				segments++;
+			}
+		}
+
+		return segments <= 2;
+	}
+
+	private static String toUri(String[] uriParts) {
 		if (uriParts == null || uriParts.length == 0) {
-			uri = "";
+			return "";
 		} else if (uriParts.length == 1) {
-			uri = uriParts[0];
+			return uriParts[0];
 		} else if (uriParts.length == 2) {
-			uri = uriParts[0] + "/" + uriParts[1];
+			return uriParts[0] + "/" + uriParts[1];
 		} else {
-			uri = null;
+			return null;
 		}
+	}
 
-		lastRefresh = lastRefreshes.get(uri);
-		newsFeed = lastNewsFeeds.get(uri);
+	// The cached feed to serve right away, or null if the caller has to wait
+	// for refreshNewsFeed
+	private NewsFeedCacheEntry lookupNewsFeed(String uri, String[] uriParts) {
+		long timeNow = System.currentTimeMillis();
+		NewsFeedCacheEntry entry = cache.get(uri);
 
-		try {
-			if (lastRefresh != null && timeNow < lastRefresh.longValue() + minRefreshInterval) {
-				// Do not refresh
-				log("Using feed cached for \"" + uri + "\" @ " + new Date(lastRefresh.longValue()) + "...");
-			} else if (uriParts == null || uriParts.length == 0) {
-				newsFeed = new NewsFeed(newsFeed);
-			} else if (uriParts.length == 1) {
-				newsFeed = new NewsFeed(newsFeed, uriParts[0]);
-			} else if (uriParts.length == 2) {
-				newsFeed = new NewsFeed(newsFeed, uriParts[0], uriParts[1]);
-			} else {
-				newsFeed = null;
+		if (entry == null) {
+			entry = readStoredNewsFeed(uri);
+		}
+
+		if (entry != null && entry.isFresh(timeNow)) {
+			// Do not refresh
+			metrics.countHit();
+
+			if (requestLogging) {
+				log("Using feed cached for \"" + uri + "\" @ " + new Date(entry.getRefreshTime()) + "...");
+			}
+		} else if (entry != null && isBackingOff(uri, timeNow)) {
+			// Upstream is failing, keep serving the last good feed for now
+			metrics.countStale();
+
+			if (requestLogging) {
+				log("Using stale feed cached for \"" + uri + "\", retrying later...");
+			}
+		} else if (backgroundRefresh && entry != null) {
+			// Serve the stale feed and let a worker thread refresh it
+			metrics.countStale();
+
+			if (requestLogging) {
+				log("Using stale feed cached for \"" + uri + "\", refreshing in background...");
+			}
+
+			refreshNewsFeed(uri, uriParts, false);
+		} else if (entry != null && pendingRefreshes.containsKey(uri)) {
+			metrics.countStale();
+
+			if (requestLogging) {
+				log("Refresh of \"" + uri + "\" already in progress, using cached feed...");
+			}
+		} else {
+			metrics.countMiss();
+			entry = null;
+		}
+
+		return entry;
+	}
+
+	private boolean isBackingOff(String uri, long timeNow) {
+		NewsFeedBackoff backoff = backoffs.get(uri);
+
+		return backoff != null && backoff.isActive(timeNow);
+	}
+
+	private boolean isStaleAfterFailure(String uri, NewsFeedCacheEntry entry) {
+		return backoffs.containsKey(uri) && !entry.isFresh(System.currentTimeMillis());
+	}
+
+	private static void setStaleWarning(HttpServletResponse resp) {
+		// RFC 7234, the feed is served from cache because refreshing it failed
+		resp.addHeader("Warning", "110 - \"Response is Stale\"");
+		resp.addHeader("Warning", "111 - \"Revalidation Failed\"");
+	}
+
+	private CompletableFuture<NewsFeedCacheEntry> aggregateNewsFeeds(final String uri, final List<CompletableFuture<NewsFeedCacheEntry>> futures) {
+		final CompletableFuture<NewsFeedCacheEntry> future = new CompletableFuture<>();
+
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable t) {
+				List<NewsFeed> newsFeeds = new ArrayList<>();
+				Throwable failure = null;
+				int ttl = Integer.MAX_VALUE;
+
+				// Feeds that failed to load are left out, unless all of them did
+				for (CompletableFuture<NewsFeedCacheEntry> f : futures) {
+					try {
+						NewsFeedCacheEntry entry = f.join();
+
+						newsFeeds.add(entry.getNewsFeed());
+						// Readers poll as often as the most frequently refreshed feed needs
+						ttl = Math.min(ttl, entry.getRendering().getTtl());
+					} catch (CompletionException | CancellationException e) {
+						failure = (failure == null) ? e : failure;
+					}
+				}
+
+				try {
+					if (newsFeeds.isEmpty()) {
+						future.completeExceptionally(failure);
+					} else {
+						future.complete(cacheAggregatedNewsFeed(uri, newsFeeds, ttl));
+					}
+				} catch (IOException | RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+
+		return future;
+	}
+
+	private NewsFeedCacheEntry cacheAggregatedNewsFeed(String uri, List<NewsFeed> newsFeeds, int ttl) throws IOException {
+		NewsFeedCacheEntry entry = aggregatedCache.get(uri);
+		NewsFeed newsFeed;
+
+		if (entry != null && entry.isBuiltFrom(newsFeeds) && entry.getRendering().getTtl() == ttl) {
+			return entry;
+		}
+
+		// Never marked dirty, merged feeds are rebuilt from the stored ones
+		newsFeed = NewsFeed.merge(newsFeeds);
+		entry = new NewsFeedCacheEntry(newsFeed, render(newsFeed, ttl), System.currentTimeMillis(), newsFeeds);
+		aggregatedCache.put(uri, entry);
+
+		return entry;
+	}
+
+	private void outputRenderingAsync(HttpServletRequest req, HttpServletResponse resp, final String uri,
+			CompletableFuture<NewsFeedCacheEntry> future) throws IOException {
+		final AsyncContext ctx;
+		final AtomicBoolean completed = new AtomicBoolean();
+
+		if (!req.isAsyncSupported()) {
+			// Some filter in the chain does not support async, wait on this thread
+			try {
+				outputNewsFeed(req, resp, uri, future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for \"" + uri + "\"");
+			} catch (ExecutionException e) {
+				outputFailure(req, resp, uri, e.getCause());
 			}
-		} catch (HttpStatusException e) {
-			log("Failed to parse news feed for \"" + uri + "\": " + e.getMessage(), e);
-			resp.sendError(e.getStatusCode(), "Error loading news");
+
 			return;
-		} catch (RuntimeException | IOException e) {
-			log("Failed to parse news feed for \"" + uri + "\": " + e.getMessage(), e);
+		}
+
+		ctx = req.startAsync(req, resp);
+		ctx.setTimeout(asyncTimeout);
+		ctx.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (completed.compareAndSet(false, true)) {
+					log("Timed out waiting for news feed for \"" + uri + "\"");
+					((HttpServletResponse) ctx.getResponse()).sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Error loading news");
+					ctx.complete();
+				}
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+		});
+
+		// Runs on the fetch thread, or right here if the feed is already loaded
+		future.whenComplete(new BiConsumer<NewsFeedCacheEntry, Throwable>() {
+			@Override
+			public void accept(NewsFeedCacheEntry entry, Throwable t) {
+				if (!completed.compareAndSet(false, true)) {
+					return;
+				}
+
+				try {
+					if (t == null) {
+						outputNewsFeed((HttpServletRequest) ctx.getRequest(), (HttpServletResponse) ctx.getResponse(), uri, entry);
+					} else {
+						outputFailure((HttpServletRequest) ctx.getRequest(), (HttpServletResponse) ctx.getResponse(), uri, t);
+					}
+				} catch (IOException | RuntimeException e) {
+					log("Failed to write news feed for \"" + uri + "\": " + e.getMessage(), e);
+				} finally {
+					ctx.complete();
+				}
+			}
+		});
+	}
+
+	private void outputFailure(HttpServletRequest req, HttpServletResponse resp, String uri, Throwable t) throws IOException {
+		long timeNow = System.currentTimeMillis();
+		NewsFeedCacheEntry entry = uri.startsWith("*") ? aggregatedCache.peek(uri) : cache.peek(uri);
+		NewsFeedBackoff backoff = backoffs.get(uri);
+		String[] uriParts = StringUtils.split(uri, "/");
+
+		t = unwrap(t);
+
+		if (t instanceof OverloadedException) {
+			resp.setHeader("Retry-After", Long.toString(Math.max(1, (((OverloadedException) t).getRetryTime() - timeNow) / 1000)));
+		} else if (backoff != null && backoff.isActive(timeNow)) {
+			resp.setHeader("Retry-After", Long.toString(Math.max(1, (backoff.getRetryTime() - timeNow) / 1000)));
+		}
+
+		if (entry != null) {
+			// The last good feed is better than an error
+			setStaleWarning(resp);
+			outputNewsFeed(req, resp, uri, entry);
+		} else if (t instanceof OverloadedException) {
+			// Shed before reaching HSB, ask the reader to come back later
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests, try again later");
+		} else if (isUpstreamFailure(t) && !uri.startsWith("*")) {
+			// Nothing cached, tell the reader in the feed itself
+			resp.setHeader("Cache-Control", "no-cache");
+			outputRendering(req, resp, NewsFeedRendering.render(new NewsFeed((uriParts.length > 0) ? uriParts[0] : null,
+					(uriParts.length > 1) ? uriParts[1] : null, t)));
+		} else {
+			sendError(resp, t);
+		}
+	}
+
+	private static boolean isNotFound(Throwable t) {
+		return t instanceof HttpStatusException && (((HttpStatusException) t).getStatusCode() == HttpServletResponse.SC_NOT_FOUND
+				|| ((HttpStatusException) t).getStatusCode() == HttpServletResponse.SC_GONE);
+	}
+
+	// Failures that say nothing about whether the feed exists
+	private static boolean isUpstreamFailure(Throwable t) {
+		if (t instanceof HttpStatusException) {
+			return ((HttpStatusException) t).getStatusCode() >= 500 || ((HttpStatusException) t).getStatusCode() == 429;
+		}
+
+		return t instanceof IOException;
+	}
+
+	private static void sendError(HttpServletResponse resp, Throwable t) throws IOException {
+		t = unwrap(t);
+
+		if (t instanceof HttpStatusException) {
+			resp.sendError(((HttpStatusException) t).getStatusCode(), "Error loading news");
+		} else {
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error loading news");
-			return;
 		}
+	}
 
-		if (newsFeed == null) {
-			log("Invalid request URI: " + req.getPathInfo());
-			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Not found");
-			return;
+	private static Throwable unwrap(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+			t = t.getCause();
+		}
+
+		return t;
+	}
+
+	// waiting is true when a reader has nothing to show until the refresh is done
+	private CompletableFuture<NewsFeedCacheEntry> refreshNewsFeed(final String uri, String[] uriParts, boolean waiting) {
+		final CompletableFuture<NewsFeedCacheEntry> future = new CompletableFuture<>();
+		CompletableFuture<NewsFeedCacheEntry> pending = pendingRefreshes.putIfAbsent(uri, future);
+		final long timeNow = System.currentTimeMillis();
+		final NewsFeedCacheEntry entry;
+		NewsFeedBackoff backoff;
+		long priority;
+
+		// Only one request per feed fetches from upstream, the others wait for
+		// the same fetch to complete
+		if (pending != null) {
+			return pending;
+		}
+
+		entry = cache.peek(uri);
+		backoff = backoffs.get(uri);
+
+		if (entry != null && entry.isFresh(timeNow)) {
+			// Refreshed by another request just before ours
+			pendingRefreshes.remove(uri, future);
+			future.complete(entry);
+			return future;
+		} else if (backoff != null && backoff.isActive(timeNow)) {
+			// Failed recently, do not ask upstream again yet
+			pendingRefreshes.remove(uri, future);
+			future.completeExceptionally(backoff.getCause());
+			return future;
 		}
 
-		if (lastRefresh == null || timeNow >= lastRefresh.longValue() + minRefreshInterval) {
-			log("Caching feed for \"" + uri + "\" @ " + new Date(timeNow) + "...");
-			synchronized (lastNewsFeeds) {
-				if (!newsFeed.equals(lastNewsFeeds.put(uri, newsFeed))) {
-					dirty = true;
+		priority = getRefreshPriority(entry, waiting, timeNow);
+		loadNewsFeed((entry == null) ? null : entry.getNewsFeed(), uriParts, priority).whenComplete(new BiConsumer<NewsFeed, Throwable>() {
+			@Override
+			public void accept(NewsFeed newsFeed, Throwable t) {
+				NewsFeedCacheEntry result = null;
+
+				try {
+					if (t == null) {
+						result = cacheNewsFeed(uri, entry, newsFeed, timeNow);
+					}
+				} catch (Throwable e) {
+					t = e;
+				} finally {
+					// Later requests start a new fetch, the waiting ones get this result
+					pendingRefreshes.remove(uri, future);
+
+					if (!(unwrap(t) instanceof OverloadedException)) {
+						cache.recordLoad(t == null);
+					}
 				}
 
-				lastRefreshes.put(uri, timeNow);
+				if (t == null) {
+					backoffs.remove(uri);
+					negativeCache.remove(uri);
+					future.complete(result);
+				} else if (unwrap(t) instanceof OverloadedException) {
+					// Never sent upstream, so it says nothing about the feed
+					future.completeExceptionally(unwrap(t));
+				} else if (isNotFound(unwrap(t)) && entry == null) {
+					// An unknown region or brf, answer 404 locally from now on
+					negativeCache.add(uri, System.currentTimeMillis());
+
+					if (requestLogging) {
+						log("No news feed for \"" + uri + "\": " + unwrap(t).getMessage());
+					}
+
+					future.completeExceptionally(unwrap(t));
+				} else {
+					NewsFeedBackoff backoff = NewsFeedBackoff.next(backoffs.get(uri), unwrap(t), System.currentTimeMillis(), minRefreshInterval,
+							maxBackoff);
+
+					backoffs.put(uri, backoff);
+					log("Failed to parse news feed for \"" + uri + "\", retrying after " + new Date(backoff.getRetryTime()) + ": "
+							+ backoff.getCause().getMessage(), backoff.getCause());
+					future.completeExceptionally(backoff.getCause());
+				}
 			}
+		});
+
+		return future;
+	}
+
+	// Fetched on a fetch thread when admission control lets it through
+	private CompletableFuture<NewsFeed> loadNewsFeed(final NewsFeed prevNewsFeed, final String[] uriParts, long priority) {
+		final String region = (uriParts == null || uriParts.length == 0) ? null : uriParts[0];
+		final String brf = (uriParts == null || uriParts.length < 2) ? null : uriParts[1];
+
+		return admissionControl.submit(NewsFeed.getURL(region, brf).getHost(), priority, new Callable<NewsFeed>() {
+			@Override
+			public NewsFeed call() throws IOException {
+				if (region == null) {
+					return NewsFeed.load(prevNewsFeed, fetcher);
+				} else if (brf == null) {
+					return NewsFeed.load(prevNewsFeed, region, fetcher);
+				} else {
+					return NewsFeed.load(prevNewsFeed, region, brf, fetcher);
+				}
+			}
+		});
+	}
+
+	// Readers that have nothing to show go first, then the feeds requested
+	// the most since their last refresh, then those that have been stale longest
+	private static long getRefreshPriority(NewsFeedCacheEntry entry, boolean waiting, long timeNow) {
+		long staleMinutes;
+
+		if (waiting || entry == null) {
+			return Long.MAX_VALUE;
+		}
+
+		staleMinutes = TimeUnit.MILLISECONDS.toMinutes(Math.max(timeNow - entry.getRefreshTime(), 0));
+
+		return Math.min(entry.getRequests(), Integer.MAX_VALUE) << 20 | Math.min(staleMinutes, (1 << 20) - 1);
+	}
+
+	private NewsFeedCacheEntry cacheNewsFeed(String uri, NewsFeedCacheEntry entry, NewsFeed newsFeed, long timeNow) throws IOException {
+		NewsFeed prevNewsFeed = (entry == null) ? null : entry.getNewsFeed();
+		NewsFeedDiff diff = NewsFeedDiff.compare(prevNewsFeed, newsFeed);
+		boolean changed = diff.hasChanges();
+		NewsFeedRefreshSchedule schedule = NewsFeedRefreshSchedule.next((entry == null) ? null : entry.getSchedule(), newsFeed, changed,
+				(entry == null) ? 0 : entry.getRequests(), (entry == null) ? timeNow : entry.getRefreshTime(), timeNow, minRefreshInterval,
+				maxRefreshInterval);
+		NewsFeedCacheEntry prev;
+
+		if (entry != null && newsFeed == entry.getNewsFeed() && entry.getRendering().getTtl() == schedule.getTtl()) {
+			// Not modified upstream, keep the rendering as well
+			if (requestLogging) {
+				log("Feed for \"" + uri + "\" not modified @ " + new Date(timeNow) + ", next refresh in "
+						+ TimeUnit.MILLISECONDS.toMinutes(schedule.getRefreshInterval()) + " minutes...");
+			}
+
+			entry = new NewsFeedCacheEntry(newsFeed, entry.getRendering(), timeNow, schedule);
+			cache.put(uri, entry);
+			return entry;
+		}
+
+		if (entry == null || newsFeed != entry.getNewsFeed()) {
+			metrics.recordParse(newsFeed.getParseTime());
+		}
+
+		entry = new NewsFeedCacheEntry(newsFeed, render(newsFeed, schedule.getTtl()), timeNow, schedule);
+
+		if (requestLogging) {
+			log("Caching feed for \"" + uri + "\" @ " + new Date(timeNow) + " (" + diff + "), next refresh in "
+					+ TimeUnit.MILLISECONDS.toMinutes(schedule.getRefreshInterval()) + " minutes...");
+		}
+
+		prev = cache.put(uri, entry);
+
+		if (prev != null && prev.getNewsFeed() != prevNewsFeed) {
+			// Another refresh got there first, compare with what it cached
+			diff = NewsFeedDiff.compare(prev.getNewsFeed(), newsFeed);
+		}
+
+		if (prev == null || diff.hasChanges()) {
+			store.markDirty(uri, newsFeed);
 		}
 
-		outputDocument(resp, newsFeed.getDocument());
+		// Kept after they have scrolled off the page
+		history.add(uri, diff.getAdded());
+		history.add(uri, diff.getChanged());
+
+		return entry;
 	}
 
-	private static void outputDocument(HttpServletResponse resp, org.w3c.dom.Document d) throws IOException {
-		resp.setContentType("application/rss+xml; charset=UTF-8");
-		outputDocument(d, resp.getOutputStream(), "UTF-8");
+	private NewsFeedRendering render(NewsFeed newsFeed, int ttl) throws IOException {
+		long start = System.nanoTime();
+		NewsFeedRendering rendering = NewsFeedRendering.render(newsFeed, ttl);
+
+		metrics.recordRender(System.nanoTime() - start);
+
+		return rendering;
 	}
 
-	private static void outputDocument(org.w3c.dom.Document d, OutputStream out, String encoding) throws IOException {
-		outputDocument(d, new StreamResult(out), encoding);
+	private void outputNewsFeed(HttpServletRequest req, HttpServletResponse resp, String uri, NewsFeedCacheEntry entry) throws IOException {
+		if (isHistoryRequest(req) && !uri.startsWith("*")) {
+			outputHistory(req, resp, uri, entry);
+		} else {
+			outputRendering(req, resp, entry.getRendering());
+		}
 	}
 
-	private static void outputDocument(org.w3c.dom.Document d, Result result, String encoding) throws IOException {
-		Transformer transformer;
+	// Never cached, the items depend on the parameters and are written as
+	// they are read from the history
+	private void outputHistory(HttpServletRequest req, HttpServletResponse resp, String uri, NewsFeedCacheEntry entry) throws IOException {
+		boolean gzip = acceptsGzip(req);
+		Iterator<NewsFeedItem> items = history.read(uri, entry.getNewsFeed().getItems(), getHistorySince(req), getHistoryLimit(req));
+		NewsFeedWriter writer;
+		OutputStream out;
+
+		if (items == null) {
+			if (req.isAsyncStarted() || req.getAttribute(historyOpenedAttribute) != null) {
+				// Already tried to open it, and a request is never made
+				// asynchronous twice. The feed without its history.
+				outputRendering(req, resp, entry.getRendering());
+			} else {
+				req.setAttribute(historyOpenedAttribute, Boolean.TRUE);
+				outputRenderingAsync(req, resp, uri, openHistory(uri, entry));
+			}
+
+			return;
+		}
+
+		resp.setHeader("Vary", "Accept-Encoding");
+		resp.setContentType(NewsFeedRendering.CONTENT_TYPE);
+
+		if (gzip) {
+			resp.setHeader("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(resp.getOutputStream(), 8192);
+		} else {
+			out = resp.getOutputStream();
+		}
+
+		writer = new NewsFeedWriter(out);
+		entry.getNewsFeed().write(writer, entry.getRendering().getTtl(), items);
+		writer.flush();
+
+		if (gzip) {
+			((GZIPOutputStream) out).finish();
+		}
+	}
+
+	// A history request for a feed that has to be fetched first also waits
+	// for its archive, so that the request only goes asynchronous once
+	private CompletableFuture<NewsFeedCacheEntry> withHistory(HttpServletRequest req, final String uri,
+			CompletableFuture<NewsFeedCacheEntry> future) {
+		if (!isHistoryRequest(req)) {
+			return future;
+		}
+
+		req.setAttribute(historyOpenedAttribute, Boolean.TRUE);
+
+		return future.thenCompose(new Function<NewsFeedCacheEntry, CompletionStage<NewsFeedCacheEntry>>() {
+			@Override
+			public CompletionStage<NewsFeedCacheEntry> apply(NewsFeedCacheEntry entry) {
+				return openHistory(uri, entry);
+			}
+		});
+	}
+
+	// Opening an archive may read or rewrite its file, never on the request thread
+	private CompletableFuture<NewsFeedCacheEntry> openHistory(final String uri, final NewsFeedCacheEntry entry) {
+		final CompletableFuture<NewsFeedCacheEntry> future = new CompletableFuture<>();
 
 		try {
-			transformer = transformerFactory.newTransformer();
-			transformer.setOutputProperty(OutputKeys.ENCODING, encoding);
-			transformer.transform(new DOMSource(d), result);
-		} catch (TransformerException e) {
-			throw new IOException(e.getMessage(), e);
+			fetchExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						history.open(uri);
+					} catch (IOException e) {
+						log("Failed to open the history of \"" + uri + "\"", e);
+					} finally {
+						future.complete(entry);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+			future.complete(entry);
 		}
+
+		return future;
 	}
 
-	public static void main(String[] args) throws IOException {
-		/*
-		NewsFeed newsFeed;
+	// ?limit=50 for the 50 newest items and ?since=2016-01-31 for those
+	// published since then, of a single feed including its history
+	private static boolean isHistoryRequest(HttpServletRequest req) {
+		return req.getParameter("limit") != null || req.getParameter("since") != null;
+	}
+
+	// At most historyMaxItems, all of them if only since is given
+	private int getHistoryLimit(HttpServletRequest req) {
+		String value = req.getParameter("limit");
+		int limit;
 
-		newsFeed = new NewsFeed("stockholm");
-		outputDocument(newsFeed.getDocument(), new StreamResult(System.out), "UTF-8");
-		System.out.println();
+		if (value == null) {
+			return history.getMaxItems();
+		}
 
 		try {
-			Thread.sleep(10000);
-		} catch (InterruptedException e) {
+			limit = Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			limit = 0;
 		}
 
-		newsFeed = new NewsFeed(newsFeed, "stockholm");
-		outputDocument(newsFeed.getDocument(), new StreamResult(System.out), "UTF-8");
-		*/
+		if (limit < 1) {
+			throw new IllegalArgumentException("Invalid limit: " + value);
+		}
+
+		return Math.min(limit, history.getMaxItems());
+	}
+
+	private static long getHistorySince(HttpServletRequest req) {
+		String value = req.getParameter("since");
+
+		if (value == null) {
+			return Long.MIN_VALUE;
+		}
+
+		try {
+			return DateUtils.parseDateStrictly(value.trim(), "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd").getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Invalid since: " + value);
+		}
+	}
+
+	private static void outputRendering(HttpServletRequest req, HttpServletResponse resp, NewsFeedRendering rendering) throws IOException {
+		boolean gzip = acceptsGzip(req);
+
+		resp.setHeader("Vary", "Accept-Encoding");
+		resp.setHeader("ETag", rendering.getETag(gzip));
+
+		if (rendering.getLastModified() >= 0) {
+			resp.setDateHeader("Last-Modified", rendering.getLastModified());
+		}
+
+		if (isNotModified(req, rendering)) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		resp.setContentType(NewsFeedRendering.CONTENT_TYPE);
+
+		if (gzip) {
+			resp.setHeader("Content-Encoding", "gzip");
+		}
+
+		resp.setContentLength(rendering.getContentLength(gzip));
+		rendering.writeTo(resp.getOutputStream(), gzip);
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest req) {
+		String acceptEncoding = req.getHeader("Accept-Encoding");
+		boolean gzip = false;
+
+		if (acceptEncoding == null) {
+			return false;
+		}
+
+		for (String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim();
+			boolean accepted = true;
+
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+
+				if (param.startsWith("q=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+
+			if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+				// An explicit gzip entry overrides any wildcard
+				return accepted;
+			} else if (name.equals("*")) {
+				gzip = accepted;
+			}
+		}
+
+		return gzip;
+	}
+
+	private static boolean isNotModified(HttpServletRequest req, NewsFeedRendering rendering) {
+		String ifNoneMatch = req.getHeader("If-None-Match");
+		long ifModifiedSince;
+
+		// If-None-Match takes precedence over If-Modified-Since (RFC 7232)
+		if (ifNoneMatch != null) {
+			return rendering.matches(ifNoneMatch);
+		} else if (rendering.getLastModified() < 0) {
+			return false;
+		}
+
+		try {
+			ifModifiedSince = req.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+
+		return ifModifiedSince >= 0 && rendering.getLastModified() / 1000 <= ifModifiedSince / 1000;
+	}
 
-		outputDocument(new NewsFeed("norr", "hagern").getDocument(), new StreamResult(System.out), "UTF-8");
+	// Offline mode, see NewsFeedBatchGenerator
+	public static void main(String[] args) throws IOException, InterruptedException {
+		NewsFeedBatchGenerator.main(args);
 	}
 
 }
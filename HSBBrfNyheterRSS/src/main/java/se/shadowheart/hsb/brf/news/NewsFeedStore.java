@@ -0,0 +1,856 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Denna klass sparar cachade nyhetsflöden på disk i ett kompakt, versionerat
+ * binärformat. Filen är en logg där bara de flöden som har ändrats läggs till
+ * sist, och den skrivs om (till en temporär fil som sedan döps om) när den
+ * innehåller för mycket gammal data. Anrop som markerar ett flöde som ändrat
+ * blockerar aldrig.
+ * </p>
+ * <p>
+ * Var flödena och nyheterna ligger i filen sparas i ett index när filen
+ * stängs och när den skrivs om. När filen öppnas läses indexet och bara de
+ * poster som har lagts till efter det, själva flödena läses först när de
+ * efterfrågas. Läsningar tar inget lås utan läser ur en ögonblicksbild av
+ * indexet, så de väntar aldrig på att flöden skrivs eller att filen skrivs
+ * om.
+ * </p>
+ * <p>
+ * Varje nyhet skrivs bara en gång, i en egen post, och flödena refererar till
+ * sina nyheter med deras {@link NewsFeedItem#getContentHash() hash}. Filer i
+ * det äldre formatet, där varje flöde innehöll sina nyheter, skrivs om när de
+ * läses in.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedStore {
+
+	private static final int MAGIC = 0x48534246; // "HSBF"
+	private static final int VERSION = 2;
+	private static final int VERSION_1 = 1;
+	private static final int HEADER_SIZE = 8;
+	private static final byte RECORD_FEED_V1 = 1; // a feed with its items
+	private static final byte RECORD_ITEM = 2;
+	private static final byte RECORD_FEED = 3; // a feed with the hashes of its items
+	private static final long minCompactionSize = 1024 * 1024; // 1 MB
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private final File file;
+	// Changed feeds, kept until written even if the cache evicts them
+	private final ConcurrentMap<String, NewsFeed> dirtyFeeds = new ConcurrentHashMap<>();
+	private final Map<String, Record> index = new HashMap<>();
+	// Items referenced by at least one feed in index
+	private final Map<Long, Record> itemIndex = new HashMap<>();
+
+	private NewsFeedRecordLog log;
+	private long liveSize;
+	// What read() sees, replaced as a whole after every change
+	private volatile Snapshot snapshot = new Snapshot(null, Collections.<String, Record> emptyMap(), Collections.<Long, Record> emptyMap());
+
+	public NewsFeedStore(File file) {
+		super();
+		this.file = file;
+		this.log = new NewsFeedRecordLog(file, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void markDirty(String key, NewsFeed newsFeed) {
+		dirtyFeeds.put(key, newsFeed);
+	}
+
+	public boolean isDirty() {
+		return !dirtyFeeds.isEmpty();
+	}
+
+	// Reads the index of the file and the records appended after it, the
+	// feeds themselves are read by read(key). Returns the number of stored
+	// feeds.
+	public synchronized int open() throws IOException {
+		Map<String, NewsFeed> newsFeeds = new LinkedHashMap<>();
+		DataInputStream in;
+		long position = -1;
+		int version;
+
+		close();
+		index.clear();
+		itemIndex.clear();
+		liveSize = 0;
+		log.open();
+		version = readVersion();
+
+		if (version != VERSION && version != VERSION_1) {
+			log.moveAside();
+			version = VERSION;
+		}
+
+		if (version == VERSION) {
+			position = readIndex();
+		} else {
+			log.deleteIndex();
+		}
+
+		if (position < 0) {
+			index.clear();
+			itemIndex.clear();
+			liveSize = 0;
+			position = HEADER_SIZE;
+		}
+
+		// Not closed, that would close the file
+		in = log.newInputStream(position);
+
+		while (true) {
+			Record record = readRecord(in, position);
+			byte[] payload;
+
+			if (record == null) {
+				break;
+			}
+
+			payload = record.payload;
+			record.payload = null;
+
+			if (record.type == RECORD_FEED_V1) {
+				// Only while migrating, the old format has no index
+				newsFeeds.put(record.key, decode(payload));
+			} else if (record.type == RECORD_ITEM) {
+				long itemHash = readItemHash(payload);
+
+				setItemIndex(new Record(record.type, record.time, itemHash, position, record.size));
+			} else {
+				long[] itemHashes = readItemHashes(payload);
+
+				// An item that was never written means the rest of the file is not ours either
+				if (!containsItems(itemHashes)) {
+					break;
+				}
+
+				setIndex(new Record(record.type, record.time, record.key, position, record.size, itemHashes));
+			}
+
+			position += record.size;
+		}
+
+		// Serve what could be read
+		log.truncate(position);
+		removeUnreferencedItems();
+
+		try {
+			if (version == VERSION_1) {
+				rewrite(newsFeeds);
+			}
+		} finally {
+			publish();
+		}
+
+		return index.size();
+	}
+
+	public boolean contains(String key) {
+		return snapshot.index.containsKey(key);
+	}
+
+	// The stored keys, the most recently written first
+	public List<String> getKeys() {
+		List<Record> records = new ArrayList<>(snapshot.index.values());
+		List<String> keys = new ArrayList<>(records.size());
+
+		Collections.sort(records, new Comparator<Record>() {
+			@Override
+			public int compare(Record r1, Record r2) {
+				return Long.compare(r2.time, r1.time);
+			}
+		});
+
+		for (Record record : records) {
+			keys.add(record.key);
+		}
+
+		return keys;
+	}
+
+	// The stored feed, or null if there is none. Never waits for a flush or
+	// compaction, the records are read from the snapshot taken before it.
+	public NewsFeed read(String key) throws IOException {
+		while (true) {
+			Snapshot s = snapshot;
+
+			try {
+				return read(s, key);
+			} catch (ClosedChannelException e) {
+				// Compacted or closed while reading, the new file is published
+				// before the lock is released
+				synchronized (this) {
+					if (s == snapshot) {
+						throw e;
+					}
+				}
+			}
+		}
+	}
+
+	private NewsFeed read(Snapshot s, String key) throws IOException {
+		Record record = s.index.get(key);
+		Map<Long, NewsFeedItem> items = new HashMap<>();
+
+		if (record == null || s.channel == null) {
+			return null;
+		}
+
+		for (long itemHash : record.itemHashes) {
+			Record item = s.itemIndex.get(itemHash);
+
+			if (item != null && !items.containsKey(itemHash)) {
+				items.put(itemHash, decodeItem(readPayload(s.channel, item)));
+			}
+		}
+
+		return decodeFeed(readPayload(s.channel, record), items);
+	}
+
+	private byte[] readPayload(FileChannel channel, Record record) throws IOException {
+		ByteBuffer buffer = NewsFeedRecordLog.read(channel, record.position, record.size);
+
+		// Skip type, time and key
+		buffer.position(1 + 8);
+		buffer.position(buffer.getInt() + buffer.position());
+
+		return log.readPayload(buffer, record.position);
+	}
+
+	// The feed in cache is written if it is still there, it may be newer than
+	// the one that was marked
+	public int flush(NewsFeedCache cache) throws IOException {
+		List<String> keys = new ArrayList<>();
+		List<NewsFeed> marked = new ArrayList<>();
+		List<NewsFeed> newsFeeds = new ArrayList<>();
+		List<byte[]> payloads = new ArrayList<>();
+
+		// Encode outside the lock, the feeds themselves never change
+		for (Map.Entry<String, NewsFeed> dirty : dirtyFeeds.entrySet()) {
+			NewsFeedCacheEntry entry = cache.peek(dirty.getKey());
+			NewsFeed newsFeed = (entry != null) ? entry.getNewsFeed() : dirty.getValue();
+
+			keys.add(dirty.getKey());
+			marked.add(dirty.getValue());
+			newsFeeds.add(newsFeed);
+			payloads.add(encodeFeed(newsFeed));
+		}
+
+		if (keys.isEmpty()) {
+			return 0;
+		}
+
+		append(keys, newsFeeds, payloads);
+
+		// Only once written, and not if the feed has been marked again since
+		for (int i = 0; i < keys.size(); i++) {
+			dirtyFeeds.remove(keys.get(i), marked.get(i));
+		}
+
+		return keys.size();
+	}
+
+	private synchronized void append(List<String> keys, List<NewsFeed> newsFeeds, List<byte[]> payloads) throws IOException {
+		long timeNow = System.currentTimeMillis();
+		long position = log.getChannel().position();
+		List<ByteBuffer> buffers = new ArrayList<>();
+		// Only indexed once the whole batch is on disk
+		Map<Long, Record> items = new LinkedHashMap<>();
+		List<Record> records = new ArrayList<>(keys.size());
+
+		for (int i = 0; i < keys.size(); i++) {
+			ByteBuffer buffer;
+			Record record;
+
+			// Items come before the first feed that needs them, so that
+			// reading the file never has to look ahead
+			for (NewsFeedItem item : newsFeeds.get(i).getItems()) {
+				if (!itemIndex.containsKey(item.getContentHash()) && !items.containsKey(item.getContentHash())) {
+					buffer = encodeRecord(RECORD_ITEM, timeNow, "", encodeItem(item));
+					record = new Record(RECORD_ITEM, timeNow, item.getContentHash(), position, buffer.remaining());
+					buffers.add(buffer);
+					position += record.size;
+					items.put(record.itemHash, record);
+				}
+			}
+
+			buffer = encodeRecord(RECORD_FEED, timeNow, keys.get(i), payloads.get(i));
+			record = new Record(RECORD_FEED, timeNow, keys.get(i), position, buffer.remaining(), getItemHashes(newsFeeds.get(i)));
+			buffers.add(buffer);
+			position += record.size;
+			records.add(record);
+		}
+
+		// Still dirty if it fails, written again on the next flush
+		log.append(buffers);
+
+		for (Record record : items.values()) {
+			setItemIndex(record);
+		}
+
+		for (Record record : records) {
+			setIndex(record);
+		}
+
+		removeUnreferencedItems();
+		publish();
+
+		if (position > minCompactionSize && position > 2 * (liveSize + HEADER_SIZE)) {
+			compact();
+		}
+	}
+
+	public synchronized void compact() throws IOException {
+		File tmp = log.createTemp();
+		Map<String, Record> compacted = new HashMap<>();
+		Map<Long, Record> compactedItems = new HashMap<>();
+		long position = HEADER_SIZE;
+
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			// All items first, then the feeds referring to them
+			for (Record record : itemIndex.values()) {
+				copyRecord(record, out);
+				compactedItems.put(record.itemHash, new Record(record.type, record.time, record.itemHash, position, record.size, record.refs));
+				position += record.size;
+			}
+
+			for (Record record : index.values()) {
+				copyRecord(record, out);
+				compacted.put(record.key, new Record(record.type, record.time, record.key, position, record.size, record.itemHashes));
+				position += record.size;
+			}
+
+			out.force(true);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		try {
+			log.replace(tmp);
+			index.clear();
+			index.putAll(compacted);
+			itemIndex.clear();
+			itemIndex.putAll(compactedItems);
+			liveSize = position - HEADER_SIZE;
+		} finally {
+			// The compacted file, or the original one if it could not be replaced
+			publish();
+		}
+
+		writeIndex();
+	}
+
+	private void copyRecord(Record record, FileChannel out) throws IOException {
+		NewsFeedRecordLog.writeFully(out, NewsFeedRecordLog.read(log.getChannel(), record.position, record.size));
+	}
+
+	// Replaces the file with one holding only newsFeeds, in the current format
+	private void rewrite(Map<String, NewsFeed> newsFeeds) throws IOException {
+		NewsFeedRecordLog prevLog = log;
+		File tmp = log.createTemp();
+
+		index.clear();
+		itemIndex.clear();
+		liveSize = 0;
+		log = new NewsFeedRecordLog(tmp, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+
+		try {
+			log.open();
+			writeAll(newsFeeds);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			log.close();
+			log = prevLog;
+		}
+
+		try {
+			log.replace(tmp);
+		} catch (IOException e) {
+			// The index is of the new file, the old one is migrated next time
+			index.clear();
+			itemIndex.clear();
+			liveSize = 0;
+			throw e;
+		}
+	}
+
+	public synchronized void writeAll(Map<String, NewsFeed> newsFeeds) throws IOException {
+		List<String> keys = new ArrayList<>(newsFeeds.keySet());
+		List<NewsFeed> values = new ArrayList<>(keys.size());
+		List<byte[]> payloads = new ArrayList<>(keys.size());
+
+		for (String key : keys) {
+			values.add(newsFeeds.get(key));
+			payloads.add(encodeFeed(newsFeeds.get(key)));
+		}
+
+		append(keys, values, payloads);
+	}
+
+	// Writes the index first, so that the next open() only has to read it
+	public synchronized void close() throws IOException {
+		if (log.getChannel() != null) {
+			try {
+				writeIndex();
+			} finally {
+				log.close();
+				publish();
+			}
+		}
+	}
+
+	private void publish() {
+		snapshot = new Snapshot(log.getChannel(), new HashMap<>(index), new HashMap<>(itemIndex));
+	}
+
+	private int readVersion() throws IOException {
+		ByteBuffer header = NewsFeedRecordLog.read(log.getChannel(), 0, HEADER_SIZE);
+
+		return (header.getInt() == MAGIC) ? header.getInt() : -1;
+	}
+
+	// The items and then the feeds, each with where it is in the file
+	private void writeIndex() throws IOException {
+		log.writeIndex(new NewsFeedRecordLog.IndexWriter() {
+			@Override
+			public void write(DataOutput out) throws IOException {
+				out.writeInt(itemIndex.size());
+
+				for (Record record : itemIndex.values()) {
+					out.writeLong(record.itemHash);
+					out.writeLong(record.time);
+					out.writeLong(record.position);
+					out.writeInt(record.size);
+				}
+
+				out.writeInt(index.size());
+
+				for (Record record : index.values()) {
+					writeString(out, record.key);
+					out.writeLong(record.time);
+					out.writeLong(record.position);
+					out.writeInt(record.size);
+					out.writeInt(record.itemHashes.length);
+
+					for (long itemHash : record.itemHashes) {
+						out.writeLong(itemHash);
+					}
+				}
+			}
+		});
+	}
+
+	// Where the file has to be read from after the index, or -1 if there is
+	// no index of it
+	private long readIndex() throws IOException {
+		return log.readIndex(new NewsFeedRecordLog.IndexReader() {
+			@Override
+			public void read(DataInput in) throws IOException {
+				for (int i = in.readInt(); i > 0; i--) {
+					long itemHash = in.readLong();
+					long time = in.readLong();
+
+					setItemIndex(new Record(RECORD_ITEM, time, itemHash, in.readLong(), in.readInt()));
+				}
+
+				for (int i = in.readInt(); i > 0; i--) {
+					String key = readString(in);
+					long time = in.readLong();
+					long position = in.readLong();
+					int size = in.readInt();
+					long[] itemHashes = new long[in.readInt()];
+
+					for (int j = 0; j < itemHashes.length; j++) {
+						itemHashes[j] = in.readLong();
+					}
+
+					setIndex(new Record(RECORD_FEED, time, key, position, size, itemHashes));
+				}
+			}
+		});
+	}
+
+	// Items referenced by the new record first, so shared ones never drop to zero
+	private void setIndex(Record record) {
+		Record prev = index.put(record.key, record);
+
+		liveSize += record.size - ((prev == null) ? 0 : prev.size);
+		addReferences(record.itemHashes, 1);
+
+		if (prev != null) {
+			addReferences(prev.itemHashes, -1);
+		}
+	}
+
+	private void setItemIndex(Record record) {
+		Record prev = itemIndex.put(record.itemHash, record);
+
+		liveSize += record.size - ((prev == null) ? 0 : prev.size);
+
+		if (prev != null) {
+			record.refs = prev.refs;
+		}
+	}
+
+	private void addReferences(long[] itemHashes, int delta) {
+		for (long itemHash : itemHashes) {
+			Record item = itemIndex.get(itemHash);
+
+			if (item != null) {
+				item.refs += delta;
+			}
+		}
+	}
+
+	// Unreferenced items are left for compaction to remove from the file
+	private void removeUnreferencedItems() {
+		Iterator<Record> it = itemIndex.values().iterator();
+
+		while (it.hasNext()) {
+			Record item = it.next();
+
+			if (item.refs <= 0) {
+				it.remove();
+				liveSize -= item.size;
+			}
+		}
+	}
+
+	private boolean containsItems(long[] itemHashes) {
+		for (long itemHash : itemHashes) {
+			if (!itemIndex.containsKey(itemHash)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static long[] getItemHashes(NewsFeed newsFeed) {
+		List<NewsFeedItem> items = newsFeed.getItems();
+		long[] itemHashes = new long[items.size()];
+
+		for (int i = 0; i < itemHashes.length; i++) {
+			itemHashes[i] = items.get(i).getContentHash();
+		}
+
+		return itemHashes;
+	}
+
+	// type (1), time (8), key length (4), key, payload length (4), payload, CRC32 of payload (4)
+	private static ByteBuffer encodeRecord(byte type, long time, String key, byte[] payload) {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+
+		return NewsFeedRecordLog.encodeRecord(ByteBuffer.allocate(1 + 8 + 4 + k.length).put(type).putLong(time).putInt(k.length).put(k).array(),
+				payload);
+	}
+
+	private static Record readRecord(DataInputStream in, long position) throws IOException {
+		Record record;
+		byte type;
+		long time;
+		byte[] key;
+		byte[] payload;
+
+		try {
+			type = in.readByte();
+			time = in.readLong();
+			key = readBytes(in, in.readInt());
+			payload = NewsFeedRecordLog.readPayload(in);
+
+			if (payload == null || type < RECORD_FEED_V1 || type > RECORD_FEED) {
+				return null;
+			}
+		} catch (EOFException e) {
+			return null;
+		}
+
+		record = new Record(type, time, new String(key, StandardCharsets.UTF_8), position,
+				NewsFeedRecordLog.getRecordSize(1 + 8 + 4 + key.length, payload.length));
+		record.payload = payload;
+
+		return record;
+	}
+
+	private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+		byte[] b;
+
+		if (length < 0 || length > 64 * 1024 * 1024) {
+			throw new EOFException("Invalid length " + length);
+		}
+
+		b = new byte[length];
+		in.readFully(b);
+
+		return b;
+	}
+
+	// A feed with its items, as in the first version of the format
+	static byte[] encode(NewsFeed newsFeed) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+		try (DataOutputStream out = new DataOutputStream(buffer)) {
+			writeNewsFeed(out, newsFeed);
+		}
+
+		return buffer.toByteArray();
+	}
+
+	static NewsFeed decode(byte[] payload) throws IOException {
+		return readNewsFeed(new DataInputStream(new ByteArrayInputStream(payload)));
+	}
+
+	// url, title, description, lastBuildDate, item count and the hashes of the items
+	static byte[] encodeFeed(NewsFeed newsFeed) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+		try (DataOutputStream out = new DataOutputStream(buffer)) {
+			writeString(out, newsFeed.getUrl());
+			writeString(out, newsFeed.getTitle());
+			writeString(out, newsFeed.getDescription());
+			writeDate(out, newsFeed.getLastBuildDate());
+			out.writeInt(newsFeed.getItems().size());
+
+			for (NewsFeedItem item : newsFeed.getItems()) {
+				out.writeLong(item.getContentHash());
+			}
+		}
+
+		return buffer.toByteArray();
+	}
+
+	// Null if an item is not in items
+	static NewsFeed decodeFeed(byte[] payload, Map<Long, NewsFeedItem> items) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		String url = readString(in);
+		String title = readString(in);
+		String description = readString(in);
+		Date lastBuildDate = readDate(in);
+		int count = in.readInt();
+		List<NewsFeedItem> feedItems = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			NewsFeedItem item = items.get(in.readLong());
+
+			if (item == null) {
+				return null;
+			}
+
+			feedItems.add(item);
+		}
+
+		return new NewsFeed(url, title, description, lastBuildDate, feedItems);
+	}
+
+	static byte[] encodeItem(NewsFeedItem item) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+		try (DataOutputStream out = new DataOutputStream(buffer)) {
+			writeItem(out, item);
+		}
+
+		return buffer.toByteArray();
+	}
+
+	static NewsFeedItem decodeItem(byte[] payload) throws IOException {
+		return readItem(new DataInputStream(new ByteArrayInputStream(payload)));
+	}
+
+	// Without interning, the item is only needed for its hash
+	private static long readItemHash(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+		return new NewsFeedItem(readString(in), readString(in), readDate(in), readString(in)).getContentHash();
+	}
+
+	// The item hashes of a payload from encodeFeed
+	private static long[] readItemHashes(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		long[] itemHashes;
+
+		readString(in);
+		readString(in);
+		readString(in);
+		readDate(in);
+		itemHashes = new long[in.readInt()];
+
+		for (int i = 0; i < itemHashes.length; i++) {
+			itemHashes[i] = in.readLong();
+		}
+
+		return itemHashes;
+	}
+
+	static void writeNewsFeed(DataOutput out, NewsFeed newsFeed) throws IOException {
+		Collection<NewsFeedItem> items = newsFeed.getItems();
+
+		writeString(out, newsFeed.getUrl());
+		writeString(out, newsFeed.getTitle());
+		writeString(out, newsFeed.getDescription());
+		writeDate(out, newsFeed.getLastBuildDate());
+		out.writeInt(items.size());
+
+		for (NewsFeedItem item : items) {
+			writeItem(out, item);
+		}
+	}
+
+	static NewsFeed readNewsFeed(DataInput in) throws IOException {
+		String url = readString(in);
+		String title = readString(in);
+		String description = readString(in);
+		Date lastBuildDate = readDate(in);
+		int count = in.readInt();
+		List<NewsFeedItem> items = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			items.add(readItem(in));
+		}
+
+		return new NewsFeed(url, title, description, lastBuildDate, items);
+	}
+
+	private static void writeItem(DataOutput out, NewsFeedItem item) throws IOException {
+		writeString(out, item.getTitle());
+		writeString(out, item.getLink());
+		out.writeLong(item.hasDate() ? item.getTime() : NO_DATE);
+		writeString(out, item.getDesc());
+	}
+
+	private static NewsFeedItem readItem(DataInput in) throws IOException {
+		return NewsFeedItemInterner.intern(new NewsFeedItem(readString(in), readString(in), readDate(in), readString(in)));
+	}
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		byte[] b;
+
+		if (length < 0) {
+			return null;
+		}
+
+		b = new byte[length];
+		in.readFully(b);
+
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeDate(DataOutput out, Date date) throws IOException {
+		out.writeLong((date == null) ? NO_DATE : date.getTime());
+	}
+
+	private static Date readDate(DataInput in) throws IOException {
+		long time = in.readLong();
+
+		return (time == NO_DATE) ? null : new Date(time);
+	}
+
+	private static class Snapshot {
+
+		private final FileChannel channel; // null once closed
+		private final Map<String, Record> index;
+		private final Map<Long, Record> itemIndex;
+
+		private Snapshot(FileChannel channel, Map<String, Record> index, Map<Long, Record> itemIndex) {
+			super();
+			this.channel = channel;
+			this.index = index;
+			this.itemIndex = itemIndex;
+		}
+
+	}
+
+	private static class Record {
+
+		private final byte type;
+		private final long time;
+		private final String key;
+		private final long itemHash;
+		private final long position;
+		private final int size;
+		private final long[] itemHashes;
+		private int refs; // feeds referring to an item
+		private byte[] payload;
+
+		private Record(byte type, long time, String key, long position, int size) {
+			this(type, time, key, 0, position, size, new long[0], 0);
+		}
+
+		private Record(byte type, long time, String key, long position, int size, long[] itemHashes) {
+			this(type, time, key, 0, position, size, itemHashes, 0);
+		}
+
+		private Record(byte type, long time, long itemHash, long position, int size) {
+			this(type, time, null, itemHash, position, size, new long[0], 0);
+		}
+
+		private Record(byte type, long time, long itemHash, long position, int size, int refs) {
+			this(type, time, null, itemHash, position, size, new long[0], refs);
+		}
+
+		private Record(byte type, long time, String key, long itemHash, long position, int size, long[] itemHashes, int refs) {
+			super();
+			this.type = type;
+			this.time = time;
+			this.key = key;
+			this.itemHash = itemHash;
+			this.position = position;
+			this.size = size;
+			this.itemHashes = itemHashes;
+			this.refs = refs;
+		}
+
+	}
+
+}
@@ -32,7 +32,15 @@ public class NewsFeedUtils {
 	}
 
 	public static org.w3c.dom.Element addDateTimeChildElement(org.w3c.dom.Node node, String name, Date dateTime) {
-		return addTextChildElement(node, name, dateFormatOut.format(dateTime));
+		return addTextChildElement(node, name, formatDateTime(dateTime));
+	}
+
+	public static String formatDateTime(Date dateTime) {
+		return dateFormatOut.format(dateTime);
+	}
+
+	public static String formatDateTime(long dateTime) {
+		return dateFormatOut.format(dateTime);
 	}
 
 }
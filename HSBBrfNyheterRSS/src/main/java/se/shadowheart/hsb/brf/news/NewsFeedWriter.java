@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+/**
+ * <p>
+ * Denna klass skriver ett nyhetsflöde i RSS 2.0-format direkt till en ström,
+ * utan att först bygga upp ett DOM-träd. Utdata är tecken för tecken identisk
+ * med den som fås när dokumentet från {@link NewsFeed#getDocument()} skrivs ut
+ * med en identitets-<code>Transformer</code> i UTF-8. Text som redan finns i
+ * UTF-8 skrivs utan att först göras om till tecken.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedWriter implements Flushable {
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[8192];
+	private int count;
+	private boolean startTagOpen;
+
+	public NewsFeedWriter(OutputStream out) {
+		super();
+		this.out = out;
+	}
+
+	public void writeStartDocument() throws IOException {
+		writeAscii("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+	}
+
+	public void writeStartElement(String name) throws IOException {
+		closeStartTag();
+		write('<');
+		writeAscii(name);
+		startTagOpen = true;
+	}
+
+	public void writeStartElement(String name, String attributeName, String attributeValue) throws IOException {
+		writeStartElement(name);
+		write(' ');
+		writeAscii(attributeName);
+		writeAscii("=\"");
+		writeEscaped(attributeValue, true);
+		write('"');
+	}
+
+	public void writeEndElement(String name) throws IOException {
+		// Elements without content are written as <name/>, just like the
+		// Transformer does
+		if (startTagOpen) {
+			writeAscii("/>");
+			startTagOpen = false;
+		} else {
+			writeAscii("</");
+			writeAscii(name);
+			write('>');
+		}
+	}
+
+	public void writeTextElement(String name, String text) throws IOException {
+		if (text != null) {
+			writeStartElement(name);
+			writeText(text);
+			writeEndElement(name);
+		}
+	}
+
+	// text in UTF-8
+	public void writeTextElement(String name, byte[] text) throws IOException {
+		if (text != null) {
+			writeStartElement(name);
+			writeText(text);
+			writeEndElement(name);
+		}
+	}
+
+	public void writeText(String text) throws IOException {
+		if (!text.isEmpty()) {
+			closeStartTag();
+			writeEscaped(text, false);
+		}
+	}
+
+	public void writeText(byte[] text) throws IOException {
+		if (text.length > 0) {
+			closeStartTag();
+			writeEscaped(text);
+		}
+	}
+
+	// Markup that is already encoded, such as a whole element
+	public void writeRaw(byte[] b) throws IOException {
+		closeStartTag();
+
+		if (b.length > buffer.length - count) {
+			flushBuffer();
+
+			if (b.length > buffer.length) {
+				out.write(b);
+				return;
+			}
+		}
+
+		System.arraycopy(b, 0, buffer, count, b.length);
+		count += b.length;
+	}
+
+	public void writeDateTimeElement(String name, Date dateTime) throws IOException {
+		writeTextElement(name, NewsFeedUtils.formatDateTime(dateTime));
+	}
+
+	public void writeDateTimeElement(String name, long dateTime) throws IOException {
+		writeTextElement(name, NewsFeedUtils.formatDateTime(dateTime));
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void closeStartTag() throws IOException {
+		if (startTagOpen) {
+			write('>');
+			startTagOpen = false;
+		}
+	}
+
+	// Same escaping rules as the JDK's XML serializer uses for UTF-8 output
+	private void writeEscaped(String text, boolean attribute) throws IOException {
+		int length = text.length();
+
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+
+			if (c == '&') {
+				writeAscii("&amp;");
+			} else if (c == '<') {
+				writeAscii("&lt;");
+			} else if (c == '>') {
+				writeAscii("&gt;");
+			} else if (c == '"' && attribute) {
+				writeAscii("&quot;");
+			} else if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F)) {
+				writeCharacterReference(c);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				writeCharacterReference(Character.toCodePoint(c, text.charAt(++i)));
+			} else if (Character.isSurrogate(c)) {
+				throw new IOException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+			} else if (c < 0x80) {
+				write(c);
+			} else if (c < 0x800) {
+				write(0xC0 | (c >> 6));
+				write(0x80 | (c & 0x3F));
+			} else {
+				write(0xE0 | (c >> 12));
+				write(0x80 | ((c >> 6) & 0x3F));
+				write(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	// The same rules for text that is already valid UTF-8, markup characters
+	// are all ASCII so everything else is copied as it is
+	private void writeEscaped(byte[] text) throws IOException {
+		int length = text.length;
+
+		for (int i = 0; i < length; i++) {
+			int b = text[i] & 0xFF;
+
+			if (b == '&') {
+				writeAscii("&amp;");
+			} else if (b == '<') {
+				writeAscii("&lt;");
+			} else if (b == '>') {
+				writeAscii("&gt;");
+			} else if ((b < 0x20 && b != '\t' && b != '\n') || b == 0x7F) {
+				writeCharacterReference(b);
+			} else if (b == 0xC2 && i + 1 < length && (text[i + 1] & 0xFF) <= 0x9F) {
+				// U+0080 to U+009F
+				writeCharacterReference(text[++i] & 0xFF);
+			} else if (b >= 0xF0 && i + 3 < length) {
+				// Outside the BMP, a surrogate pair in UTF-16
+				writeCharacterReference(((b & 0x07) << 18) | ((text[i + 1] & 0x3F) << 12) | ((text[i + 2] & 0x3F) << 6) | (text[i + 3] & 0x3F));
+				i += 3;
+			} else {
+				write(b);
+			}
+		}
+	}
+
+	private void writeCharacterReference(int codePoint) throws IOException {
+		write('&');
+		write('#');
+		writeAscii(Integer.toString(codePoint));
+		write(';');
+	}
+
+	private void writeAscii(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			write(s.charAt(i));
+		}
+	}
+
+	private void write(int b) throws IOException {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+
+		buffer[count++] = (byte) b;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, count);
+		count = 0;
+	}
+
+}
@@ -0,0 +1,229 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jsoup.HttpStatusException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.shadowheart.hsb.brf.news.CircuitBreakerNewsFeedFetcher.CircuitOpenException;
+
+/**
+ * <p>
+ * Kontrollerar att {@link CircuitBreakerNewsFeedFetcher} slutar anropa en värd
+ * efter för många misslyckanden i rad, släpper igenom ett enda anrop när tiden
+ * har gått, och stänger eller öppnar igen beroende på hur det går.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class CircuitBreakerNewsFeedFetcherTest {
+
+	private static final long OPEN_TIME = 200;
+
+	private final AtomicInteger fetches = new AtomicInteger();
+	// What the next fetch does: null to succeed, or an exception to throw
+	private volatile IOException failure;
+	// When set, fetches wait for release
+	private volatile CountDownLatch fetching;
+	private volatile CountDownLatch release;
+	private CircuitBreakerNewsFeedFetcher fetcher;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		fetcher = new CircuitBreakerNewsFeedFetcher(new NewsFeedFetcher() {
+			@Override
+			public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException {
+				fetches.incrementAndGet();
+
+				if (release != null) {
+					fetching.countDown();
+
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				if (failure != null) {
+					throw failure;
+				}
+
+				return new NewsFeedPage(url, 200, new byte[0], null, null, null);
+			}
+		}, 3, OPEN_TIME);
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void opensAfterFailuresInARow() throws IOException {
+		failure = new IOException("Connection refused");
+		assertFails(failure);
+		assertFails(failure);
+		assertFalse(fetcher.isOpen("www.hsb.se"));
+		assertFails(failure);
+		assertTrue(fetcher.isOpen("www.hsb.se"));
+		assertEquals(1, fetcher.getOpenCount());
+
+		// Not even tried
+		try {
+			fetch("https://www.hsb.se/nyheter");
+			fail();
+		} catch (CircuitOpenException e) {
+			assertTrue(e.getRetryTime() > System.currentTimeMillis());
+		}
+
+		assertEquals(3, fetches.get());
+
+		// Other hosts are not affected
+		failure = null;
+		fetch("https://hsb.example.com/nyheter");
+		assertFalse(fetcher.isOpen("hsb.example.com"));
+	}
+
+	@Test
+	public void successResetsFailures() throws IOException {
+		failure = new IOException("Connection refused");
+		assertFails(failure);
+		assertFails(failure);
+		failure = null;
+		fetch("https://www.hsb.se/nyheter");
+		failure = new IOException("Connection refused");
+		assertFails(failure);
+		assertFails(failure);
+
+		assertFalse(fetcher.isOpen("www.hsb.se"));
+	}
+
+	@Test
+	public void onlyServerErrorsCount() throws IOException {
+		failure = new HttpStatusException("Not found", 404, "https://www.hsb.se/norr/brf/ejdern/nyheter");
+
+		for (int i = 0; i < 5; i++) {
+			assertFails(failure);
+		}
+
+		assertFalse(fetcher.isOpen("www.hsb.se"));
+
+		failure = new HttpStatusException("Too many requests", 429, "https://www.hsb.se/nyheter");
+		assertFails(failure);
+		failure = new HttpStatusException("Service unavailable", 503, "https://www.hsb.se/nyheter");
+		assertFails(failure);
+		assertFails(failure);
+
+		assertTrue(fetcher.isOpen("www.hsb.se"));
+	}
+
+	@Test
+	public void trialSuccessCloses() throws Exception {
+		open();
+		Thread.sleep(OPEN_TIME + 50);
+
+		failure = null;
+		fetch("https://www.hsb.se/nyheter");
+
+		assertFalse(fetcher.isOpen("www.hsb.se"));
+		assertEquals(0, fetcher.getOpenCount());
+		fetch("https://www.hsb.se/nyheter");
+	}
+
+	@Test
+	public void trialFailureReopens() throws Exception {
+		open();
+		Thread.sleep(OPEN_TIME + 50);
+
+		assertFails(failure);
+
+		assertTrue(fetcher.isOpen("www.hsb.se"));
+		assertOpen();
+	}
+
+	@Test
+	public void oneTrialAtATime() throws Exception {
+		Future<NewsFeedPage> trial;
+
+		open();
+		Thread.sleep(OPEN_TIME + 50);
+		failure = null;
+		fetching = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+
+		trial = executor.submit(new Callable<NewsFeedPage>() {
+			@Override
+			public NewsFeedPage call() throws IOException {
+				return fetch("https://www.hsb.se/nyheter");
+			}
+		});
+
+		assertTrue(fetching.await(5, TimeUnit.SECONDS));
+		// Half open while the trial is running
+		assertTrue(fetcher.isOpen("www.hsb.se"));
+		assertOpen();
+
+		release.countDown();
+		trial.get(5, TimeUnit.SECONDS);
+		release = null;
+		assertFalse(fetcher.isOpen("www.hsb.se"));
+	}
+
+	private void open() throws IOException {
+		failure = new IOException("Connection refused");
+
+		for (int i = 0; i < 3; i++) {
+			assertFails(failure);
+		}
+
+		assertOpen();
+	}
+
+	private void assertOpen() throws IOException {
+		int count = fetches.get();
+
+		try {
+			fetch("https://www.hsb.se/nyheter");
+			fail();
+		} catch (CircuitOpenException e) {
+			assertEquals(count, fetches.get());
+		}
+	}
+
+	private void assertFails(IOException expected) {
+		try {
+			fetch("https://www.hsb.se/nyheter");
+			fail();
+		} catch (IOException e) {
+			assertSame(expected, e);
+		}
+	}
+
+	private NewsFeedPage fetch(String url) throws IOException {
+		return fetcher.fetch(new URL(url), null, null);
+	}
+
+}
@@ -0,0 +1,279 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.jsoup.HttpStatusException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * Kontrollerar {@link HttpNewsFeedFetcher} mot en lokal HTTP-server:
+ * villkorliga anrop, omdirigeringar, gzip och gränsen för hur stora svar som
+ * läses.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class HttpNewsFeedFetcherTest {
+
+	private static final int MAX_BODY_SIZE = 16 * 1024 * 1024;
+	private static final byte[] PAGE = "<html><body>Nyheter från Brf Hägern</body></html>".getBytes(StandardCharsets.UTF_8);
+
+	private HttpServer server;
+	private HttpNewsFeedFetcher fetcher;
+	// Headers of the last request to the server
+	private volatile Headers requestHeaders;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.start();
+		fetcher = new HttpNewsFeedFetcher(1000, 5000);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void fetchesPage() throws IOException {
+		NewsFeedPage page;
+
+		handle("/nyheter", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Content-Type", "text/html; charset=\"UTF-8\"");
+				exchange.getResponseHeaders().set("ETag", "\"v1\"");
+				exchange.getResponseHeaders().set("Last-Modified", "Thu, 12 May 2016 10:00:00 GMT");
+				send(exchange, 200, PAGE);
+			}
+		});
+
+		page = fetcher.fetch(url("/nyheter"), null, null);
+
+		assertEquals(200, page.getStatusCode());
+		assertArrayEquals(PAGE, page.getBody());
+		assertEquals("UTF-8", page.getCharset());
+		assertEquals("\"v1\"", page.getETag());
+		assertEquals("Thu, 12 May 2016 10:00:00 GMT", page.getLastModified());
+		assertEquals(NewsFeed.USER_AGENT, requestHeaders.getFirst("User-Agent"));
+		assertEquals("gzip", requestHeaders.getFirst("Accept-Encoding"));
+		assertNull(requestHeaders.getFirst("If-None-Match"));
+		assertNull(requestHeaders.getFirst("If-Modified-Since"));
+	}
+
+	@Test
+	public void notModified() throws IOException {
+		NewsFeedPage page;
+
+		handle("/nyheter", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					send(exchange, 304, null);
+				} else {
+					send(exchange, 200, PAGE);
+				}
+			}
+		});
+
+		page = fetcher.fetch(url("/nyheter"), "\"v1\"", "Thu, 12 May 2016 10:00:00 GMT");
+
+		assertTrue(page.isNotModified());
+		assertEquals(0, page.getBody().length);
+		assertEquals(0, page.getFingerprint());
+		// The validators sent, so that they are kept for the next request
+		assertEquals("\"v1\"", page.getETag());
+		assertEquals("Thu, 12 May 2016 10:00:00 GMT", page.getLastModified());
+		assertEquals("Thu, 12 May 2016 10:00:00 GMT", requestHeaders.getFirst("If-Modified-Since"));
+
+		assertEquals(200, fetcher.fetch(url("/nyheter"), "\"v2\"", null).getStatusCode());
+	}
+
+	@Test
+	public void followsRedirects() throws IOException {
+		NewsFeedPage page;
+
+		handle("/brf/hagern", redirect(302, "nyheter"));
+		handle("/brf/nyheter", redirect(301, url("/nyheter").toString()));
+		handle("/nyheter", page(PAGE));
+
+		page = fetcher.fetch(url("/brf/hagern"), null, null);
+
+		assertEquals(url("/nyheter"), page.getUrl());
+		assertArrayEquals(PAGE, page.getBody());
+	}
+
+	@Test
+	public void tooManyRedirects() throws IOException {
+		final AtomicInteger requests = new AtomicInteger();
+
+		handle("/nyheter", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				redirect(302, "/nyheter").handle(exchange);
+			}
+		});
+
+		try {
+			fetcher.fetch(url("/nyheter"), null, null);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Too many redirects"));
+		}
+
+		assertEquals(11, requests.get());
+	}
+
+	@Test
+	public void errorStatus() throws IOException {
+		handle("/nyheter", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 404, "Finns inte".getBytes(StandardCharsets.UTF_8));
+			}
+		});
+
+		try {
+			fetcher.fetch(url("/nyheter"), null, null);
+			fail();
+		} catch (HttpStatusException e) {
+			assertEquals(404, e.getStatusCode());
+		}
+	}
+
+	@Test
+	public void gzipBody() throws IOException {
+		handle("/nyheter", gzipPage(PAGE));
+
+		assertArrayEquals(PAGE, fetcher.fetch(url("/nyheter"), null, null).getBody());
+	}
+
+	@Test
+	public void bodyOfMaxSize() throws IOException {
+		handle("/nyheter", page(new byte[MAX_BODY_SIZE]));
+
+		assertEquals(MAX_BODY_SIZE, fetcher.fetch(url("/nyheter"), null, null).getBody().length);
+	}
+
+	@Test
+	public void bodyTooLarge() throws IOException {
+		handle("/nyheter", page(new byte[MAX_BODY_SIZE + 1]));
+
+		assertTooLarge(url("/nyheter"));
+	}
+
+	@Test
+	public void gzipBodyTooLarge() throws IOException {
+		// Small on the wire, but not once decompressed
+		handle("/nyheter", gzipPage(new byte[MAX_BODY_SIZE + 1]));
+
+		assertTooLarge(url("/nyheter"));
+	}
+
+	private void assertTooLarge(URL url) throws IOException {
+		try {
+			fetcher.fetch(url, null, null);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Response too large"));
+		}
+	}
+
+	private void handle(String path, final HttpHandler handler) {
+		server.createContext(path, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requestHeaders = exchange.getRequestHeaders();
+				handler.handle(exchange);
+			}
+		});
+	}
+
+	private URL url(String path) throws IOException {
+		return new URL("http", server.getAddress().getAddress().getHostAddress(), server.getAddress().getPort(), path);
+	}
+
+	private static HttpHandler page(final byte[] body) {
+		return new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, body);
+			}
+		};
+	}
+
+	private static HttpHandler gzipPage(byte[] body) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+			out.write(body);
+		}
+
+		return new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				send(exchange, 200, buffer.toByteArray());
+			}
+		};
+	}
+
+	private static HttpHandler redirect(final int statusCode, final String location) {
+		return new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Location", location);
+				send(exchange, statusCode, null);
+			}
+		};
+	}
+
+	// Chunked, so that the fetcher cannot go by Content-Length
+	private static void send(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+		if (body == null) {
+			exchange.sendResponseHeaders(statusCode, -1);
+			exchange.close();
+			return;
+		}
+
+		exchange.sendResponseHeaders(statusCode, 0);
+
+		try (OutputStream out = exchange.getResponseBody()) {
+			for (int i = 0; i < body.length; i += 65536) {
+				out.write(Arrays.copyOfRange(body, i, Math.min(i + 65536, body.length)));
+			}
+		} catch (IOException e) {
+			// The fetcher gave up on the body
+		}
+	}
+
+}
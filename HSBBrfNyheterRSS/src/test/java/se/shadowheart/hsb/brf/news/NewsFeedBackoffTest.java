@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Kontrollerar att tiden till nästa försök i {@link NewsFeedBackoff}
+ * fördubblas för varje misslyckande upp till gränsen, och att slumpen håller
+ * den mellan halva och hela tiden.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedBackoffTest {
+
+	private static final long MIN_DELAY = 1000;
+	private static final long MAX_DELAY = 60 * 1000;
+
+	@Test
+	public void delayDoubles() {
+		long timeNow = 1_000_000_000_000L;
+		IOException cause = new IOException("Connection refused");
+		NewsFeedBackoff backoff = null;
+
+		for (int failures = 1; failures <= 10; failures++) {
+			long delay = Math.min(MIN_DELAY << (failures - 1), MAX_DELAY);
+
+			backoff = NewsFeedBackoff.next(backoff, cause, timeNow, MIN_DELAY, MAX_DELAY);
+
+			assertEquals(failures, backoff.getFailures());
+			assertEquals(timeNow, backoff.getFailureTime());
+			assertSame(cause, backoff.getCause());
+			assertBetween(timeNow + delay / 2, timeNow + delay, backoff.getRetryTime());
+		}
+	}
+
+	@Test
+	public void jitterWithinBounds() {
+		Set<Long> retryTimes = new HashSet<>();
+
+		for (int i = 0; i < 1000; i++) {
+			NewsFeedBackoff backoff = NewsFeedBackoff.next(null, null, 0, MIN_DELAY, MAX_DELAY);
+
+			assertBetween(MIN_DELAY / 2, MIN_DELAY, backoff.getRetryTime());
+			retryTimes.add(backoff.getRetryTime());
+		}
+
+		// Spread out, not the same time for every feed
+		assertTrue(retryTimes.size() > 100);
+	}
+
+	@Test
+	public void manyFailuresKeepMaxDelay() {
+		NewsFeedBackoff backoff = null;
+
+		for (int i = 0; i < 100; i++) {
+			backoff = NewsFeedBackoff.next(backoff, null, 0, MIN_DELAY, MAX_DELAY);
+		}
+
+		assertEquals(100, backoff.getFailures());
+		assertBetween(MAX_DELAY / 2, MAX_DELAY, backoff.getRetryTime());
+	}
+
+	@Test
+	public void activeUntilRetryTime() {
+		NewsFeedBackoff backoff = NewsFeedBackoff.next(null, null, 0, MIN_DELAY, MAX_DELAY);
+
+		assertTrue(backoff.isActive(0));
+		assertTrue(backoff.isActive(backoff.getRetryTime() - 1));
+		assertFalse(backoff.isActive(backoff.getRetryTime()));
+	}
+
+	private static void assertBetween(long min, long max, long actual) {
+		assertTrue(actual + " < " + min, actual >= min);
+		assertTrue(actual + " > " + max, actual <= max);
+	}
+
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Kontrollerar att {@link NewsFeedCache} håller sig inom sitt antal poster och
+ * sin vikt genom att ta bort de poster som har använts minst nyligen, och att
+ * poster som inte har använts på länge tas bort.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedCacheTest {
+
+	private static final long MAX_IDLE = 60 * 1000;
+
+	@Test
+	public void hitsAndMisses() throws IOException {
+		NewsFeedCache cache = new NewsFeedCache(10, Long.MAX_VALUE, MAX_IDLE);
+		NewsFeedCacheEntry entry = entry(3, 0);
+		long requests = entry.getRequests();
+
+		assertNull(cache.put("norr/hagern", entry));
+		assertSame(entry, cache.get("norr/hagern"));
+		assertNull(cache.get("norr/tranan"));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(requests + 1, entry.getRequests());
+		assertTrue(entry.getLastAccess() > 0);
+	}
+
+	@Test
+	public void weightFollowsEntries() throws IOException {
+		NewsFeedCache cache = new NewsFeedCache(10, Long.MAX_VALUE, MAX_IDLE);
+		NewsFeedCacheEntry small = entry(1, 0);
+		NewsFeedCacheEntry large = entry(5, 0);
+
+		cache.put("norr/hagern", small);
+		assertEquals(small.getWeight(), cache.getWeight());
+
+		// Replaced, and only if absent
+		assertSame(small, cache.put("norr/hagern", large));
+		assertEquals(large.getWeight(), cache.getWeight());
+		assertSame(large, cache.putIfAbsent("norr/hagern", small));
+		assertEquals(large.getWeight(), cache.getWeight());
+
+		assertNull(cache.putIfAbsent("norr/tranan", small));
+		assertEquals(large.getWeight() + small.getWeight(), cache.getWeight());
+
+		cache.remove("norr/hagern");
+		cache.remove("norr/ejdern");
+		assertEquals(small.getWeight(), cache.getWeight());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void entryLimitEvictsLeastRecentlyUsed() throws IOException {
+		NewsFeedCache cache = new NewsFeedCache(10, Long.MAX_VALUE, MAX_IDLE);
+		long timeNow = System.currentTimeMillis();
+
+		for (int i = 0; i < 10; i++) {
+			cache.put("norr/brf" + i, entry(3, timeNow - 1000 + i));
+		}
+
+		assertEquals(10, cache.size());
+		assertEquals(0, cache.getSizeEvictions());
+
+		// Used, so no longer the least recently used
+		cache.peek("norr/brf0").touch(timeNow - 1);
+		cache.put("norr/brf10", entry(3, timeNow));
+
+		// Down to 90%, so that the next put does not evict again
+		assertEquals(9, cache.size());
+		assertEquals(2, cache.getSizeEvictions());
+		assertNull(cache.peek("norr/brf1"));
+		assertNull(cache.peek("norr/brf2"));
+		assertEquals(Arrays.asList("norr/brf10", "norr/brf0", "norr/brf9"), cache.getMostRecentlyUsedKeys(3));
+	}
+
+	@Test
+	public void weightLimitEvictsLeastRecentlyUsed() throws IOException {
+		long weight = entry(3, 0).getWeight();
+		NewsFeedCache cache = new NewsFeedCache(100, 10 * weight, MAX_IDLE);
+		long timeNow = System.currentTimeMillis();
+
+		for (int i = 0; i < 10; i++) {
+			cache.put("norr/brf" + i, entry(3, timeNow - 1000 + i));
+		}
+
+		assertEquals(10 * weight, cache.getWeight());
+		assertEquals(0, cache.getSizeEvictions());
+
+		// Far below the entry limit, but too heavy
+		cache.put("norr/brf10", entry(3, timeNow));
+
+		assertEquals(9, cache.size());
+		assertEquals(9 * weight, cache.getWeight());
+		assertEquals(2, cache.getSizeEvictions());
+		assertNull(cache.peek("norr/brf0"));
+		assertNull(cache.peek("norr/brf1"));
+	}
+
+	@Test
+	public void idleEntriesEvicted() throws IOException {
+		NewsFeedCache cache = new NewsFeedCache(10, Long.MAX_VALUE, MAX_IDLE);
+		long timeNow = System.currentTimeMillis();
+
+		cache.put("norr/hagern", entry(3, timeNow - 2 * MAX_IDLE));
+		cache.put("norr/tranan", entry(3, timeNow - MAX_IDLE / 2));
+		cache.put("norr/ejdern", entry(3, timeNow));
+
+		cache.evictIdle();
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getIdleEvictions());
+		assertEquals(0, cache.getSizeEvictions());
+		assertNull(cache.peek("norr/hagern"));
+		assertEquals(2 * entry(3, 0).getWeight(), cache.getWeight());
+	}
+
+	@Test
+	public void idleEntriesEvictedBeforeRecentlyUsed() throws IOException {
+		NewsFeedCache cache = new NewsFeedCache(3, Long.MAX_VALUE, MAX_IDLE);
+		long timeNow = System.currentTimeMillis();
+
+		cache.put("norr/hagern", entry(3, timeNow - 3));
+		cache.put("norr/tranan", entry(3, timeNow - 2 * MAX_IDLE));
+		cache.put("norr/ejdern", entry(3, timeNow - 2));
+		cache.put("norr/svanen", entry(3, timeNow - 1));
+
+		// The idle entry was enough, the size limit is kept
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getIdleEvictions());
+		assertEquals(0, cache.getSizeEvictions());
+		assertNull(cache.peek("norr/tranan"));
+	}
+
+	// An entry of a feed with count items, last used at lastAccess
+	private static NewsFeedCacheEntry entry(int count, long lastAccess) throws IOException {
+		NewsFeed newsFeed = NewsFeedStoreTest.createNewsFeed("Brf Hägern", count);
+		NewsFeedCacheEntry entry = new NewsFeedCacheEntry(newsFeed, NewsFeedRendering.render(newsFeed), lastAccess);
+
+		entry.touch(lastAccess);
+
+		return entry;
+	}
+
+}
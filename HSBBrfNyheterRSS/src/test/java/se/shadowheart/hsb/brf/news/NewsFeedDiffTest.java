@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Kontrollerar att {@link NewsFeedDiff} delar upp nyheterna i nya, ändrade,
+ * oförändrade och borttagna, både för nyheter som jämförs via sin länk och
+ * för nyheter utan länk.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedDiffTest {
+
+	private static final String URL = "https://www.hsb.se/norr/brf/hagern/nyheter";
+
+	@Test
+	public void firstVersion() {
+		NewsFeed next = newsFeed("Brf Hägern", item("/1", "Årsstämma", "Text"));
+		NewsFeedDiff diff = NewsFeedDiff.compare(null, next);
+
+		assertTrue(diff.hasChanges());
+		assertTrue(diff.isHeaderChanged());
+		assertEquals(next.getItems(), diff.getAdded());
+	}
+
+	@Test
+	public void sameVersion() {
+		NewsFeed newsFeed = newsFeed("Brf Hägern", item("/1", "Årsstämma", "Text"));
+		NewsFeedDiff diff = NewsFeedDiff.compare(newsFeed, newsFeed);
+
+		assertFalse(diff.hasChanges());
+		assertEquals(newsFeed.getItems(), diff.getUnchanged());
+	}
+
+	@Test
+	public void linkedItems() {
+		NewsFeedItem kept = item("/1", "Årsstämma", "Text");
+		NewsFeedItem edited = item("/2", "Snöröjning", "Text");
+		NewsFeedItem dropped = item("/3", "Städdag", "Text");
+		NewsFeedItem editedAgain = item("/2", "Snöröjning", "Ny text");
+		NewsFeedItem added = item("/4", "Ny styrelse", "Text");
+		NewsFeedDiff diff = NewsFeedDiff.compare(newsFeed("Brf Hägern", kept, edited, dropped),
+				newsFeed("Brf Hägern", added, item("/1", "Årsstämma", "Text"), editedAgain));
+
+		assertTrue(diff.hasChanges());
+		assertFalse(diff.isHeaderChanged());
+		assertEquals(Arrays.asList(added), diff.getAdded());
+		assertEquals(Arrays.asList(editedAgain), diff.getChanged());
+		// Equal, even though not the same instance
+		assertEquals(Arrays.asList(kept), diff.getUnchanged());
+		assertEquals(Arrays.asList(dropped), diff.getRemoved());
+		assertEquals("1 added, 1 changed, 1 unchanged, 1 removed", diff.toString());
+	}
+
+	@Test
+	public void changedDate() {
+		NewsFeedItem prev = item("/1", "Årsstämma", "Text");
+		NewsFeedItem next = new NewsFeedItem("Årsstämma", URL + "/1", new GregorianCalendar(2016, Calendar.MAY, 13).getTime(), "Text");
+		NewsFeedDiff diff = NewsFeedDiff.compare(newsFeed("Brf Hägern", prev), newsFeed("Brf Hägern", next));
+
+		assertEquals(Arrays.asList(next), diff.getChanged());
+	}
+
+	@Test
+	public void unlinkedItems() {
+		NewsFeedItem kept = item(null, "Årsstämma", "Text");
+		NewsFeedItem edited = item(null, "Snöröjning", "Text");
+		NewsFeedItem editedAgain = item(null, "Snöröjning", "Ny text");
+		NewsFeedDiff diff = NewsFeedDiff.compare(newsFeed("Brf Hägern", kept, edited),
+				newsFeed("Brf Hägern", item(null, "Årsstämma", "Text"), editedAgain));
+
+		// Without a link an edited item cannot be told from a new one
+		assertEquals(Arrays.asList(editedAgain), diff.getAdded());
+		assertEquals(Collections.<NewsFeedItem> emptyList(), diff.getChanged());
+		assertEquals(Arrays.asList(kept), diff.getUnchanged());
+		assertEquals(Arrays.asList(edited), diff.getRemoved());
+	}
+
+	@Test
+	public void duplicateItemsMatchedOnce() {
+		NewsFeedItem unlinked = item(null, "Årsstämma", "Text");
+		NewsFeedItem linked = item("/1", "Snöröjning", "Text");
+		NewsFeedItem duplicate = item("/1", "Snöröjning", "Annan text");
+		NewsFeedDiff diff = NewsFeedDiff.compare(newsFeed("Brf Hägern", unlinked, linked, duplicate),
+				newsFeed("Brf Hägern", unlinked, unlinked, linked, linked));
+
+		// Only the first item with a link counts, the duplicate is gone
+		assertEquals(Arrays.asList(unlinked, linked), diff.getAdded());
+		assertEquals(Arrays.asList(unlinked, linked), diff.getUnchanged());
+		assertEquals(Arrays.asList(duplicate), diff.getRemoved());
+	}
+
+	@Test
+	public void headerChanged() {
+		NewsFeedItem item = item("/1", "Årsstämma", "Text");
+		NewsFeedDiff diff = NewsFeedDiff.compare(newsFeed("Brf Hägern", item), newsFeed("HSB Brf Hägern", item));
+
+		assertTrue(diff.hasChanges());
+		assertTrue(diff.isHeaderChanged());
+		assertEquals(Arrays.asList(item), diff.getUnchanged());
+	}
+
+	@Test
+	public void indexByLink() {
+		NewsFeedItem first = item("/1", "Årsstämma", "Text");
+
+		assertEquals(new HashSet<>(Arrays.asList(URL + "/1")),
+				NewsFeedDiff.indexByLink(newsFeed("Brf Hägern", first, item("/1", "Årsstämma", "Annan text"), item(null, "Städdag", "Text")))
+						.keySet());
+		assertTrue(NewsFeedDiff.indexByLink(null).isEmpty());
+	}
+
+	private static NewsFeedItem item(String link, String title, String desc) {
+		return new NewsFeedItem(title, (link == null) ? null : URL + link, new GregorianCalendar(2016, Calendar.MAY, 12).getTime(), desc);
+	}
+
+	private static NewsFeed newsFeed(String title, NewsFeedItem... items) {
+		List<NewsFeedItem> list = Arrays.asList(items);
+
+		return new NewsFeed(URL, title, "", list.get(0).getDate(), list);
+	}
+
+}
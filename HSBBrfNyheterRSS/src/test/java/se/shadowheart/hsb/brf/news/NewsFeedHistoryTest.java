@@ -0,0 +1,250 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <p>
+ * Kontrollerar att {@link NewsFeedHistory} läser tillbaka de arkiverade
+ * nyheterna, också efter att arkivet har öppnats igen, skrivits om eller
+ * stängts medan nyheterna läses.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedHistoryTest {
+
+	private static final String KEY = "norr/hagern";
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private NewsFeedHistory history;
+
+	@Before
+	public void setUp() {
+		history = new NewsFeedHistory(folder.getRoot(), 100);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		history.close();
+	}
+
+	@Test
+	public void notReadUntilOpened() throws IOException {
+		history.add(KEY, items(0, 10, ""));
+		history.flush();
+		history.close();
+		history = new NewsFeedHistory(folder.getRoot(), 100);
+
+		assertNull(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100));
+		history.open(KEY);
+		assertEquals(titles(10, 0, ""), titles(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100)));
+	}
+
+	@Test
+	public void currentItemsMergedWithArchived() throws IOException {
+		List<String> expected = titles(15, 10, "");
+
+		history.add(KEY, items(0, 10, ""));
+		assertEquals(10, history.flush());
+		// Already archived with the same content
+		history.add(KEY, items(5, 10, ""));
+		assertEquals(0, history.flush());
+		history.open(KEY);
+
+		expected.addAll(titles(10, 0, ""));
+		assertEquals(expected, titles(history.read(KEY, items(5, 15, ""), Long.MIN_VALUE, 100)));
+		assertEquals(titles(15, 12, ""), titles(history.read(KEY, items(5, 15, ""), Long.MIN_VALUE, 3)));
+		assertEquals(titles(15, 8, ""), titles(history.read(KEY, items(5, 15, ""), time(8), 100)));
+	}
+
+	@Test
+	public void oldestItemsTrimmed() throws IOException {
+		history.close();
+		history = new NewsFeedHistory(folder.getRoot(), 5);
+		history.add(KEY, items(0, 10, ""));
+		history.flush();
+		history.open(KEY);
+
+		assertEquals(titles(10, 5, ""), titles(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100)));
+	}
+
+	@Test
+	public void reopenedFromIndex() throws IOException {
+		history.add(KEY, items(0, 10, ""));
+		history.flush();
+		history.close();
+
+		assertTrue(new File(getFile(KEY).getPath() + ".index").isFile());
+
+		// Appended after the index was written
+		history = new NewsFeedHistory(folder.getRoot(), 100);
+		history.add(KEY, items(10, 12, ""));
+		history.flush();
+		history.close();
+
+		history = new NewsFeedHistory(folder.getRoot(), 100);
+		history.open(KEY);
+		assertEquals(titles(12, 0, ""), titles(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100)));
+	}
+
+	@Test
+	public void tornLastRecordTruncated() throws IOException {
+		history.add(KEY, items(0, 10, ""));
+		history.flush();
+		history.close();
+
+		try (FileOutputStream out = new FileOutputStream(getFile(KEY), true)) {
+			out.write(new byte[] { 1, 2, 3, 4, 5 });
+		}
+
+		history = new NewsFeedHistory(folder.getRoot(), 100);
+		history.open(KEY);
+		assertEquals(titles(10, 0, ""), titles(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100)));
+		assertEquals(5, new File(getFile(KEY).getPath() + ".corrupt").length());
+
+		history.add(KEY, items(10, 11, ""));
+		history.flush();
+		history.close();
+		history = new NewsFeedHistory(folder.getRoot(), 100);
+		history.open(KEY);
+		assertEquals(titles(11, 0, ""), titles(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100)));
+	}
+
+	@Test
+	public void compactedWhileIterating() throws IOException {
+		Iterator<NewsFeedItem> it;
+		long size;
+
+		history.add(KEY, items(0, 40, ""));
+		history.flush();
+		history.open(KEY);
+		it = history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100);
+		assertEquals("Nyhet 39", it.next().getTitle());
+
+		// Mostly old versions, so that it is rewritten
+		for (int i = 0; i < 10; i++) {
+			history.add(KEY, items(0, 40, " v" + i));
+			history.flush();
+		}
+
+		size = getFile(KEY).length();
+		assertEquals(1, history.compact());
+		assertTrue(getFile(KEY).length() < size);
+
+		// The first batch was read before, the rest from the compacted file
+		// in their newest versions
+		assertEquals(concat(titles(39, 8, ""), titles(8, 0, " v9")), titles(it));
+		assertEquals(titles(40, 0, " v9"), titles(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100)));
+	}
+
+	@Test
+	public void evictedWhileIterating() throws IOException {
+		Iterator<NewsFeedItem> it = readAndEvict();
+
+		// The rest from the file, without opening the archive again
+		assertEquals(titles(39, 0, ""), titles(it));
+	}
+
+	@Test
+	public void reopenedWhileIterating() throws IOException {
+		Iterator<NewsFeedItem> it = readAndEvict();
+
+		history.add(KEY, items(0, 40, " v1"));
+		history.flush();
+
+		assertEquals(concat(titles(39, 8, ""), titles(8, 0, " v1")), titles(it));
+	}
+
+	// Past the first batch of 32 items, and then evicted by opening other archives
+	private Iterator<NewsFeedItem> readAndEvict() throws IOException {
+		Iterator<NewsFeedItem> it;
+
+		history.add(KEY, items(0, 40, ""));
+		history.flush();
+		history.open(KEY);
+		it = history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100);
+		assertEquals("Nyhet 39", it.next().getTitle());
+
+		for (int i = 0; i < 100; i++) {
+			history.open("norr/brf" + i);
+		}
+
+		assertNull(history.read(KEY, Collections.<NewsFeedItem> emptyList(), Long.MIN_VALUE, 100));
+
+		return it;
+	}
+
+	private File getFile(String key) {
+		return new File(folder.getRoot(), String.format("%016x.dat", NewsFeedItem.hash(key)));
+	}
+
+	private static long time(int i) {
+		return 1_000_000_000_000L + i * DAY;
+	}
+
+	// Item i is published on day i, so the newest have the highest numbers
+	private static List<NewsFeedItem> items(int from, int to, String version) {
+		List<NewsFeedItem> items = new ArrayList<>();
+
+		for (int i = from; i < to; i++) {
+			items.add(new NewsFeedItem("Nyhet " + i + version, "https://www.hsb.se/norr/brf/hagern/nyheter/" + i, new Date(time(i)),
+					"Text " + i + version));
+		}
+
+		return items;
+	}
+
+	// The titles of the items from (exclusive) down to to (inclusive)
+	private static List<String> titles(int from, int to, String version) {
+		List<String> titles = new ArrayList<>();
+
+		for (int i = from - 1; i >= to; i--) {
+			titles.add("Nyhet " + i + version);
+		}
+
+		return titles;
+	}
+
+	private static List<String> concat(List<String> titles1, List<String> titles2) {
+		List<String> titles = new ArrayList<>(titles1);
+
+		titles.addAll(titles2);
+
+		return titles;
+	}
+
+	private static List<String> titles(Iterator<NewsFeedItem> it) {
+		List<String> titles = new ArrayList<>();
+
+		while (it.hasNext()) {
+			titles.add(it.next().getTitle());
+		}
+
+		return titles;
+	}
+
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Kontrollerar att {@link NewsFeedHtmlScanner} hittar nyhetsflödets delar av
+ * en sida i den ordning de står, bara på hela klassnamn, och att markup i
+ * kommentarer, CDATA, <code>script</code> och <code>style</code> inte tas
+ * för sidans egen.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedHtmlScannerTest {
+
+	private static final String TITLE = "<div class=\"brf-header-bottom-text\"><span>Brf Hägern</span></div>";
+	private static final String ITEMS = "<ul class=\"itemlist\"><li class=\"item\">Nyhet</li></ul>";
+
+	@Test
+	public void regionsInDocumentOrder() {
+		String regionName = "<div class=\"regionname\">Norr</div>";
+
+		assertEquals(Arrays.asList(ITEMS, regionName, TITLE), regions("<body>" + ITEMS + "<p>" + regionName + "</p>" + TITLE + "</body>"));
+		assertEquals(Arrays.asList(TITLE, regionName, ITEMS), regions("<body>" + TITLE + regionName + ITEMS + "</body>"));
+	}
+
+	@Test
+	public void regionInsideRegionLeftOut() {
+		String html = "<div class=\"brf-header-bottom-text\"><div class=\"regionname\">Norr</div></div>";
+
+		assertEquals(Arrays.asList(html), regions("<body>" + html + "</body>"));
+	}
+
+	@Test
+	public void exactClassMatch() {
+		assertEquals(Collections.<String> emptyList(), regions("<ul class=\"itemlist-old\"></ul><ul class=\"olditemlist\"></ul>"));
+		assertEquals(Collections.<String> emptyList(), regions("<ul data-class=\"itemlist\"></ul><ul title='class=\"itemlist\"'></ul>"));
+		assertEquals(Collections.<String> emptyList(), regions("<ol class=\"itemlist\"></ol><ulx class=\"itemlist\"></ulx>"));
+
+		assertEquals(Arrays.asList("<ul class=\"news itemlist\"></ul>"), regions("<ul class=\"news itemlist\"></ul>"));
+		assertEquals(Arrays.asList("<ul class=itemlist></ul>"), regions("<ul class=itemlist></ul>"));
+		assertEquals(Arrays.asList("<UL CLASS='itemlist\tnews'></UL>"), regions("<UL CLASS='itemlist\tnews'></UL>"));
+		assertEquals(Arrays.asList("<ul id=\"a>b\" class=\"itemlist\"></ul>"), regions("<ul id=\"a>b\" class=\"itemlist\"></ul>"));
+	}
+
+	@Test
+	public void nestedElementsOfSameTag() {
+		String html = "<ul class=\"itemlist\"><li><ul><li>Bilaga</li></ul></li></ul>";
+
+		assertEquals(Arrays.asList(html), regions(html + "<ul><li>Meny</li></ul>"));
+	}
+
+	@Test
+	public void commentsSkipped() {
+		assertEquals(Collections.<String> emptyList(), regions("<!-- <ul class=\"itemlist\"><li>Gammal</li></ul> -->"));
+		assertEquals(Arrays.asList(ITEMS), regions("<!-- <ul class=\"itemlist\"> -->" + ITEMS));
+
+		// An end tag in a comment does not end the region
+		assertEquals(Arrays.asList("<ul class=\"itemlist\"><!-- </ul> --></ul>"), regions("<ul class=\"itemlist\"><!-- </ul> --></ul>"));
+	}
+
+	@Test
+	public void cdataSkipped() {
+		assertEquals(Collections.<String> emptyList(), regions("<![CDATA[<ul class=\"itemlist\"></ul>]]>"));
+		assertEquals(Arrays.asList("<ul class=\"itemlist\"><![CDATA[</ul>]]></ul>"), regions("<ul class=\"itemlist\"><![CDATA[</ul>]]></ul>"));
+	}
+
+	@Test
+	public void scriptSkipped() {
+		assertEquals(Arrays.asList(ITEMS), regions("<script>document.write('<ul class=\"itemlist\">');</script>" + ITEMS));
+		assertEquals(Arrays.asList(ITEMS), regions("<SCRIPT type=\"text/javascript\">var s = '<ul class=\"itemlist\">';</SCRIPT>" + ITEMS));
+		assertEquals(Arrays.asList("<ul class=\"itemlist\"><script>'</ul>'</script></ul>"),
+				regions("<ul class=\"itemlist\"><script>'</ul>'</script></ul>"));
+
+		// Not a script element
+		assertEquals(Arrays.asList(ITEMS), regions("<scripts>" + ITEMS + "</scripts>"));
+	}
+
+	@Test
+	public void styleSkipped() {
+		assertEquals(Arrays.asList(ITEMS), regions("<style>/* <ul class=\"itemlist\"> */</style>" + ITEMS));
+		assertEquals(Arrays.asList("<ul class=\"itemlist\"><style>/* </ul> */</style></ul>"),
+				regions("<ul class=\"itemlist\"><style>/* </ul> */</style></ul>"));
+	}
+
+	@Test
+	public void unclosedRegionEndsPage() {
+		assertEquals(Arrays.asList("<ul class=\"itemlist\"><li>Nyhet"), regions("<ul class=\"itemlist\"><li>Nyhet"));
+	}
+
+	@Test
+	public void fingerprintOfRegions() {
+		long fingerprint = fingerprint("<html><head><script>var t = 1;</script></head><body>" + TITLE + ITEMS + "</body></html>");
+
+		// Only the regions count
+		assertEquals(fingerprint, fingerprint("<html><head><script>var t = 2;</script></head><body>" + TITLE + "<p>Meny</p>" + ITEMS));
+		assertNotEquals(fingerprint, fingerprint(TITLE + ITEMS.replace("Nyhet", "Ny nyhet")));
+
+		// The whole page when there are none
+		assertNotEquals(fingerprint("<p>1</p>"), fingerprint("<p>2</p>"));
+	}
+
+	private static List<String> regions(String html) {
+		byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+		List<String> regions = new ArrayList<>();
+
+		for (int[] region : new NewsFeedHtmlScanner(bytes).findFeedRegions()) {
+			regions.add(new String(bytes, region[0], region[1] - region[0], StandardCharsets.UTF_8));
+		}
+
+		return regions;
+	}
+
+	private static long fingerprint(String html) {
+		return new NewsFeedHtmlScanner(html.getBytes(StandardCharsets.UTF_8)).fingerprint();
+	}
+
+}
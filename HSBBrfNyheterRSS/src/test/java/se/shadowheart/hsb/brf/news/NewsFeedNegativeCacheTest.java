@@ -0,0 +1,115 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Kontrollerar att {@link NewsFeedNegativeCache} glömmer nycklar när de går
+ * ut, och att den aldrig håller fler än sin kapacitet utan då ersätter den
+ * post som går ut först.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedNegativeCacheTest {
+
+	private static final long TTL = 1000;
+
+	@Test
+	public void expires() {
+		NewsFeedNegativeCache cache = new NewsFeedNegativeCache(10, TTL);
+
+		assertFalse(cache.contains("norr/ejdern", 0));
+		cache.add("norr/ejdern", 0);
+
+		assertTrue(cache.contains("norr/ejdern", 0));
+		assertTrue(cache.contains("norr/ejdern", TTL - 1));
+		assertFalse(cache.contains("norr/ejdern", TTL));
+		assertFalse(cache.contains("norr/tranan", 0));
+		assertEquals(1, cache.size(TTL - 1));
+		assertEquals(0, cache.size(TTL));
+	}
+
+	@Test
+	public void addedAgainLivesLonger() {
+		NewsFeedNegativeCache cache = new NewsFeedNegativeCache(10, TTL);
+
+		cache.add("norr/ejdern", 0);
+		cache.add("norr/ejdern", 500);
+
+		assertTrue(cache.contains("norr/ejdern", TTL));
+		assertFalse(cache.contains("norr/ejdern", 500 + TTL));
+	}
+
+	@Test
+	public void removed() {
+		NewsFeedNegativeCache cache = new NewsFeedNegativeCache(10, TTL);
+
+		cache.add("norr/ejdern", 0);
+		cache.remove("norr/ejdern");
+
+		assertFalse(cache.contains("norr/ejdern", 0));
+	}
+
+	@Test
+	public void fullReplacesFirstToExpire() {
+		NewsFeedNegativeCache cache = new NewsFeedNegativeCache(3, TTL);
+
+		cache.add("norr/a", 0);
+		cache.add("norr/b", 10);
+		cache.add("norr/c", 20);
+		cache.add("norr/d", 30);
+
+		assertEquals(3, cache.size(30));
+		assertFalse(cache.contains("norr/a", 30));
+		assertTrue(cache.contains("norr/b", 30));
+		assertTrue(cache.contains("norr/c", 30));
+		assertTrue(cache.contains("norr/d", 30));
+
+		// Already there, nothing has to go
+		cache.add("norr/b", 40);
+		assertTrue(cache.contains("norr/c", 40));
+		assertTrue(cache.contains("norr/d", 40));
+	}
+
+	@Test
+	public void fullDropsExpired() {
+		NewsFeedNegativeCache cache = new NewsFeedNegativeCache(3, TTL);
+
+		cache.add("norr/a", 0);
+		cache.add("norr/b", 10);
+		cache.add("norr/c", 2000);
+		cache.add("norr/d", 2000);
+
+		// Both expired ones, not only the first
+		cache.add("norr/e", 2000);
+		assertEquals(3, cache.size(2000));
+		assertTrue(cache.contains("norr/c", 2000));
+		assertTrue(cache.contains("norr/d", 2000));
+		assertTrue(cache.contains("norr/e", 2000));
+	}
+
+	@Test
+	public void neverMoreThanCapacity() {
+		NewsFeedNegativeCache cache = new NewsFeedNegativeCache(100, TTL);
+
+		for (int i = 0; i < 10000; i++) {
+			cache.add("norr/brf" + i, i / 100);
+		}
+
+		assertEquals(100, cache.capacity());
+		assertEquals(100, cache.size(0));
+		assertTrue(cache.contains("norr/brf9999", 99));
+		assertFalse(cache.contains("norr/brf0", 0));
+		assertEquals(1, new NewsFeedNegativeCache(0, TTL).capacity());
+	}
+
+}
@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <p>
+ * Kontrollerar {@link NewsFeedRecordLog}: att poster läses tillbaka som de
+ * skrevs, att en trasig sista post kortas bort och sparas undan, och att ett
+ * index bara används för den fil det skrevs för.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedRecordLogTest {
+
+	private static final byte[] HEADER = { 'T', 'E', 'S', 'T' };
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private NewsFeedRecordLog log;
+
+	@Before
+	public void setUp() throws IOException {
+		file = new File(folder.getRoot(), "test.dat");
+		log = new NewsFeedRecordLog(file, HEADER);
+		log.open();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		log.close();
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		assertEquals(HEADER.length, log.append(records("a", "bb")));
+		log.append(records("ccc"));
+		log.close();
+		log.open();
+
+		assertTrue(log.hasHeader());
+		assertEquals(Arrays.asList("a", "bb", "ccc"), readAll());
+	}
+
+	@Test
+	public void tornRecordIsTruncated() throws IOException {
+		long end;
+
+		log.append(records("a", "bb"));
+		end = log.getChannel().size();
+		log.close();
+
+		// Half of a record, as after a crash in the middle of a write
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			ByteBuffer record = record("ccc");
+
+			out.seek(end);
+			out.write(record.array(), 0, record.remaining() - 3);
+		}
+
+		log.open();
+		assertEquals(Arrays.asList("a", "bb"), readAll());
+		assertEquals(end, log.getChannel().size());
+		assertEquals(record("ccc").remaining() - 3, new File(file.getPath() + ".corrupt").length());
+
+		// Appended after the last complete record
+		log.append(records("dd"));
+		log.close();
+		log.open();
+		assertEquals(Arrays.asList("a", "bb", "dd"), readAll());
+	}
+
+	@Test
+	public void corruptRecordIsTruncated() throws IOException {
+		long end;
+
+		log.append(records("a"));
+		end = log.getChannel().size();
+		log.append(records("bb"));
+		log.close();
+
+		// The last byte of the payload, so that it does not match its CRC32
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.seek(file.length() - 5);
+			out.write('x');
+		}
+
+		log.open();
+		assertEquals(Arrays.asList("a"), readAll());
+		assertEquals(end, log.getChannel().size());
+	}
+
+	@Test
+	public void indexCoversAppendedFile() throws IOException {
+		long length;
+
+		log.append(records("a", "bb"));
+		length = log.getChannel().size();
+		log.writeIndex(writer(42));
+		log.append(records("ccc"));
+		log.close();
+		log.open();
+
+		assertEquals(length, log.readIndex(reader(42)));
+	}
+
+	@Test
+	public void staleIndexIsRejected() throws IOException {
+		File index = new File(file.getPath() + ".index");
+		File saved = new File(folder.getRoot(), "saved.index");
+		File tmp;
+
+		log.append(records("a", "bb", "ccc"));
+		log.writeIndex(writer(42));
+		Files.copy(index.toPath(), saved.toPath());
+
+		// Rewritten to another file of the same length
+		tmp = log.createTemp();
+
+		try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+			for (ByteBuffer record : records("x", "yy", "zzz")) {
+				out.seek(out.length());
+				out.write(record.array());
+			}
+		}
+
+		log.replace(tmp);
+		assertFalse(index.isFile());
+		Files.copy(saved.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		assertEquals(-1, log.readIndex(reader(42)));
+		assertFalse(index.isFile());
+		assertEquals(Arrays.asList("x", "yy", "zzz"), readAll());
+	}
+
+	@Test
+	public void indexOfLongerFileIsRejected() throws IOException {
+		log.append(records("a", "bb"));
+		log.writeIndex(writer(42));
+		log.close();
+
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.setLength(file.length() - 1);
+		}
+
+		log.open();
+		assertEquals(-1, log.readIndex(reader(42)));
+	}
+
+	@Test
+	public void corruptIndexIsRejected() throws IOException {
+		File index = new File(file.getPath() + ".index");
+
+		log.append(records("a"));
+		log.writeIndex(writer(42));
+
+		try (RandomAccessFile out = new RandomAccessFile(index, "rw")) {
+			out.seek(out.length() - 5);
+			out.write(43);
+		}
+
+		assertEquals(-1, log.readIndex(reader(42)));
+		assertFalse(index.isFile());
+	}
+
+	@Test
+	public void payloadOfRecord() throws IOException {
+		long position = log.append(records("abc"));
+		ByteBuffer record = NewsFeedRecordLog.read(log.getChannel(), position, record("abc").remaining());
+
+		record.position(1);
+		assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), log.readPayload(record, position));
+	}
+
+	private List<String> readAll() throws IOException {
+		DataInputStream in = log.newInputStream(log.getHeaderSize());
+		long position = log.getHeaderSize();
+		List<String> payloads = new ArrayList<>();
+
+		while (true) {
+			byte[] payload;
+
+			try {
+				in.readByte();
+				payload = NewsFeedRecordLog.readPayload(in);
+			} catch (EOFException e) {
+				payload = null;
+			}
+
+			if (payload == null) {
+				break;
+			}
+
+			payloads.add(new String(payload, StandardCharsets.UTF_8));
+			position += NewsFeedRecordLog.getRecordSize(1, payload.length);
+		}
+
+		log.truncate(position);
+
+		return payloads;
+	}
+
+	// One byte of fields before each payload
+	private static ByteBuffer record(String payload) {
+		return NewsFeedRecordLog.encodeRecord(new byte[] { 1 }, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static List<ByteBuffer> records(String... payloads) {
+		List<ByteBuffer> records = new ArrayList<>();
+
+		for (String payload : payloads) {
+			records.add(record(payload));
+		}
+
+		return records;
+	}
+
+	private static NewsFeedRecordLog.IndexWriter writer(final int value) {
+		return new NewsFeedRecordLog.IndexWriter() {
+			@Override
+			public void write(DataOutput out) throws IOException {
+				out.writeInt(value);
+			}
+		};
+	}
+
+	private static NewsFeedRecordLog.IndexReader reader(final int expected) {
+		return new NewsFeedRecordLog.IndexReader() {
+			@Override
+			public void read(DataInput in) throws IOException {
+				assertEquals(expected, in.readInt());
+			}
+		};
+	}
+
+}
@@ -0,0 +1,363 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <p>
+ * Kontrollerar hur {@link NewsFeedServlet} svarar på anrop, med enkla
+ * attrapper av servlet-API:t och en hämtare som alltid ger samma sida. Ett
+ * asynkront anrop kan bara startas en gång, som i en riktig servletcontainer.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedServletTest {
+
+	private static final String PAGE = "<html><body><div class=\"brf-header-bottom-text\"><span>Brf Hägern</span></div>"
+			+ "<ul class=\"itemlist\"><li class=\"item\"><a class=\"linkclickarea\" href=\"/arsstamma\"><div class=\"iteminformation\">"
+			+ "<h3>Årsstämma</h3><div class=\"itemdate\">12 maj 2016</div><div class=\"itemdescription\">Kallelse</div></div></a></li>"
+			+ "</ul></body></html>";
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> log = new CopyOnWriteArrayList<>();
+	private File tempDir;
+	private NewsFeedServlet servlet;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = folder.newFolder();
+		servlet = createServlet(PageFetcher.class, 0);
+	}
+
+	@After
+	public void tearDown() {
+		servlet.destroy();
+	}
+
+	@Test
+	public void historyOfUncachedFeed() throws Exception {
+		Exchange exchange = new Exchange("/norr/hagern", Collections.singletonMap("limit", "10"));
+
+		servlet.doGet(exchange.request, exchange.response);
+
+		assertTrue(exchange.awaitComplete());
+		assertEquals(1, exchange.asyncStarts.get());
+		assertEquals(HttpServletResponse.SC_OK, exchange.status);
+		assertTrue(exchange.getBody(), exchange.getBody().contains("<title>Årsstämma</title>"));
+		assertEquals(Collections.emptyList(), log);
+	}
+
+	@Test
+	public void historyOfCachedFeed() throws Exception {
+		Exchange first = new Exchange("/norr/hagern", Collections.<String, String> emptyMap());
+		Exchange second = new Exchange("/norr/hagern", Collections.singletonMap("since", "2016-01-01"));
+		Exchange third = new Exchange("/norr/hagern", Collections.singletonMap("since", "2016-01-01"));
+
+		servlet.doGet(first.request, first.response);
+		assertTrue(first.awaitComplete());
+
+		// The archive is opened asynchronously the first time, and read
+		// right away after that
+		servlet.doGet(second.request, second.response);
+		assertTrue(second.awaitComplete());
+		assertEquals(1, second.asyncStarts.get());
+		servlet.doGet(third.request, third.response);
+		assertEquals(0, third.asyncStarts.get());
+
+		assertEquals(HttpServletResponse.SC_OK, third.status);
+		assertTrue(third.getBody(), third.getBody().contains("<title>Årsstämma</title>"));
+		assertEquals(Collections.emptyList(), log);
+	}
+
+	@Test
+	public void destroyDuringWarmUp() throws Exception {
+		Exchange exchange = new Exchange("/norr/hagern", Collections.<String, String> emptyMap());
+
+		// Saves the feeds it served for the next warm-up
+		servlet.destroy();
+		servlet = createServlet(PageFetcher.class, 10);
+		servlet.doGet(exchange.request, exchange.response);
+		assertTrue(exchange.awaitComplete());
+		servlet.destroy();
+
+		// The feed requested above is warmed up, and the servlet is stopped
+		// while it is being fetched
+		SlowPageFetcher.reset();
+		servlet = createServlet(SlowPageFetcher.class, 10);
+		assertTrue(SlowPageFetcher.started.await(10, TimeUnit.SECONDS));
+		servlet.destroy();
+
+		assertFalse(SlowPageFetcher.interrupted);
+		assertEquals(Collections.emptyList(), log);
+		// Only written if the store could still be closed
+		assertTrue(new File(tempDir, NewsFeedServlet.class.getName() + ".newsFeeds.dat.index").isFile());
+
+		servlet = createServlet(PageFetcher.class, 0);
+	}
+
+	private NewsFeedServlet createServlet(Class<? extends NewsFeedFetcher> fetcher, int warmUpFeeds) throws Exception {
+		NewsFeedServlet s = new NewsFeedServlet();
+		Map<String, String> initParams = new HashMap<>();
+
+		initParams.put("fetcher", fetcher.getName());
+		initParams.put("warmUpFeeds", Integer.toString(warmUpFeeds));
+		s.init(newServletConfig(initParams, tempDir));
+
+		return s;
+	}
+
+	private ServletConfig newServletConfig(final Map<String, String> initParams, File tempDir) {
+		final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		final ServletContext context = newProxy(ServletContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					attributes.put((String) args[0], args[1]);
+					return null;
+				case "removeAttribute":
+					attributes.remove(args[0]);
+					return null;
+				case "log":
+					// Only failures are logged with an exception
+					if (args.length > 1) {
+						log.add(args[0] + ": " + args[1]);
+					}
+
+					return null;
+				default:
+					return defaultValue(method);
+				}
+			}
+		});
+
+		attributes.put(ServletContext.TEMPDIR, tempDir);
+
+		return newProxy(ServletConfig.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "getServletName":
+					return "news";
+				case "getServletContext":
+					return context;
+				case "getInitParameter":
+					return initParams.get(args[0]);
+				case "getInitParameterNames":
+					return Collections.enumeration(initParams.keySet());
+				default:
+					return defaultValue(method);
+				}
+			}
+		});
+	}
+
+	private static <T> T newProxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(NewsFeedServletTest.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else {
+			return null;
+		}
+	}
+
+	// Always the same page, whatever feed is asked for
+	public static class PageFetcher implements NewsFeedFetcher {
+
+		@Override
+		public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException {
+			return new NewsFeedPage(url, 200, PAGE.getBytes(StandardCharsets.UTF_8), "UTF-8", null, null);
+		}
+
+	}
+
+	// Takes a while, and tells if it was interrupted meanwhile
+	public static class SlowPageFetcher extends PageFetcher {
+
+		private static volatile CountDownLatch started;
+		private static volatile boolean interrupted;
+
+		private static void reset() {
+			started = new CountDownLatch(1);
+			interrupted = false;
+		}
+
+		@Override
+		public NewsFeedPage fetch(URL url, String etag, String lastModified) throws IOException {
+			started.countDown();
+
+			try {
+				Thread.sleep(500);
+			} catch (InterruptedException e) {
+				interrupted = true;
+				throw new InterruptedIOException();
+			}
+
+			return super.fetch(url, etag, lastModified);
+		}
+
+	}
+
+	// One request and its response
+	private static class Exchange {
+
+		private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final AtomicInteger asyncStarts = new AtomicInteger();
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private final HttpServletRequest request;
+		private final HttpServletResponse response;
+		private volatile int status = HttpServletResponse.SC_OK;
+
+		private Exchange(final String pathInfo, final Map<String, String> parameters) {
+			final AsyncContext ctx = newProxy(AsyncContext.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					switch (method.getName()) {
+					case "getRequest":
+						return request;
+					case "getResponse":
+						return response;
+					case "complete":
+						completed.countDown();
+						return null;
+					default:
+						return defaultValue(method);
+					}
+				}
+			});
+
+			request = newProxy(HttpServletRequest.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					switch (method.getName()) {
+					case "getMethod":
+						return "GET";
+					case "getServletPath":
+						return "/nyheter";
+					case "getPathInfo":
+						return pathInfo;
+					case "getParameter":
+						return parameters.get(args[0]);
+					case "getParameterValues":
+						return parameters.containsKey(args[0]) ? new String[] { parameters.get(args[0]) } : null;
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						attributes.put((String) args[0], args[1]);
+						return null;
+					case "getDateHeader":
+						return -1L;
+					case "isAsyncSupported":
+						return true;
+					case "isAsyncStarted":
+						return asyncStarts.get() > 0 && completed.getCount() > 0;
+					case "startAsync":
+						// As a container does, a request is only made asynchronous once
+						if (asyncStarts.getAndIncrement() > 0) {
+							throw new IllegalStateException("Already asynchronous");
+						}
+
+						return ctx;
+					default:
+						return defaultValue(method);
+					}
+				}
+			});
+			response = newProxy(HttpServletResponse.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					switch (method.getName()) {
+					case "setStatus":
+					case "sendError":
+						status = (Integer) args[0];
+						return null;
+					case "getStatus":
+						return status;
+					case "getOutputStream":
+						return new ServletOutputStream() {
+							@Override
+							public void write(int b) {
+								body.write(b);
+							}
+
+							@Override
+							public boolean isReady() {
+								return true;
+							}
+
+							@Override
+							public void setWriteListener(WriteListener writeListener) {
+							}
+						};
+					default:
+						return defaultValue(method);
+					}
+				}
+			});
+		}
+
+		// Completes right away unless the request was made asynchronous
+		private boolean awaitComplete() throws InterruptedException {
+			return asyncStarts.get() == 0 || completed.await(10, TimeUnit.SECONDS);
+		}
+
+		private String getBody() {
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		}
+
+	}
+
+}
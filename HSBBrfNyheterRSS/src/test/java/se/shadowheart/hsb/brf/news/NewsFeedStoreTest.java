@@ -0,0 +1,284 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <p>
+ * Kontrollerar att {@link NewsFeedStore} sparar de flöden som har ändrats,
+ * även de som cachen redan har släppt, och att de läses tillbaka som de
+ * sparades: efter att filen har öppnats igen, med eller utan index, med en
+ * trasig sista post och medan filen skrivs om.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedStoreTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private NewsFeedStore store;
+	private NewsFeedCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		file = new File(folder.getRoot(), "newsFeeds.dat");
+		store = new NewsFeedStore(file);
+		store.open();
+		cache = new NewsFeedCache(100, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		store.close();
+	}
+
+	@Test
+	public void flushWritesMarkedFeeds() throws IOException {
+		NewsFeed newsFeed = createNewsFeed("Brf Hägern", 3);
+
+		cache(newsFeed);
+		store.markDirty("norr/hagern", newsFeed);
+
+		assertTrue(store.isDirty());
+		assertEquals(1, store.flush(cache));
+		assertFalse(store.isDirty());
+		assertEquals(0, store.flush(cache));
+		assertSameNewsFeed(newsFeed, store.read("norr/hagern"));
+	}
+
+	@Test
+	public void flushWritesEvictedFeeds() throws IOException {
+		NewsFeed newsFeed = createNewsFeed("Brf Hägern", 3);
+
+		// Never cached, as if the cache evicted it before the flush
+		store.markDirty("norr/hagern", newsFeed);
+
+		assertEquals(1, store.flush(cache));
+		assertSameNewsFeed(newsFeed, store.read("norr/hagern"));
+	}
+
+	@Test
+	public void flushWritesNewestCachedFeed() throws IOException {
+		NewsFeed marked = createNewsFeed("Brf Hägern", 2);
+		NewsFeed newer = createNewsFeed("Brf Hägern", 4);
+
+		store.markDirty("norr/hagern", marked);
+		cache(newer);
+
+		assertEquals(1, store.flush(cache));
+		assertSameNewsFeed(newer, store.read("norr/hagern"));
+	}
+
+	@Test
+	public void reopenedWithIndex() throws IOException {
+		NewsFeed hagern = createNewsFeed("Brf Hägern", 3);
+		NewsFeed tranan = createNewsFeed("Brf Tranan", 2);
+
+		write("norr/hagern", hagern);
+		store.close();
+		assertTrue(new File(file.getPath() + ".index").isFile());
+
+		// Appended after the index was written
+		assertEquals(1, store.open());
+		write("norr/tranan", tranan);
+		store.close();
+
+		assertEquals(2, store.open());
+		assertEquals(Arrays.asList("norr/tranan", "norr/hagern"), store.getKeys());
+		assertSameNewsFeed(hagern, store.read("norr/hagern"));
+		assertSameNewsFeed(tranan, store.read("norr/tranan"));
+		assertNull(store.read("norr/ejdern"));
+	}
+
+	@Test
+	public void reopenedWithoutIndex() throws IOException {
+		NewsFeed hagern = createNewsFeed("Brf Hägern", 3);
+
+		write("norr/hagern", hagern);
+		write("norr/hagern", createNewsFeed("Brf Hägern", 5));
+		write("norr/hagern", hagern);
+		store.close();
+		assertTrue(new File(file.getPath() + ".index").delete());
+
+		// The last record of the feed wins
+		assertEquals(1, store.open());
+		assertSameNewsFeed(hagern, store.read("norr/hagern"));
+	}
+
+	@Test
+	public void tornLastRecordTruncated() throws IOException {
+		NewsFeed hagern = createNewsFeed("Brf Hägern", 3);
+		NewsFeed tranan = createNewsFeed("Brf Tranan", 2);
+		long length;
+
+		write("norr/hagern", hagern);
+		store.close();
+		length = file.length();
+
+		// Half of a record, as after a crash in the middle of a write
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(new byte[] { 3, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+		}
+
+		assertEquals(1, store.open());
+		assertEquals(length, file.length());
+		assertEquals(12, new File(file.getPath() + ".corrupt").length());
+		assertSameNewsFeed(hagern, store.read("norr/hagern"));
+
+		// Appended after the last complete record
+		write("norr/tranan", tranan);
+		store.close();
+		assertEquals(2, store.open());
+		assertSameNewsFeed(hagern, store.read("norr/hagern"));
+		assertSameNewsFeed(tranan, store.read("norr/tranan"));
+	}
+
+	@Test
+	public void staleIndexRejected() throws IOException {
+		File index = new File(file.getPath() + ".index");
+		File saved = new File(folder.getRoot(), "saved.index");
+		NewsFeed hagern = createNewsFeed("Brf Hägern", 3);
+		NewsFeed tranan = createNewsFeed("Brf Tranan", 2);
+
+		write("norr/hagern", createNewsFeed("Brf Hägern", 5));
+		write("norr/tranan", tranan);
+		store.close();
+		Files.copy(index.toPath(), saved.toPath());
+
+		// Rewritten, so that the positions in the saved index are wrong
+		store.open();
+		write("norr/hagern", hagern);
+		store.compact();
+		store.close();
+		Files.copy(saved.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		assertEquals(2, store.open());
+		assertSameNewsFeed(hagern, store.read("norr/hagern"));
+		assertSameNewsFeed(tranan, store.read("norr/tranan"));
+	}
+
+	@Test
+	public void readWhileCompacting() throws Exception {
+		final List<String> keys = new ArrayList<>();
+		final List<NewsFeed> newsFeeds = new ArrayList<>();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final CountDownLatch started = new CountDownLatch(4);
+		List<Thread> readers = new ArrayList<>();
+		long length;
+
+		for (int i = 0; i < 10; i++) {
+			keys.add("norr/brf" + i);
+			newsFeeds.add(createNewsFeed("Brf " + i, i + 1));
+			store.markDirty(keys.get(i), newsFeeds.get(i));
+		}
+
+		store.flush(cache);
+
+		for (int i = 0; i < 4; i++) {
+			Thread reader = new Thread() {
+				@Override
+				public void run() {
+					try {
+						started.countDown();
+
+						while (!done.get()) {
+							for (int k = 0; k < keys.size(); k++) {
+								assertSameNewsFeed(newsFeeds.get(k), store.read(keys.get(k)));
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+
+			reader.start();
+			readers.add(reader);
+		}
+
+		started.await();
+
+		try {
+			for (int i = 0; i < 50; i++) {
+				// The same feeds again, so that there is something to remove
+				for (int j = 0; j < keys.size(); j++) {
+					store.markDirty(keys.get(j), newsFeeds.get(j));
+				}
+
+				store.flush(cache);
+				length = file.length();
+				store.compact();
+				assertTrue(file.length() < length);
+			}
+		} finally {
+			done.set(true);
+
+			for (Thread reader : readers) {
+				reader.join();
+			}
+		}
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		assertEquals(keys.size(), store.getKeys().size());
+	}
+
+	private void write(String key, NewsFeed newsFeed) throws IOException {
+		store.markDirty(key, newsFeed);
+		assertEquals(1, store.flush(cache));
+	}
+
+	private void cache(NewsFeed newsFeed) throws IOException {
+		cache.put("norr/hagern", new NewsFeedCacheEntry(newsFeed, NewsFeedRendering.render(newsFeed), System.currentTimeMillis()));
+	}
+
+	static NewsFeed createNewsFeed(String title, int count) {
+		String url = "https://www.hsb.se/norr/brf/hagern/nyheter";
+		List<NewsFeedItem> items = new ArrayList<>();
+
+		for (int i = count; i > 0; i--) {
+			items.add(new NewsFeedItem("Nyhet " + i, url + "/" + i, new GregorianCalendar(2016, Calendar.MAY, i).getTime(), "Text " + i));
+		}
+
+		return new NewsFeed(url, title, "", items.get(0).getDate(), items);
+	}
+
+	static void assertSameNewsFeed(NewsFeed expected, NewsFeed actual) {
+		assertEquals(expected.getTitle(), actual.getTitle());
+		assertEquals(expected.getLastBuildDate(), actual.getLastBuildDate());
+		assertEquals(expected.getItems(), actual.getItems());
+	}
+
+}
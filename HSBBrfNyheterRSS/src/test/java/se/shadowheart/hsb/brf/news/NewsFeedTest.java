@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+
+import org.apache.commons.lang3.time.FastDateFormat;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Kontrollerar hur {@link NewsFeed} bygger ett flöde av en nyhetssida, och
+ * att flödets <code>lastBuildDate</code> följer den tid som nyheterna
+ * publiceras med. Dagens nyheter får den tid då de först sågs.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedTest {
+
+	private static final FastDateFormat dateFormat = FastDateFormat.getInstance("dd MMMM yyyy", new Locale("sv"));
+
+	@Test
+	public void lastBuildDateOfOlderItems() throws IOException {
+		NewsFeed newsFeed = NewsFeed.load(null, "norr", "hagern", fetcher(item("/arsstamma", "Årsstämma", "12 maj 2016"),
+				item("/snorojning", "Snöröjning", "03 januari 2016")));
+
+		assertEquals(new GregorianCalendar(2016, Calendar.MAY, 12).getTime(), newsFeed.getLastBuildDate());
+		assertEquals(newsFeed.getLastBuildDate(), newsFeed.getItems().get(0).getDate());
+	}
+
+	@Test
+	public void lastBuildDateOfTodaysItems() throws Exception {
+		String today = dateFormat.format(new Date());
+		long start = System.currentTimeMillis();
+		NewsFeed first = NewsFeed.load(null, "norr", "hagern", fetcher(item("/arsstamma", "Årsstämma", today)));
+		NewsFeed second;
+
+		// The time it was first seen, not midnight
+		assertEquals(first.getItems().get(0).getDate(), first.getLastBuildDate());
+		assertFalse(first.getLastBuildDate().getTime() < start);
+
+		Thread.sleep(10);
+		second = NewsFeed.load(first, "norr", "hagern",
+				fetcher(item("/styrelse", "Ny styrelse", today), item("/arsstamma", "Årsstämma", today)));
+
+		// The new item moves lastBuildDate, and so Last-Modified, forward
+		// while the one already seen keeps its time
+		assertEquals(first.getItems().get(0), second.getItems().get(1));
+		assertEquals(second.getItems().get(0).getDate(), second.getLastBuildDate());
+		assertTrue(second.getLastBuildDate().after(first.getLastBuildDate()));
+	}
+
+	private static String item(String link, String title, String date) {
+		return "<li class=\"item\"><a class=\"linkclickarea\" href=\"" + link + "\"><div class=\"iteminformation\"><h3>" + title
+				+ "</h3><div class=\"itemdate\">" + date + "</div><div class=\"itemdescription\">" + title + "</div></div></a></li>";
+	}
+
+	private static NewsFeedFetcher fetcher(String... items) {
+		StringBuilder html = new StringBuilder("<html><body><div class=\"brf-header-bottom-text\"><span>Brf Hägern</span></div>");
+		final byte[] body;
+
+		html.append("<ul class=\"itemlist\">");
+
+		for (String item : items) {
+			html.append(item);
+		}
+
+		body = html.append("</ul></body></html>").toString().getBytes(StandardCharsets.UTF_8);
+
+		return new NewsFeedFetcher() {
+			@Override
+			public NewsFeedPage fetch(URL url, String etag, String lastModified) {
+				return new NewsFeedPage(url, 200, body, "UTF-8", null, null);
+			}
+		};
+	}
+
+}
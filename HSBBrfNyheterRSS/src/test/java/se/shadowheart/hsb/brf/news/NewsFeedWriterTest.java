@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package se.shadowheart.hsb.brf.news;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Kontrollerar att {@link NewsFeedWriter} skriver exakt samma XML som DOM-vägen
+ * med <code>getDocument</code> och en Transformer, och att båda stämmer med
+ * en sparad förlaga. Flödet har text som inte är ASCII, tecken som måste
+ * kodas och nyheter utan datum eller länk.
+ * </p>
+ *
+ * @author Mikael Lindberg (shadowheart82 / mlindberg82@gmail.com)
+ * @version 1.0
+ */
+public class NewsFeedWriterTest {
+
+	private static final String GOLDEN = "golden-feed.xml";
+	private static final String YEAR = "@YEAR@";
+
+	@Test
+	public void writerMatchesDocument() throws IOException {
+		NewsFeed newsFeed = createNewsFeed();
+
+		assertArrayEquals(NewsFeedRendering.renderDocument(newsFeed).getBody(), NewsFeedRendering.render(newsFeed).getBody());
+	}
+
+	@Test
+	public void writerMatchesGolden() throws IOException {
+		String rendered = new String(NewsFeedRendering.render(createNewsFeed()).getBody(), StandardCharsets.UTF_8);
+
+		// The copyright line has the current year
+		assertEquals(readGolden(), rendered.replace("Copyright " + Calendar.getInstance().get(Calendar.YEAR), "Copyright " + YEAR));
+	}
+
+	@Test
+	public void documentMatchesGolden() throws IOException {
+		String rendered = new String(NewsFeedRendering.renderDocument(createNewsFeed()).getBody(), StandardCharsets.UTF_8);
+
+		assertEquals(readGolden(), rendered.replace("Copyright " + Calendar.getInstance().get(Calendar.YEAR), "Copyright " + YEAR));
+	}
+
+	@Test
+	public void cachedFragmentsMatchDocument() throws IOException {
+		NewsFeed newsFeed = createNewsFeed();
+
+		// The second rendering reuses the encoded items of the first
+		NewsFeedRendering.render(newsFeed);
+		assertArrayEquals(NewsFeedRendering.renderDocument(newsFeed).getBody(), NewsFeedRendering.render(newsFeed).getBody());
+	}
+
+	private static NewsFeed createNewsFeed() {
+		String url = "http://www.hsb.se/norr/brf/h%C3%A4gern/nyheter";
+
+		return new NewsFeed(url, "Brf Hägern – Umeå", "", date(2016, Calendar.MAY, 12, 14, 30), Arrays.asList(
+				new NewsFeedItem("Årsstämma & val", url + "/arsstamma", date(2016, Calendar.MAY, 12, 14, 30),
+						"Kallelse till <b>stämman</b> & \"val\" av 'styrelse' > 3 år, avgift 1 200 € — åäö ÅÄÖ"),
+				new NewsFeedItem("Vinterns snöröjning", url + "/snorojning", date(2016, Calendar.JANUARY, 3, 0, 0), "Plogning 1 < 2"),
+				new NewsFeedItem("Nyhet utan datum", url + "/utan-datum", null, "Tänk på & kom ihåg"),
+				new NewsFeedItem("Nyhet utan länk", null, date(2015, Calendar.DECEMBER, 24, 9, 0), "<script>alert('x & y')</script>"),
+				new NewsFeedItem("Varken länk eller datum", null, null, ""), new NewsFeedItem(null, null, null, null)));
+	}
+
+	private static Date date(int year, int month, int day, int hour, int minute) {
+		return new GregorianCalendar(year, month, day, hour, minute).getTime();
+	}
+
+	private static String readGolden() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] b = new byte[8192];
+		int n;
+
+		try (InputStream in = NewsFeedWriterTest.class.getResourceAsStream(GOLDEN)) {
+			while ((n = in.read(b)) > 0) {
+				buffer.write(b, 0, n);
+			}
+		}
+
+		return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+}